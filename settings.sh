@@ -55,4 +55,154 @@ PID_FILE="/tmp/zabbix_java.pid"
 #
 # Mandatory: no
 # Default:
-# API_PASSWORD=zabbix
\ No newline at end of file
+# API_PASSWORD=zabbix
+
+### Option: zabbix.configRefresh
+#	How many seconds between loading the configurations of all the JMX
+#	interfaces from the Zabbix API. They're loaded at startup and then in the
+#	background so the requests don't wait on the API.
+#	0 - each interface's configuration is retrieved when it's first requested
+#
+# Mandatory: no
+# Range: 0-86400
+# Default:
+# CONFIG_REFRESH=300
+
+### Option: zabbix.configSnapshot
+#	File the configurations of the JMX interfaces are saved to. A restarted
+#	gateway starts out with the saved configurations and no longer needs the
+#	Zabbix frontend to be up to start.
+#	If omitted, the configurations are retrieved from the Zabbix API at startup.
+#
+# Mandatory: no
+# Default:
+# CONFIG_SNAPSHOT=
+
+### Option: zabbix.prefetchFreshness
+#	Enables prefetching of JMX values. The gateway learns the keys and interval
+#	that Zabbix polls each host with and refreshes the values shortly before the
+#	next poll. Prefetched values older than this many seconds are not served,
+#	a live read is done instead. 0 disables prefetching.
+#
+# Mandatory: no
+# Range: 0-3600
+# Default:
+# PREFETCH_FRESHNESS=0
+
+### Option: zabbix.valueCacheTtl
+#	Caches the values of items that rarely or never change so they aren't
+#	read from the monitored JVM every poll. Semicolon separated list of
+#	<key pattern>=<seconds|forever> rules, * may be used as a wildcard in
+#	the key pattern and the first matching rule is used. Values cached
+#	"forever" are kept until the monitored JVM restarts (all cached values
+#	of a JVM are dropped once its Runtime.StartTime changes).
+#	Values are not cached if this is empty.
+#
+# Mandatory: no
+# Default:
+# VALUE_CACHE_TTL=
+# Example:
+# VALUE_CACHE_TTL="jmx[java.lang:type=Runtime,Vm*]=forever;jmx[java.lang:type=OperatingSystem,AvailableProcessors]=forever;*HeapMemoryUsage.max]=300"
+
+### Option: zabbix.jolokiaKeepAlive
+#	How many seconds an idle connection to a Jolokia agent is kept open
+#	for reuse by the next poll. Connections are closed sooner when the
+#	agent announces a shorter keep-alive time.
+#
+# Mandatory: no
+# Range: 0-3600
+# Default:
+# JOLOKIA_KEEP_ALIVE=30
+
+### Option: zabbix.jolokiaMaxConnectionsPerRoute
+#	Maximum number of connections kept to a single Jolokia agent.
+#
+# Mandatory: no
+# Range: 1-1000
+# Default:
+# JOLOKIA_MAX_CONNECTIONS_PER_ROUTE=10
+
+### Option: zabbix.jolokiaMaxConnections
+#	Maximum number of connections kept to all the Jolokia agents.
+#
+# Mandatory: no
+# Range: 1-10000
+# Default:
+# JOLOKIA_MAX_CONNECTIONS=200
+
+### Option: zabbix.jolokiaMaxBulkRequests
+#	Maximum number of items read in one bulk request to a Jolokia agent.
+#	Larger requests are split into several bulk requests that are sent in
+#	parallel, so the agent works on them at once and one slow attribute
+#	doesn't hold up all the others.
+#	0 - no limit, all the items of a request are read in one bulk request
+#
+# Mandatory: no
+# Range: 0-10000
+# Default:
+# JOLOKIA_MAX_BULK_REQUESTS=0
+
+### Option: zabbix.jolokiaCompressionThreshold
+#	Response size in bytes from which the Jolokia agents are asked for gzip or
+#	deflate compressed responses. Compression is asked for from an agent once
+#	one of its responses was at least this big, so the small responses of most
+#	polls aren't compressed and inflated for nothing. The agent (or the servlet
+#	container it runs in) decides whether it actually compresses.
+#	0 - disabled
+#
+# Mandatory: no
+# Range: 0-1000000000
+# Default:
+# JOLOKIA_COMPRESSION_THRESHOLD=0
+
+### Option: zabbix.jolokiaListCacheTtl
+#	How many seconds the list of a Jolokia agent's MBeans is cached for. The
+#	list is used by the jmx.discovery of all the attributes.
+#	0 - the MBeans are listed for each discovery
+#
+# Mandatory: no
+# Range: 0-86400
+# Default:
+# JOLOKIA_LIST_CACHE_TTL=600
+
+### Option: zabbix.timeout
+#	How many seconds to wait on a host. For Jolokia this is the time waiting
+#	for the response, for JMX the time establishing the connection.
+#	The host level macro {$JMX_TIMEOUT} overrides it for a single host.
+#
+# Mandatory: no
+# Range: 1-300
+# Default:
+# TIMEOUT=10
+
+### Option: zabbix.adaptiveTimeout
+#	Adapts the timeout of each host to its latency. The timeout becomes this
+#	multiple of the 99th percentile of the host's latest latencies, bounded by
+#	ADAPTIVE_TIMEOUT_FLOOR and by the host's timeout.
+#	0 - disabled, the host's timeout is always used
+#
+# Mandatory: no
+# Range: 0-100
+# Default:
+# ADAPTIVE_TIMEOUT=0
+
+### Option: zabbix.adaptiveTimeoutFloor
+#	The lowest adaptive timeout in milliseconds.
+#
+# Mandatory: no
+# Range: 10-300000
+# Default:
+# ADAPTIVE_TIMEOUT_FLOOR=1000
+
+### Option: zabbix.jolokiaReadThreads
+#	Number of threads the pollers hand the Jolokia requests over to. The pollers
+#	are free for the next request right away and the response is sent to Zabbix
+#	by the read thread once the agent answered. The read threads block on the
+#	agents like the pollers do. When all of them are busy and their queue is
+#	full the pollers read from the Jolokia agents themselves.
+#	0 - disabled, the pollers read from the Jolokia agents
+#
+# Mandatory: no
+# Range: 0-1000
+# Default:
+# JOLOKIA_READ_THREADS=0
@@ -0,0 +1,374 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Samples attributes in the background at a sub-second resolution and
+ * summarizes the samples when Zabbix polls at its normal interval. The key is:
+ * <pre>
+ * jmx.sample[&lt;object name&gt;,&lt;attribute name&gt;,&lt;interval&gt;(,&lt;min|max|avg|p95|count&gt;)]
+ * </pre>
+ * The interval is in milliseconds i.e. "250ms" or seconds i.e. "2s". Without
+ * the statistic a JSON document with all of them is returned. Each poll
+ * summarizes the samples taken since the previous poll of the same key. The
+ * samples are kept in a ring buffer per sampled attribute that holds all the
+ * samples taken within the idle timeout, the sampling stops once the key
+ * is no longer polled for that long so no sample between polls is lost.
+ *
+ */
+class AttributeSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(AttributeSampler.class);
+
+    static final String SAMPLE_KEY = "jmx.sample";
+    static final String COUNT = "count";
+    static final String MIN = "min";
+    static final String MAX = "max";
+    static final String AVG = "avg";
+    static final String P95 = "p95";
+
+    private static final List<String> STATISTICS = Arrays.asList(COUNT, MIN, MAX, AVG, P95);
+    private static final long MIN_INTERVAL = 50;
+    private static final long MAX_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10); // stop sampling keys not polled for 10 minutes
+    private static final int SAMPLER_THREADS = 4;
+
+    private static final Counter _failures = Metrics.newCounter(AttributeSampler.class, "sample-failures");
+
+    private static final AttributeSampler _instance = new AttributeSampler();
+
+    private final ConcurrentMap<String, Series> _series = new ConcurrentHashMap<String, Series>();
+    private final ScheduledExecutorService _executor;
+
+    static {
+        Metrics.newGauge(AttributeSampler.class, "sampled-attributes", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._series.size();
+            }
+
+        });
+    }
+
+    AttributeSampler() {
+        _executor = Executors.newScheduledThreadPool(SAMPLER_THREADS, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sampler-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static AttributeSampler getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Tests if the key is a sampling key
+     * @param key The item key
+     * @return True for jmx.sample keys
+     */
+    public static boolean isSampleKey(String key) {
+        return key.startsWith(SAMPLE_KEY + "[");
+    }
+
+    /**
+     * Gets the summary of the samples taken since the previous poll of
+     * the key, sampling starts with the first poll.
+     * @param checker The checker of the Zabbix request
+     * @param key The jmx.sample item key
+     * @return The statistic or a JSON document with all of them
+     * @throws Exception When the key is malformed or there are no samples
+     */
+    public String getSummary(ItemChecker checker, String key) throws Exception {
+        ZabbixItem item = new ZabbixItem(key);
+        if (item.getArgumentCount() != 3 && item.getArgumentCount() != 4) {
+            throw new ZabbixException("required key format: jmx.sample[<object name>,<attribute name>,<interval>(,<min|max|avg|p95|count>)]");
+        }
+
+        long interval = parseInterval(item.getArgument(3));
+        String statistic = item.getArgumentCount() == 4 ? item.getArgument(4) : "";
+        if (!statistic.isEmpty() && !STATISTICS.contains(statistic)) {
+            throw new ZabbixException("unsupported statistic '%s', expected one of %s", statistic, STATISTICS);
+        }
+        if (checker.getTarget() == null) {
+            throw new ZabbixException("key ID '%s' is not supported", item.getKeyId());
+        }
+
+        String sourceKey = "jmx[" + quote(item.getArgument(1)) + "," + quote(item.getArgument(2)) + "]";
+        // Users of the same target may not see the same values
+        String seriesKey = checker.getTarget() + "\n" + checker.getCredentials() + "\n" + sourceKey + "\n" + interval;
+
+        Series series = _series.get(seriesKey);
+        if (series == null) {
+            // The first sample is taken right away so the first poll has a value
+            Series newSeries = new Series(seriesKey, checker.createSampleChecker(sourceKey), sourceKey, interval);
+            newSeries.sample();
+            series = _series.putIfAbsent(seriesKey, newSeries);
+            if (series == null) {
+                series = newSeries;
+                newSeries.start();
+            }
+            else {
+                newSeries.close();
+            }
+        }
+
+        return series.summarize(key, statistic);
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+        for (Series series : _series.values()) {
+            series.close();
+        }
+        _series.clear();
+    }
+
+    static long parseInterval(String interval) throws ZabbixException {
+        String text = interval.trim();
+        long multiplier = 1;
+        if (text.endsWith("ms")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        else if (text.endsWith("s")) {
+            text = text.substring(0, text.length() - 1);
+            multiplier = 1000;
+        }
+
+        long millis;
+        try {
+            millis = Long.parseLong(text.trim()) * multiplier;
+        }
+        catch (NumberFormatException e) {
+            throw new ZabbixException("bad sampling interval '%s', expected i.e. 250ms or 2s", interval);
+        }
+
+        if (millis < MIN_INTERVAL || millis > MAX_INTERVAL) {
+            throw new ZabbixException("the sampling interval must be between %dms and %ds", MIN_INTERVAL, MAX_INTERVAL / 1000);
+        }
+
+        return millis;
+    }
+
+    /**
+     * @param interval The sampling interval in milliseconds
+     * @return The number of samples taken within the idle timeout
+     */
+    static int bufferSize(long interval) {
+        return (int) (IDLE_TIMEOUT / interval) + 1;
+    }
+
+    private static String quote(String argument) {
+        return "\"" + argument.replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * The samples of one attribute at one interval
+     */
+    private class Series implements Runnable {
+
+        private final String _seriesKey;
+        private final ItemChecker _checker;
+        private final String _sourceKey;
+        private final long _interval;
+        private final double[] _values;
+        private final long[] _times;
+        private final Map<String, Long> _lastPolls = new ConcurrentHashMap<String, Long>();
+        private final long _startTime = System.currentTimeMillis();
+        private int _next;
+        private int _count;
+        private String _lastError;
+        private volatile long _lastPoll = System.currentTimeMillis();
+        private ScheduledFuture<?> _future;
+
+        Series(String seriesKey, ItemChecker checker, String sourceKey, long interval) {
+            _seriesKey = seriesKey;
+            _checker = checker;
+            _sourceKey = sourceKey;
+            _interval = interval;
+            _values = new double[bufferSize(interval)];
+            _times = new long[_values.length];
+        }
+
+        void start() {
+            logger.debug("sampling {} every {} ms", _sourceKey, _interval);
+            _future = _executor.scheduleWithFixedDelay(this, _interval, _interval, TimeUnit.MILLISECONDS);
+        }
+
+        void close() {
+            if (_future != null) {
+                _future.cancel(false);
+            }
+            _checker.closeSampling();
+        }
+
+        @Override
+        public void run() {
+            if (System.currentTimeMillis() - _lastPoll > IDLE_TIMEOUT) {
+                logger.debug("no longer sampling {}", _sourceKey);
+                _series.remove(_seriesKey, this);
+                _lastPolls.clear();
+                close();
+                return;
+            }
+
+            sample();
+        }
+
+        void sample() {
+            String error = null;
+            double value = 0;
+            try {
+                value = Double.parseDouble(_checker.sampleValue(_sourceKey).trim());
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    error = "cannot sample a non-numeric value: " + value;
+                }
+            }
+            catch (NumberFormatException e) {
+                error = "cannot sample a non-numeric value: " + e.getMessage();
+            }
+            catch (Exception e) {
+                error = HelperFunctionChest.getRootCauseMessage(e);
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    logger.trace("sampling {} failed - {}", _sourceKey, error);
+                    _failures.inc();
+                    _lastError = error;
+                    return;
+                }
+
+                _values[_next] = value;
+                _times[_next] = System.currentTimeMillis();
+                _next = (_next + 1) % _values.length;
+                _count = Math.min(_count + 1, _values.length);
+                _lastError = null;
+            }
+        }
+
+        synchronized String summarize(String key, String statistic) throws ZabbixException {
+            long now = System.currentTimeMillis();
+            _lastPoll = now;
+            Long previousPoll = _lastPolls.put(key, now);
+            // Forget the keys of this attribute that are no longer polled
+            for (Map.Entry<String, Long> lastPoll : _lastPolls.entrySet()) {
+                if (now - lastPoll.getValue() > IDLE_TIMEOUT) {
+                    _lastPolls.remove(lastPoll.getKey());
+                }
+            }
+            long since = previousPoll == null ? _startTime - 1 : previousPoll;
+
+            double[] window = new double[_count];
+            int size = 0;
+            for (int i = 0; i < _count; i++) {
+                int slot = (_next - 1 - i + _values.length) % _values.length;
+                if (_times[slot] <= since) {
+                    break;
+                }
+                window[size++] = _values[slot];
+            }
+
+            if (size == 0) {
+                if (_lastError != null) {
+                    throw new ZabbixException(_lastError);
+                }
+                if (_count == 0) {
+                    throw new ZabbixException("no samples were taken yet");
+                }
+                // Polled more often than sampled, the latest sample still applies
+                window[size++] = _values[(_next - 1 + _values.length) % _values.length];
+            }
+
+            return summarize(Arrays.copyOf(window, size), statistic);
+        }
+
+        private String summarize(double[] window, String statistic) {
+            Arrays.sort(window);
+            double sum = 0;
+            for (double value : window) {
+                sum += value;
+            }
+
+            // Nearest rank percentile
+            int p95Rank = (int) Math.ceil(0.95 * window.length) - 1;
+
+            String count = String.valueOf(window.length);
+            String min = format(window[0]);
+            String max = format(window[window.length - 1]);
+            String avg = format(sum / window.length);
+            String p95 = format(window[Math.max(p95Rank, 0)]);
+
+            if (statistic.equals(COUNT)) {
+                return count;
+            }
+            else if (statistic.equals(MIN)) {
+                return min;
+            }
+            else if (statistic.equals(MAX)) {
+                return max;
+            }
+            else if (statistic.equals(AVG)) {
+                return avg;
+            }
+            else if (statistic.equals(P95)) {
+                return p95;
+            }
+
+            // The numbers are plain decimals so the document is built directly
+            return new StringBuilder("{\"").append(COUNT).append("\":").append(count)
+                    .append(",\"").append(MIN).append("\":").append(min)
+                    .append(",\"").append(MAX).append("\":").append(max)
+                    .append(",\"").append(AVG).append("\":").append(avg)
+                    .append(",\"").append(P95).append("\":").append(p95)
+                    .append('}').toString();
+        }
+
+        private String format(double value) {
+            return HelperFunctionChest.toPlainString(BigDecimal.valueOf(value));
+        }
+    }
+}
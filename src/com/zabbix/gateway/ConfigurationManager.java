@@ -38,6 +38,20 @@ class ConfigurationManager
 	public static final String ZABBIX_URL = "zabbixUrl";
 	public static final String API_USER = "apiUser";
 	public static final String API_PASSWORD = "apiPassword";
+	public static final String PREFETCH_FRESHNESS = "prefetchFreshness";
+	public static final String VALUE_CACHE_TTL = "valueCacheTtl";
+	public static final String JOLOKIA_KEEP_ALIVE = "jolokiaKeepAlive";
+	public static final String JOLOKIA_MAX_CONNECTIONS_PER_ROUTE = "jolokiaMaxConnectionsPerRoute";
+	public static final String JOLOKIA_MAX_CONNECTIONS = "jolokiaMaxConnections";
+	public static final String JOLOKIA_READ_THREADS = "jolokiaReadThreads";
+	public static final String JOLOKIA_MAX_BULK_REQUESTS = "jolokiaMaxBulkRequests";
+	public static final String JOLOKIA_COMPRESSION_THRESHOLD = "jolokiaCompressionThreshold";
+	public static final String JOLOKIA_LIST_CACHE_TTL = "jolokiaListCacheTtl";
+	public static final String TIMEOUT = "timeout";
+	public static final String ADAPTIVE_TIMEOUT = "adaptiveTimeout";
+	public static final String ADAPTIVE_TIMEOUT_FLOOR = "adaptiveTimeoutFloor";
+	public static final String CONFIG_REFRESH = "configRefresh";
+	public static final String CONFIG_SNAPSHOT = "configSnapshot";
 
 	private static ConfigurationParameter[] parameters =
 	{
@@ -82,6 +96,48 @@ class ConfigurationManager
 				null),
 		new ConfigurationParameter(ZABBIX_URL, ConfigurationParameter.TYPE_STRING,
 				"http://localhost/zabbix",
+				null,
+				null),
+		new ConfigurationParameter(PREFETCH_FRESHNESS, ConfigurationParameter.TYPE_INTEGER, 0,
+				new IntegerValidator(0, 3600),
+				null),
+		new ConfigurationParameter(VALUE_CACHE_TTL, ConfigurationParameter.TYPE_STRING, "",
+				null,
+				null),
+		new ConfigurationParameter(JOLOKIA_KEEP_ALIVE, ConfigurationParameter.TYPE_INTEGER, 30,
+				new IntegerValidator(0, 3600),
+				null),
+		new ConfigurationParameter(JOLOKIA_MAX_CONNECTIONS_PER_ROUTE, ConfigurationParameter.TYPE_INTEGER, 10,
+				new IntegerValidator(1, 1000),
+				null),
+		new ConfigurationParameter(JOLOKIA_MAX_CONNECTIONS, ConfigurationParameter.TYPE_INTEGER, 200,
+				new IntegerValidator(1, 10000),
+				null),
+		new ConfigurationParameter(JOLOKIA_READ_THREADS, ConfigurationParameter.TYPE_INTEGER, 0,
+				new IntegerValidator(0, 1000),
+				null),
+		new ConfigurationParameter(JOLOKIA_MAX_BULK_REQUESTS, ConfigurationParameter.TYPE_INTEGER, 0,
+				new IntegerValidator(0, 10000),
+				null),
+		new ConfigurationParameter(JOLOKIA_COMPRESSION_THRESHOLD, ConfigurationParameter.TYPE_INTEGER, 0,
+				new IntegerValidator(0, 1000000000),
+				null),
+		new ConfigurationParameter(JOLOKIA_LIST_CACHE_TTL, ConfigurationParameter.TYPE_INTEGER, 600,
+				new IntegerValidator(0, 86400),
+				null),
+		new ConfigurationParameter(TIMEOUT, ConfigurationParameter.TYPE_INTEGER, 10,
+				new IntegerValidator(1, 300),
+				null),
+		new ConfigurationParameter(ADAPTIVE_TIMEOUT, ConfigurationParameter.TYPE_INTEGER, 0,
+				new IntegerValidator(0, 100),
+				null),
+		new ConfigurationParameter(ADAPTIVE_TIMEOUT_FLOOR, ConfigurationParameter.TYPE_INTEGER, 1000,
+				new IntegerValidator(10, 300000),
+				null),
+		new ConfigurationParameter(CONFIG_REFRESH, ConfigurationParameter.TYPE_INTEGER, 300,
+				new IntegerValidator(0, 86400),
+				null),
+		new ConfigurationParameter(CONFIG_SNAPSHOT, ConfigurationParameter.TYPE_FILE, null,
 				null,
 				null)
 	};
@@ -0,0 +1,246 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Turns monotonic counters (i.e. CollectionCount, ProcessCpuTime) into per
+ * second rates or deltas in the gateway so Zabbix doesn't need to store every
+ * raw value and preprocess it. The keys are:
+ * <pre>
+ * jmx.rate[&lt;object name&gt;,&lt;attribute name&gt;]
+ * jmx.delta[&lt;object name&gt;,&lt;attribute name&gt;]
+ * </pre>
+ * Which read the value of jmx[&lt;object name&gt;,&lt;attribute name&gt;] and compare it
+ * with the previous sample of the same target and key. The first sample of a
+ * series has nothing to compare with so it gives no value yet, like Zabbix's own
+ * delta preprocessing. A counter that went down was reset (i.e. the JVM restarted)
+ * so its current value is taken as the delta. The samples are kept in an open
+ * addressing table of primitives keyed by a 64-bit hash of the target and key,
+ * series that weren't sampled for a while are evicted.
+ *
+ */
+class CounterRates {
+
+    static final String RATE_KEY = "jmx.rate";
+    static final String DELTA_KEY = "jmx.delta";
+    static final String SOURCE_KEY = "jmx";
+
+    private static final long IDLE_TIMEOUT = TimeUnit.HOURS.toMillis(2); // evict series not sampled for 2 hours
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+    private static final long MIN_ELAPSED = 1000; // samples closer than this repeat the last result
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 22;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long EMPTY = 0;
+
+    private static final CounterRates _instance = new CounterRates();
+
+    static {
+        Metrics.newGauge(CounterRates.class, "counter-series", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance.size();
+            }
+
+        });
+    }
+
+    // Parallel arrays indexed by slot, a hash of EMPTY marks a free slot
+    private long[] _series;
+    private double[] _values;
+    private long[] _times;
+    private double[] _results;
+    private int _size;
+    private long _lastSweep;
+
+    CounterRates() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public static CounterRates getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Gets the key of the raw counter a rate or delta is computed from
+     * @param key The item key
+     * @return The jmx[] key of the counter or null if the key isn't a rate or delta
+     */
+    public static String getSourceKey(String key) {
+        if (key.startsWith(RATE_KEY + "[")) {
+            return SOURCE_KEY + key.substring(RATE_KEY.length());
+        }
+        else if (key.startsWith(DELTA_KEY + "[")) {
+            return SOURCE_KEY + key.substring(DELTA_KEY.length());
+        }
+
+        return null;
+    }
+
+    /**
+     * Records the counter's current value and computes the rate or delta
+     * since the previous sample of the series
+     * @param target The target URL
+     * @param key The rate or delta item key
+     * @param counterValue The current value of the counter
+     * @return The rate per second or the delta as a plain decimal
+     * @throws ZabbixException When the counter isn't numeric or it's the first sample of the series
+     */
+    public String compute(String target, String key, String counterValue) throws ZabbixException {
+        double value;
+        try {
+            value = Double.parseDouble(counterValue.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new ZabbixException("cannot compute the rate of a non-numeric value: '%s'", counterValue);
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new ZabbixException("cannot compute the rate of a non-numeric value: '%s'", counterValue);
+        }
+
+        double result = update(hash(target, key), value, System.currentTimeMillis(), key.startsWith(RATE_KEY));
+        if (Double.isNaN(result)) {
+            throw new ZabbixException("no previous value of the counter yet, the first value is given by the next poll");
+        }
+        return HelperFunctionChest.toPlainString(BigDecimal.valueOf(result));
+    }
+
+    synchronized double update(long series, double value, long now, boolean rate) {
+        if (now - _lastSweep > SWEEP_INTERVAL) {
+            rebuild(_series.length, now);
+        }
+
+        int slot = findSlot(_series, series);
+        if (_series[slot] == EMPTY) {
+            if ((_size + 1) * 4 > _series.length * 3) {
+                // Drop the idle series before growing
+                rebuild(_series.length, now);
+                if ((_size + 1) * 2 > _series.length && _series.length < MAX_CAPACITY) {
+                    rebuild(_series.length * 2, now);
+                }
+                else if ((_size + 1) * 4 > _series.length * 3) {
+                    // Still full at the maximum capacity, start over rather than degrade
+                    allocate(_series.length);
+                }
+                slot = findSlot(_series, series);
+            }
+
+            // NaN until there's a previous sample to compare with
+            store(slot, series, value, now, Double.NaN);
+            _size++;
+            return Double.NaN;
+        }
+
+        long elapsed = now - _times[slot];
+        if (elapsed < MIN_ELAPSED) {
+            // Duplicate polls (i.e. two servers polling together) would
+            // otherwise compute the rate over a tiny interval
+            return _results[slot];
+        }
+
+        double delta = value - _values[slot];
+        if (delta < 0) {
+            // The counter was reset so it counted up from 0 since
+            delta = value;
+        }
+
+        double result = rate ? delta * 1000 / elapsed : delta;
+        store(slot, series, value, now, result);
+        return result;
+    }
+
+    synchronized int size() {
+        return _size;
+    }
+
+    private void store(int slot, long series, double value, long time, double result) {
+        _series[slot] = series;
+        _values[slot] = value;
+        _times[slot] = time;
+        _results[slot] = result;
+    }
+
+    private void allocate(int capacity) {
+        _series = new long[capacity];
+        _values = new double[capacity];
+        _times = new long[capacity];
+        _results = new double[capacity];
+        _size = 0;
+    }
+
+    // Copies the series that aren't idle into a new table, this
+    // is also how entries are removed from the open addressing table
+    private void rebuild(int capacity, long now) {
+        long[] series = _series;
+        double[] values = _values;
+        long[] times = _times;
+        double[] results = _results;
+
+        allocate(capacity);
+        for (int i = 0; i < series.length; i++) {
+            if (series[i] != EMPTY && now - times[i] <= IDLE_TIMEOUT) {
+                store(findSlot(_series, series[i]), series[i], values[i], times[i], results[i]);
+                _size++;
+            }
+        }
+
+        _lastSweep = now;
+    }
+
+    // Linear probing, the table is never full so there's always a free slot
+    private static int findSlot(long[] table, long series) {
+        int mask = table.length - 1;
+        int slot = (int) (series ^ (series >>> 32)) & mask;
+        while (table[slot] != EMPTY && table[slot] != series) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    // 64-bit FNV-1a of the target and key
+    static long hash(String target, String key) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, target);
+        hash = (hash ^ '\n') * FNV_PRIME;
+        hash = hash(hash, key);
+
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private static long hash(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+
+        return hash;
+    }
+}
@@ -21,8 +21,11 @@ package com.zabbix.gateway;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
+
 class HelperFunctionChest
 {
 	// Equivalent regex without unicode values: -?\\d.\\d+E[-+]?\\d+ 
@@ -51,6 +54,14 @@ class HelperFunctionChest
 						('\\' == inputByteArray[i + 1] || '.' == inputByteArray[i + 1]))
 					i++;
 			}
+			else if ('[' == inputByteArray[i])
+			{
+				// dots within a TabularData row index are part of the index
+				int close = closingBracketIndex(inputByteArray, i);
+
+				if (-1 != close)
+					i = close;
+			}
 			else if ('.' == inputByteArray[i])
 				return i;
 		}
@@ -58,6 +69,148 @@ class HelperFunctionChest
 		return -1;
 	}
 
+	/**
+	 * Gets the index where the TabularData row index of an attribute path
+	 * segment starts i.e. for "SystemProperties[java.version]" the index of '['.
+	 * @param segment An attribute path segment
+	 * @return The index of the opening bracket or -1 if the segment has no row index
+	 */
+	public static int rowIndexStart(String segment)
+	{
+		byte[] segmentByteArray = segment.getBytes();
+		int i, segmentLength = segmentByteArray.length;
+
+		for (i = 0; i < segmentLength; i++)
+		{
+			if ('\\' == segmentByteArray[i])
+			{
+				if (i + 1 < segmentLength &&
+						('\\' == segmentByteArray[i + 1] || '.' == segmentByteArray[i + 1]))
+					i++;
+			}
+			else if ('[' == segmentByteArray[i])
+				return -1 != closingBracketIndex(segmentByteArray, i) ? i : -1;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Gets the index where the TabularData row index at the start of an attribute
+	 * path ends i.e. for "[java.version].value" the index of ']'.
+	 * @param path An attribute path starting with a row index
+	 * @return The index of the closing bracket or -1 if the row index isn't closed
+	 */
+	public static int rowIndexEnd(String path)
+	{
+		return closingBracketIndex(path.getBytes(), 0);
+	}
+
+	// backslashes escape the next character within a row index i.e. "[a\,b\]]"
+	private static int closingBracketIndex(byte[] inputByteArray, int openingIndex)
+	{
+		for (int i = openingIndex + 1; i < inputByteArray.length; i++)
+		{
+			if ('\\' == inputByteArray[i])
+				i++;
+			else if (']' == inputByteArray[i])
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Splits an attribute path into its parts. Parts are separated by unescaped dots
+	 * and a TabularData row index in brackets is a part of its own e.g.
+	 * "SystemProperties[java.version].value" is split into "SystemProperties",
+	 * "[java.version]" and "value". Escaped dots and backslashes are unescaped
+	 * in the names.
+	 * @param path The attribute path
+	 * @return The parts of the path
+	 */
+	public static List<String> splitAttributePath(String path)
+	{
+		List<String> parts = new ArrayList<String>();
+
+		while (true)
+		{
+			int sep = separatorIndex(path);
+			String segment = -1 == sep ? path : path.substring(0, sep);
+
+			int bracket = rowIndexStart(segment);
+			if (-1 != bracket)
+			{
+				if (0 != bracket)
+					parts.add(unescapeUserInput(segment.substring(0, bracket)));
+				parts.add(segment.substring(bracket));
+			}
+			else
+				parts.add(unescapeUserInput(segment));
+
+			if (-1 == sep)
+				break;
+
+			path = path.substring(sep + 1);
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Gets the values of a TabularData row index i.e. for "[a,b]" the values "a" and "b".
+	 * A backslash escapes the next character so values may contain commas, brackets
+	 * and backslashes i.e. "[a\,b]" is the single value "a,b".
+	 * @param rowIndex The row index including the brackets
+	 * @return The unescaped index values
+	 */
+	public static String[] parseRowIndex(String rowIndex)
+	{
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		int end = rowIndex.length() - 1;
+
+		for (int i = 1; i < end; i++)
+		{
+			char c = rowIndex.charAt(i);
+
+			if ('\\' == c && i + 1 < end)
+				value.append(rowIndex.charAt(++i));
+			else if (',' == c)
+			{
+				values.add(value.toString());
+				value.setLength(0);
+			}
+			else
+				value.append(c);
+		}
+
+		values.add(value.toString());
+
+		return values.toArray(new String[values.size()]);
+	}
+
+	/**
+	 * Escapes a TabularData row index value so parseRowIndex() gives it back
+	 * @param value The index value
+	 * @return The value with its commas, brackets and backslashes escaped
+	 */
+	public static String escapeRowIndexValue(String value)
+	{
+		StringBuilder builder = new StringBuilder(value.length());
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+
+			if ('\\' == c || ',' == c || '[' == c || ']' == c)
+				builder.append('\\');
+			builder.append(c);
+		}
+
+		return builder.toString();
+	}
+
 	public static String unescapeUserInput(String input)
 	{
 		byte[] inputByteArray = input.getBytes(), outputByteArray;
@@ -114,6 +267,30 @@ class HelperFunctionChest
         return new BigDecimal(value).toPlainString();
     }
     
+    /**
+     * Formats a decimal without an exponent or trailing zeros
+     * @param value The decimal
+     * @return The plain string representation i.e. "1500" or "0.25"
+     */
+    public static String toPlainString(BigDecimal value) {
+        // stripTrailingZeros() doesn't strip the zeros of zero itself before Java 8
+        if (value.signum() == 0) {
+            return "0";
+        }
+
+        return value.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Hashes a password so requests can be told apart by their credentials
+     * without keeping the password in the clear
+     * @param password The password, may be null
+     * @return The hex SHA-256 of the password or an empty string when there's none
+     */
+    public static String hashPassword(String password) {
+        return password == null || password.isEmpty() ? "" : DigestUtils.sha256Hex(password);
+    }
+
     /**
      * Gets the message of the root cause exception
      * @param ex
@@ -19,6 +19,8 @@
 
 package com.zabbix.gateway;
 
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.Vector;
 
 import org.json.*;
@@ -85,7 +87,7 @@ abstract class ItemChecker
 		try
 		{
 			logger.debug("getting value for item '{}'", key);
-			String text = getStringValue(key);
+			String text = getItemValue(key);
 			logger.debug("received value '{}' for item '{}'", text, key);
 			value.put(JSON_TAG_VALUE, text);
 		}
@@ -106,6 +108,110 @@ abstract class ItemChecker
 		return value;
 	}
 	
+	private String getItemValue(String key) throws Exception
+	{
+		if (AttributeSampler.isSampleKey(key))
+			return AttributeSampler.getInstance().getSummary(this, key);
+
+		String sourceKey = CounterRates.getSourceKey(key);
+
+		if (null == sourceKey)
+			return getStringValue(key);
+
+		// rates and deltas are computed from the value of the raw counter
+		if (null == getTarget())
+			throw new ZabbixException("key ID '%s' is not supported", new ZabbixItem(key).getKeyId());
+
+		return CounterRates.getInstance().compute(getTarget(), key, getStringValue(sourceKey));
+	}
+
+	/**
+	 * Gets the keys whose values need to be read from the target, that is the
+	 * requested keys with rates and deltas replaced by the counters they're computed from.
+	 * @return The keys to read
+	 */
+	protected Collection<String> getReadKeys()
+	{
+		Collection<String> readKeys = new LinkedHashSet<String>();
+
+		for (String key : keys)
+		{
+			// sampled values are read in the background
+			if (AttributeSampler.isSampleKey(key))
+				continue;
+
+			String sourceKey = CounterRates.getSourceKey(key);
+			readKeys.add(null == sourceKey ? key : sourceKey);
+		}
+
+		return readKeys;
+	}
+
+	/**
+	 * Gets the target the values are read from, which identifies the series
+	 * of samples that rates and deltas are computed from.
+	 * @return The target URL or null if the checker doesn't read from a target
+	 */
+	protected String getTarget()
+	{
+		return null;
+	}
+
+	/**
+	 * Gets the credentials the values are read with, which tell apart the
+	 * series of samples that different users take of the same target.
+	 * @return The user name and the hash of the password or an empty string
+	 */
+	protected String getCredentials()
+	{
+		return "";
+	}
+
+	/**
+	 * Creates a checker for reading a single key from the same target
+	 * repeatedly in the background, see sampleValue().
+	 * @param key The key to read
+	 * @return The checker
+	 * @throws Exception When the checker doesn't support sampling
+	 */
+	protected ItemChecker createSampleChecker(String key) throws Exception
+	{
+		throw new ZabbixException("sampling is not supported");
+	}
+
+	/**
+	 * Reads the current value of the key for sampling. Unlike the values read for
+	 * a request, the connection to the target is kept between the samples.
+	 * @param key The key to read
+	 * @return The value
+	 * @throws Exception When the value cannot be read
+	 */
+	protected String sampleValue(String key) throws Exception
+	{
+		throw new ZabbixException("sampling is not supported");
+	}
+
+	/**
+	 * Releases the connection kept for sampling
+	 */
+	protected void closeSampling()
+	{
+	}
+
+	/**
+	 * Builds a request for the same target as this checker's request
+	 * @param key The only key of the request
+	 * @return The request
+	 * @throws JSONException
+	 */
+	protected JSONObject buildRequest(String key) throws JSONException
+	{
+		JSONObject keyRequest = new JSONObject(request, JSONObject.getNames(request));
+		keyRequest.put(JSON_TAG_KEYS, new JSONArray().put(key));
+
+		return keyRequest;
+	}
+
 	/**
 	 * Gets the total number of items that this ItemChecker will retrieve.
 	 * @return
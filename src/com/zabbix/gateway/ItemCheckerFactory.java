@@ -0,0 +1,102 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.zabbix.security.SecurityUtils;
+
+/**
+ * Creates the ItemChecker that should fulfill a Zabbix request. This is
+ * shared between the socket processors and the background tasks
+ * (i.e. prefetching) that need to query a target the same way
+ * a Zabbix poller would.
+ *
+ */
+class ItemCheckerFactory {
+
+    private final JmxConfigurationManager _jmxManager;
+    private final SecurityUtils _securityUtils;
+
+    public ItemCheckerFactory(JmxConfigurationManager jmxManager, SecurityUtils securityUtils) {
+        _jmxManager = jmxManager;
+        _securityUtils = securityUtils;
+    }
+
+    /**
+     * Tests if the request is for JMX items rather than
+     * the gateway's internal items.
+     * @param request The Zabbix request
+     * @return True if this is a JMX request
+     */
+    public static boolean isJmxRequest(JSONObject request) {
+        return ItemChecker.JSON_REQUEST_JMX.equals(request.optString(ItemChecker.JSON_TAG_REQUEST));
+    }
+
+    /**
+     * Gets the JMX Configuration for the host the request is for
+     * @param request A JMX request
+     * @return The Host's JMX Configuration
+     * @throws JSONException When the connection information is missing
+     */
+    public JmxConfiguration getConfig(JSONObject request) throws JSONException {
+        return _jmxManager.getConfig(request.getString(ItemChecker.JSON_TAG_CONN),
+                request.getInt(ItemChecker.JSON_TAG_PORT));
+    }
+
+    /**
+     * Creates the ItemChecker for the request
+     * @param request The Zabbix request
+     * @return The ItemChecker that will fulfill the request
+     * @throws ZabbixException When the request is not supported
+     * @throws JSONException When the request is malformed
+     */
+    public ItemChecker createChecker(JSONObject request) throws ZabbixException, JSONException {
+        String requestType = request.getString(ItemChecker.JSON_TAG_REQUEST);
+
+        if (requestType.equals(ItemChecker.JSON_REQUEST_INTERNAL)) {
+            return new InternalItemChecker(request);
+        }
+        else if (requestType.equals(ItemChecker.JSON_REQUEST_JMX)) {
+            return createChecker(request, getConfig(request));
+        }
+        else {
+            throw new ZabbixException("bad request tag value: '%s'", requestType);
+        }
+    }
+
+    /**
+     * Creates the ItemChecker for a JMX request given the
+     * already resolved configuration of the host.
+     * @param request The Zabbix request
+     * @param jmxConfig The Host's JMX Configuration
+     * @return The ItemChecker that will fulfill the request
+     * @throws ZabbixException
+     */
+    public ItemChecker createChecker(JSONObject request, JmxConfiguration jmxConfig) throws ZabbixException {
+        if (jmxConfig.getProtocol().startsWith("http") || jmxConfig.isProxied()) {
+            return new JolokiaChecker(request, jmxConfig, _securityUtils);
+        }
+        else {
+            return new JMXItemChecker(request, jmxConfig, _securityUtils);
+        }
+    }
+}
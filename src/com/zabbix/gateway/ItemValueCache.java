@@ -0,0 +1,277 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Caches item values that rarely or never change (i.e. Runtime.VmVendor or
+ * OperatingSystem.AvailableProcessors) so they aren't read remotely every poll.
+ * How long a value may be cached is configured per key pattern using the format:
+ * <pre>
+ * &lt;key pattern&gt;=&lt;seconds|forever&gt;;&lt;key pattern&gt;=&lt;seconds|forever&gt;...
+ * </pre>
+ * Where the key pattern may use * as a wildcard. The first matching pattern
+ * wins. Values cached "forever" are kept until the target restarts, which is
+ * detected by a change of the target's Runtime.StartTime. All the cached values
+ * of a target are dropped when it restarts.
+ *
+ */
+class ItemValueCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ItemValueCache.class);
+
+    /** The attribute which identifies a particular run of the target JVM */
+    static final String START_TIME_OBJECT = "java.lang:type=Runtime";
+    static final String START_TIME_ATTRIBUTE = "StartTime";
+    static final String START_TIME_KEY = "jmx[" + START_TIME_OBJECT + "," + START_TIME_ATTRIBUTE + "]";
+
+    static final String TTL_FOREVER = "forever";
+    private static final long FOREVER = -1;
+    private static final long NOT_CACHED = 0;
+    private static final int MAX_MATCHED_KEYS = 10000;
+
+    private static final Counter _hits = Metrics.newCounter(ItemValueCache.class, "value-cache-hits");
+    private static final Counter _invalidations = Metrics.newCounter(ItemValueCache.class, "value-cache-invalidations");
+
+    private static volatile ItemValueCache _instance = new ItemValueCache("");
+
+    private final List<TtlRule> _rules = new ArrayList<TtlRule>();
+    private final ConcurrentMap<String, Long> _keyTtls = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, TargetValues> _targets = new ConcurrentHashMap<String, TargetValues>();
+
+    /**
+     * @param rules The TTL rules in the format &lt;key pattern&gt;=&lt;seconds|forever&gt;;...
+     */
+    ItemValueCache(String rules) {
+        for (String rule : rules.split(";")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+
+            // Object names contain '=' too so the TTL follows the last one
+            int separator = rule.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("bad value cache rule, expected <key pattern>=<seconds|forever>: '" + rule + "'");
+            }
+
+            String ttlText = rule.substring(separator + 1).trim();
+            long ttl;
+            if (ttlText.equalsIgnoreCase(TTL_FOREVER)) {
+                ttl = FOREVER;
+            }
+            else {
+                ttl = TimeUnit.SECONDS.toMillis(Long.parseLong(ttlText));
+            }
+
+            _rules.add(new TtlRule(rule.substring(0, separator).trim(), ttl));
+        }
+    }
+
+    public static ItemValueCache getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Replaces the cache with one using the given TTL rules
+     * @param rules The TTL rules in the format &lt;key pattern&gt;=&lt;seconds|forever&gt;;...
+     */
+    public static void configure(String rules) {
+        _instance = new ItemValueCache(rules);
+    }
+
+    /**
+     * Tests if the value of the key may be cached
+     * @param key The item key
+     * @return True if a TTL was configured for the key
+     */
+    public boolean isCacheable(String key) {
+        return getTtl(key) != NOT_CACHED;
+    }
+
+    /**
+     * Tests if any of the keys may be cached
+     * @param keys The item keys
+     * @return True if a TTL was configured for any of the keys
+     */
+    public boolean isAnyCacheable(Iterable<String> keys) {
+        if (_rules.isEmpty()) {
+            return false;
+        }
+
+        for (String key : keys) {
+            if (isCacheable(key)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the cached value if it's still fresh. The target must have been validated
+     * for the current request before values are taken from the cache.
+     * @param target The target URL
+     * @param key The item key
+     * @return The value or null if it isn't cached or isn't fresh
+     */
+    public String get(String target, String key) {
+        TargetValues values = _targets.get(target);
+        if (values == null) {
+            return null;
+        }
+
+        CachedValue cached = values.values.get(key);
+        if (cached == null) {
+            return null;
+        }
+
+        if (cached.expiresAt != FOREVER && cached.expiresAt < System.currentTimeMillis()) {
+            values.values.remove(key, cached);
+            return null;
+        }
+
+        _hits.inc();
+        return cached.value;
+    }
+
+    /**
+     * Caches the value if a TTL was configured for the key
+     * @param target The target URL
+     * @param key The item key
+     * @param value The value read from the target
+     */
+    public void put(String target, String key, String value) {
+        long ttl = getTtl(key);
+        if (ttl == NOT_CACHED) {
+            return;
+        }
+
+        TargetValues values = _targets.get(target);
+        // The target must have been validated, otherwise there's
+        // no way to tell when it restarts
+        if (values == null) {
+            return;
+        }
+
+        values.values.put(key, new CachedValue(value, ttl == FOREVER ? FOREVER : System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Checks the target's start time against the one the cached values were read
+     * with and drops the cached values if the target restarted.
+     * @param target The target URL
+     * @param startTime The target's current Runtime.StartTime or null if it couldn't be read
+     * @return True if the cached values of the target are still valid
+     */
+    public boolean validate(String target, String startTime) {
+        TargetValues values = _targets.get(target);
+        if (values != null && values.startTime.equals(startTime)) {
+            return true;
+        }
+
+        if (values != null) {
+            logger.debug("{} restarted, dropping its cached values", target);
+            _invalidations.inc();
+        }
+
+        if (startTime == null) {
+            _targets.remove(target);
+        }
+        else {
+            _targets.put(target, new TargetValues(startTime));
+        }
+
+        return false;
+    }
+
+    private long getTtl(String key) {
+        if (_rules.isEmpty()) {
+            return NOT_CACHED;
+        }
+
+        Long ttl = _keyTtls.get(key);
+        if (ttl == null) {
+            ttl = NOT_CACHED;
+            for (TtlRule rule : _rules) {
+                if (rule.pattern.matcher(key).matches()) {
+                    ttl = rule.ttl;
+                    break;
+                }
+            }
+
+            if (_keyTtls.size() > MAX_MATCHED_KEYS) {
+                _keyTtls.clear();
+            }
+            _keyTtls.put(key, ttl);
+        }
+
+        return ttl;
+    }
+
+    private static class TtlRule {
+        final Pattern pattern;
+        final long ttl;
+
+        TtlRule(String keyPattern, long ttl) {
+            StringBuilder regex = new StringBuilder();
+            for (String literal : keyPattern.split("\\*", -1)) {
+                if (regex.length() > 0) {
+                    regex.append(".*");
+                }
+                regex.append(Pattern.quote(literal));
+            }
+
+            this.pattern = Pattern.compile(regex.toString());
+            this.ttl = ttl;
+        }
+    }
+
+    private static class TargetValues {
+        final String startTime;
+        final ConcurrentMap<String, CachedValue> values = new ConcurrentHashMap<String, CachedValue>();
+
+        TargetValues(String startTime) {
+            this.startTime = startTime;
+        }
+    }
+
+    private static class CachedValue {
+        final String value;
+        final long expiresAt;
+
+        CachedValue(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -20,18 +20,30 @@
 package com.zabbix.gateway;
 
 import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
-import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularType;
 import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 import org.json.*;
@@ -49,12 +61,22 @@ class JMXItemChecker extends ItemChecker
 	// Timer to track time spent making remote requests to the remote JVM
     private static final Timer _requestTime = Metrics.newTimer(JMXItemChecker.class, "remote-request-time", TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
 
+	// typical rendered widths of array elements, used to presize the output
+	private static final int ESTIMATED_INTEGER_WIDTH = 6;
+	private static final int ESTIMATED_DECIMAL_WIDTH = 12;
+	private static final int MAX_PRESIZED_CAPACITY = 16 * 1024 * 1024;
+
 	private final JMXServiceURL url;
 	private JMXConnector jmxc;
 	private TimedMBeanServerConnection mbsc;
+	private final HashMap<String, Object> sharedAttributes = new HashMap<String, Object>();
+	private final HashMap<ObjectName, Map<ObjectName, AttributeList>> sharedPatterns = new HashMap<ObjectName, Map<ObjectName, AttributeList>>();
 
 	private final String username;
 	private final String password;
+	private final JmxConfiguration config;
+	private final SecurityUtils securityUtils;
+	private JmxConnectionPool.Lease sampleLease;
 
 	protected JMXItemChecker(JSONObject request, JmxConfiguration config) throws ZabbixException {
 		this(request, config, null);
@@ -64,6 +86,9 @@ class JMXItemChecker extends ItemChecker
 			SecurityUtils securityUtils) throws ZabbixException {
 		super(request);
 
+		this.config = config;
+		this.securityUtils = securityUtils;
+
 		try
 		{
 			url = new JMXServiceURL(config.getUrl());
@@ -91,7 +116,8 @@ class JMXItemChecker extends ItemChecker
 	@Override
 	public JSONArray getValues() throws ZabbixException
 	{
-		JSONArray values = new JSONArray();
+		JSONArray values;
+		boolean readTimedOut = false;
 
 		try
 		{
@@ -104,15 +130,40 @@ class JMXItemChecker extends ItemChecker
 			}
 
 			logger.debug("connecting to JMX agent at {}", url);
-			jmxc = JMXConnectorFactory.connect(url, env);
+			TargetTimeouts timeouts = TargetTimeouts.getInstance();
+			long timeout = timeouts.getTimeout(url.toString(), config);
+			long connectStart = System.currentTimeMillis();
+			try
+			{
+				jmxc = JmxConnectionPool.connect(url, env, timeout);
+			}
+			catch (SocketTimeoutException e)
+			{
+				timeouts.record(url.toString(), System.currentTimeMillis() - connectStart);
+				throw e;
+			}
+			timeouts.record(url.toString(), System.currentTimeMillis() - connectStart);
 			// Wrap the MBeanServerConnection so we can track the performance
 			mbsc = new TimedMBeanServerConnection(jmxc.getMBeanServerConnection());
 
-			for (String key : keys) {
-				values.put(getJSONValue(key));
+			// The latencies are those of connecting, the reads take as long as the items ask for
+			// so they're bound by the host's timeout, the connection is closed when they exceed it
+			try
+			{
+				values = JmxConnectionPool.read(new Callable<JSONArray>()
+				{
+					@Override
+					public JSONArray call() throws Exception
+					{
+						return readValues();
+					}
+				}, url, timeouts.getHostTimeout(config));
+			}
+			catch (SocketTimeoutException e)
+			{
+				readTimedOut = true;
+				throw e;
 			}
-			
-			_requestTime.update(mbsc.getTotalNetworkTime(), TimeUnit.NANOSECONDS);
 		}
 		catch (Exception e)
 		{
@@ -123,14 +174,149 @@ class JMXItemChecker extends ItemChecker
 			try { if (null != jmxc) jmxc.close(); } catch (java.io.IOException exception) { }
 
 			jmxc = null;
-			mbsc = null;
+			// The abandoned read may still be using these
+			if (!readTimedOut)
+			{
+				mbsc = null;
+				sharedAttributes.clear();
+				sharedPatterns.clear();
+			}
 		}
 
 		return values;
 	}
 
+	private JSONArray readValues() throws Exception
+	{
+		JSONArray values = new JSONArray();
+
+		// Cached values are only valid for the run of the target JVM they were read from
+		ItemValueCache valueCache = ItemValueCache.getInstance();
+		if (valueCache.isAnyCacheable(keys))
+			valueCache.validate(url.toString(), readStartTime());
+
+		for (String key : keys) {
+			values.put(getJSONValue(key));
+		}
+
+		_requestTime.update(mbsc.getTotalNetworkTime(), TimeUnit.NANOSECONDS);
+
+		return values;
+	}
+
+	@Override
+	protected String getTarget()
+	{
+		return url.toString();
+	}
+
+	@Override
+	protected String getCredentials()
+	{
+		return null == username ? "" : username + "|" + HelperFunctionChest.hashPassword(password);
+	}
+
 	@Override
 	protected String getStringValue(String key) throws Exception
+	{
+		ItemValueCache valueCache = ItemValueCache.getInstance();
+		String value = valueCache.get(url.toString(), key);
+
+		if (null != value)
+		{
+			logger.trace("using cached value for '{}'", key);
+			return value;
+		}
+
+		value = coalescedStringValue(key);
+		valueCache.put(url.toString(), key, value);
+		return value;
+	}
+
+	@Override
+	protected ItemChecker createSampleChecker(String key) throws Exception
+	{
+		return new JMXItemChecker(buildRequest(key), config, securityUtils);
+	}
+
+	@Override
+	protected String sampleValue(String key) throws Exception
+	{
+		if (null == sampleLease)
+			sampleLease = JmxConnectionPool.getInstance().lease(url, username, password);
+
+		try
+		{
+			mbsc = new TimedMBeanServerConnection(sampleLease.getConnection());
+
+			return readStringValue(key);
+		}
+		catch (java.io.IOException e)
+		{
+			// reconnect on the next sample
+			sampleLease.invalidate();
+			throw e;
+		}
+		finally
+		{
+			mbsc = null;
+			sharedAttributes.clear();
+			sharedPatterns.clear();
+		}
+	}
+
+	@Override
+	protected void closeSampling()
+	{
+		if (null != sampleLease)
+			sampleLease.release();
+
+		sampleLease = null;
+	}
+
+	private String coalescedStringValue(String key) throws Exception
+	{
+		// Share the read with any identical request for this target that's in flight
+		ReadCoalescer.Flight flight = ReadCoalescer.getInstance().begin(url.toString(), username, password, key);
+
+		if (!flight.isLeader())
+		{
+			String value = flight.await();
+
+			if (null != value)
+				return value;
+
+			logger.debug("timed out waiting on coalesced read of '{}', reading it directly", key);
+			return readStringValue(key);
+		}
+
+		try
+		{
+			String value = readStringValue(key);
+			flight.complete(value);
+			return value;
+		}
+		catch (Exception e)
+		{
+			flight.fail(e);
+			throw e;
+		}
+	}
+
+	private String readStartTime()
+	{
+		try
+		{
+			return mbsc.getAttribute(new ObjectName(ItemValueCache.START_TIME_OBJECT), ItemValueCache.START_TIME_ATTRIBUTE).toString();
+		}
+		catch (Exception e)
+		{
+			logger.debug("unable to read the start time of {} - {}", url, e.getMessage());
+			return null;
+		}
+	}
+
+	private String readStringValue(String key) throws Exception
 	{
 		ZabbixItem item = new ZabbixItem(key);
 
@@ -140,37 +326,66 @@ class JMXItemChecker extends ItemChecker
 				throw new ZabbixException("required key format: jmx[<object name>,<attribute name>]");
 
 			ObjectName objectName = new ObjectName(item.getArgument(1));
-			String attributeName = item.getArgument(2);
-			String realAttributeName;
-			String fieldNames = "";
-			int sep;
+			String[] attributePath = splitAttributeName(item.getArgument(2));
+			String realAttributeName = attributePath[0];
+			String fieldNames = attributePath[1];
 
-			//
-			// Attribute name and composite data field names are separated by dots. On the other hand the
-			// name may contain a dot too. In this case user needs to escape it with a backslash. Also the
-			// backslash symbols in the name must be escaped. So a real separator is unescaped dot and
-			// separatorIndex() is used to locate it.
-			//
+			logger.trace("attributeName:'{}'", realAttributeName);
+			logger.trace("fieldNames:'{}'", fieldNames);
 
-			sep = HelperFunctionChest.separatorIndex(attributeName);
+			// composite and tabular attributes are fetched once for all the items drilling into them
+			return getPrimitiveAttributeValue(getAttribute(objectName, realAttributeName, !fieldNames.equals("")), fieldNames);
+		}
+		else if (ValueAggregator.isAggregateKey(item.getKeyId()))
+		{
+			if (2 != item.getArgumentCount())
+				throw new ZabbixException("required key format: %s[<object name pattern>,<attribute name>]", item.getKeyId());
 
-			if (-1 != sep)
-			{
-				logger.trace("'{}' contains composite data", attributeName);
+			ObjectName pattern = new ObjectName(item.getArgument(1));
+			String[] attributePath = splitAttributeName(item.getArgument(2));
+			ValueAggregator aggregator = new ValueAggregator(item.getKeyId());
 
-				realAttributeName = attributeName.substring(0, sep);
-				fieldNames = attributeName.substring(sep + 1);
+			for (AttributeList attributes : getPatternAttributes(pattern).values())
+			{
+				for (Attribute attribute : attributes.asList())
+				{
+					if (attribute.getName().equals(attributePath[0]) && null != attribute.getValue())
+						aggregator.add(getPrimitiveAttributeValue(attribute.getValue(), attributePath[1]));
+				}
 			}
-			else
-				realAttributeName = attributeName;
 
-			// unescape possible dots or backslashes that were escaped by user
-			realAttributeName = HelperFunctionChest.unescapeUserInput(realAttributeName);
+			return aggregator.getResult();
+		}
+		else if (NotificationSubscriptions.isNotificationKey(item.getKeyId()))
+		{
+			return NotificationSubscriptions.getInstance().getValue(url, username, password, item);
+		}
+		else if (item.getKeyId().equals("jmx.get"))
+		{
+			if (item.getArgumentCount() < 1)
+				throw new ZabbixException("required key format: jmx.get[<object name or pattern>,<attribute name>,...]");
 
-			logger.trace("attributeName:'{}'", realAttributeName);
-			logger.trace("fieldNames:'{}'", fieldNames);
+			ObjectName objectName = new ObjectName(item.getArgument(1));
+			String[] attributeNames = getRequestedAttributes(item);
+
+			if (!objectName.isPattern())
+				return readAttributesAsJSON(objectName, attributeNames).toString();
+
+			JSONObject mbeans = new JSONObject();
+
+			for (ObjectName name : mbsc.queryNames(objectName, null))
+			{
+				try
+				{
+					mbeans.put(name.getCanonicalName(), readAttributesAsJSON(name, attributeNames));
+				}
+				catch (InstanceNotFoundException e)
+				{
+					logger.trace("{} was unregistered while reading it", name);
+				}
+			}
 
-			return getPrimitiveAttributeValue(mbsc.getAttribute(objectName, realAttributeName), fieldNames);
+			return mbeans.toString();
 		}
 		else if (item.getKeyId().equals("jmx.discovery"))
 		{
@@ -247,6 +462,33 @@ class JMXItemChecker extends ItemChecker
 				throw new ZabbixException("data object type is not primitive: %s" + dataObject.getClass());
 		}
 
+		if (dataObject instanceof TabularData && fieldNames.startsWith("["))
+		{
+			logger.trace("'{}' contains tabular data", dataObject);
+
+			TabularData table = (TabularData)dataObject;
+
+			int close = HelperFunctionChest.rowIndexEnd(fieldNames);
+			String rowIndex = fieldNames.substring(0, close + 1);
+			String newFieldNames = fieldNames.substring(close + 1);
+
+			if (newFieldNames.startsWith("."))
+				newFieldNames = newFieldNames.substring(1);
+
+			// look the row up directly by its index rather than going through the table
+			CompositeData row = table.get(buildRowKey(table.getTabularType(), HelperFunctionChest.parseRowIndex(rowIndex)));
+
+			if (null == row)
+				throw new ZabbixException("no row with index %s", rowIndex);
+
+			// rows of MXBean maps are key/value pairs, the value is used unless a field was given
+			if (newFieldNames.equals("") && row.getCompositeType().keySet().size() == 2 &&
+					row.containsKey("key") && row.containsKey("value"))
+				return getPrimitiveAttributeValue(row.get("value"), newFieldNames);
+
+			return getPrimitiveAttributeValue(row, newFieldNames);
+		}
+
 		if (dataObject instanceof CompositeData)
 		{
 			logger.trace("'{}' contains composite data", dataObject);
@@ -266,6 +508,14 @@ class JMXItemChecker extends ItemChecker
 			else
 				dataObjectName = fieldNames;
 
+			int bracket = HelperFunctionChest.rowIndexStart(dataObjectName);
+
+			if (-1 != bracket)
+			{
+				newFieldNames = dataObjectName.substring(bracket) + (newFieldNames.equals("") ? "" : "." + newFieldNames);
+				dataObjectName = dataObjectName.substring(0, bracket);
+			}
+
 			// unescape possible dots or backslashes that were escaped by user
 			dataObjectName = HelperFunctionChest.unescapeUserInput(dataObjectName);
 
@@ -302,7 +552,19 @@ class JMXItemChecker extends ItemChecker
 			for (String key : comp.getCompositeType().keySet())
 				findPrimitiveAttributes(counters, name, descr, attrPath + "." + key, comp.get(key));
 		}
-		else if (attribute instanceof TabularDataSupport || attribute.getClass().isArray())
+		else if (attribute instanceof TabularData)
+		{
+			logger.trace("found attribute of a tabular type: {}", attribute.getClass());
+
+			TabularData table = (TabularData)attribute;
+
+			for (Object row : table.values())
+			{
+				CompositeData rowData = (CompositeData)row;
+				findPrimitiveAttributes(counters, name, descr, attrPath + buildRowIndex(table.calculateIndex(rowData)), rowData);
+			}
+		}
+		else if (attribute.getClass().isArray())
 		{
 			logger.trace("found attribute of a known, unsupported type: {}", attribute.getClass());
 		}
@@ -310,6 +572,267 @@ class JMXItemChecker extends ItemChecker
 			logger.trace("found attribute of an unknown, unsupported type: {}", attribute.getClass());
 	}
 
+	private String[] splitAttributeName(String attributeName)
+	{
+		String realAttributeName;
+		String fieldNames = "";
+		int sep;
+
+		//
+		// Attribute name and composite data field names are separated by dots. On the other hand the
+		// name may contain a dot too. In this case user needs to escape it with a backslash. Also the
+		// backslash symbols in the name must be escaped. So a real separator is unescaped dot and
+		// separatorIndex() is used to locate it.
+		//
+
+		sep = HelperFunctionChest.separatorIndex(attributeName);
+
+		if (-1 != sep)
+		{
+			logger.trace("'{}' contains composite data", attributeName);
+
+			realAttributeName = attributeName.substring(0, sep);
+			fieldNames = attributeName.substring(sep + 1);
+		}
+		else
+			realAttributeName = attributeName;
+
+		// a TabularData row index may directly follow the attribute name
+		int bracket = HelperFunctionChest.rowIndexStart(realAttributeName);
+
+		if (-1 != bracket)
+		{
+			fieldNames = realAttributeName.substring(bracket) + (fieldNames.equals("") ? "" : "." + fieldNames);
+			realAttributeName = realAttributeName.substring(0, bracket);
+		}
+
+		// unescape possible dots or backslashes that were escaped by user
+		return new String[] {HelperFunctionChest.unescapeUserInput(realAttributeName), fieldNames};
+	}
+
+	private String[] getRequestedAttributes(ZabbixItem item)
+	{
+		ArrayList<String> attributeNames = new ArrayList<String>();
+
+		// the attributes may be given as separate arguments or as one quoted list
+		for (int i = 2; i <= item.getArgumentCount(); i++)
+		{
+			for (String attributeName : item.getArgument(i).split(","))
+			{
+				if (0 != attributeName.trim().length())
+					attributeNames.add(attributeName.trim());
+			}
+		}
+
+		return attributeNames.isEmpty() ? null : attributeNames.toArray(new String[attributeNames.size()]);
+	}
+
+	private JSONObject readAttributesAsJSON(ObjectName name, String[] attributeNames) throws Exception
+	{
+		// all the readable attributes are returned when none were requested
+		if (null == attributeNames)
+		{
+			ArrayList<String> readableNames = new ArrayList<String>();
+
+			for (MBeanAttributeInfo attrInfo : mbsc.getMBeanInfo(name).getAttributes())
+			{
+				if (attrInfo.isReadable())
+					readableNames.add(attrInfo.getName());
+			}
+
+			attributeNames = readableNames.toArray(new String[readableNames.size()]);
+		}
+
+		JSONObject values = new JSONObject();
+
+		for (Attribute attribute : mbsc.getAttributes(name, attributeNames).asList())
+			values.put(attribute.getName(), toJSONValue(attribute.getValue()));
+
+		return values;
+	}
+
+	private Object toJSONValue(Object value) throws JSONException
+	{
+		if (null == value)
+			return JSONObject.NULL;
+		else if (value instanceof Double || value instanceof Float)
+		{
+			double number = ((Number)value).doubleValue();
+
+			// JSON has no representation for these
+			return Double.isNaN(number) || Double.isInfinite(number) ? value.toString() : value;
+		}
+		else if (value instanceof Number || value instanceof Boolean)
+			return value;
+		else if (value instanceof CompositeData)
+		{
+			CompositeData comp = (CompositeData)value;
+			JSONObject object = new JSONObject();
+
+			for (String key : comp.getCompositeType().keySet())
+				object.put(key, toJSONValue(comp.get(key)));
+
+			return object;
+		}
+		else if (value instanceof TabularData)
+		{
+			TabularData table = (TabularData)value;
+			Set<String> rowKeys = table.getTabularType().getRowType().keySet();
+
+			// MXBean maps are returned as objects, other tables as arrays of rows
+			if (2 == rowKeys.size() && rowKeys.contains("key") && rowKeys.contains("value"))
+			{
+				JSONObject object = new JSONObject();
+
+				for (Object row : table.values())
+					object.put(String.valueOf(((CompositeData)row).get("key")), toJSONValue(((CompositeData)row).get("value")));
+
+				return object;
+			}
+
+			JSONArray rows = new JSONArray();
+
+			for (Object row : table.values())
+				rows.put(toJSONValue(row));
+
+			return rows;
+		}
+		else if (value.getClass().isArray())
+		{
+			JSONArray array = new JSONArray();
+
+			for (int i = 0; i < Array.getLength(value); i++)
+				array.put(toJSONValue(Array.get(value, i)));
+
+			return array;
+		}
+		else
+			return value.toString();
+	}
+
+	private Map<ObjectName, AttributeList> getPatternAttributes(ObjectName pattern) throws Exception
+	{
+		Map<ObjectName, AttributeList> patternAttributes = sharedPatterns.get(pattern);
+
+		if (null != patternAttributes)
+			return patternAttributes;
+
+		// all the aggregate items of the request over the same pattern share one query,
+		// so collect the attributes that any of them needs
+		Set<String> attributeNames = new LinkedHashSet<String>();
+
+		for (String key : keys)
+		{
+			try
+			{
+				ZabbixItem item = new ZabbixItem(key);
+
+				if (ValueAggregator.isAggregateKey(item.getKeyId()) && 2 == item.getArgumentCount() &&
+						pattern.equals(new ObjectName(item.getArgument(1))))
+					attributeNames.add(splitAttributeName(item.getArgument(2))[0]);
+			}
+			catch (Exception e)
+			{
+				// a malformed key is reported when its own value is read
+			}
+		}
+
+		String[] names = attributeNames.toArray(new String[attributeNames.size()]);
+		patternAttributes = new LinkedHashMap<ObjectName, AttributeList>();
+
+		for (ObjectName name : mbsc.queryNames(pattern, null))
+		{
+			try
+			{
+				patternAttributes.put(name, mbsc.getAttributes(name, names));
+			}
+			catch (InstanceNotFoundException e)
+			{
+				logger.trace("{} was unregistered while aggregating", name);
+			}
+		}
+
+		sharedPatterns.put(pattern, patternAttributes);
+
+		return patternAttributes;
+	}
+
+	private Object getAttribute(ObjectName objectName, String attributeName, boolean shared) throws Exception
+	{
+		if (!shared)
+			return mbsc.getAttribute(objectName, attributeName);
+
+		String attributeKey = objectName.getCanonicalName() + "," + attributeName;
+		Object value = sharedAttributes.get(attributeKey);
+
+		if (null == value)
+		{
+			value = mbsc.getAttribute(objectName, attributeName);
+			sharedAttributes.put(attributeKey, value);
+		}
+
+		return value;
+	}
+
+	private Object[] buildRowKey(TabularType tabularType, String[] indexValues) throws ZabbixException
+	{
+		List<String> indexNames = tabularType.getIndexNames();
+
+		if (indexNames.size() != indexValues.length)
+			throw new ZabbixException("the row index requires %d values: %s", indexNames.size(), indexNames);
+
+		Object[] rowKey = new Object[indexValues.length];
+
+		for (int i = 0; i < indexValues.length; i++)
+			rowKey[i] = toIndexValue(tabularType.getRowType().getType(indexNames.get(i)), indexValues[i]);
+
+		return rowKey;
+	}
+
+	private Object toIndexValue(OpenType<?> type, String text) throws ZabbixException
+	{
+		String className = type.getClassName();
+
+		if (className.equals(String.class.getName()))
+			return text;
+		else if (className.equals(Integer.class.getName()))
+			return Integer.valueOf(text);
+		else if (className.equals(Long.class.getName()))
+			return Long.valueOf(text);
+		else if (className.equals(Short.class.getName()))
+			return Short.valueOf(text);
+		else if (className.equals(Byte.class.getName()))
+			return Byte.valueOf(text);
+		else if (className.equals(Boolean.class.getName()))
+			return Boolean.valueOf(text);
+		else if (className.equals(Double.class.getName()))
+			return Double.valueOf(text);
+		else if (className.equals(Float.class.getName()))
+			return Float.valueOf(text);
+		else if (className.equals(Character.class.getName()) && 1 == text.length())
+			return text.charAt(0);
+		else if (className.equals(BigDecimal.class.getName()))
+			return new BigDecimal(text);
+		else if (className.equals(BigInteger.class.getName()))
+			return new BigInteger(text);
+		else
+			throw new ZabbixException("unsupported row index type: %s", className);
+	}
+
+	private String buildRowIndex(Object[] indexValues)
+	{
+		StringBuilder builder = new StringBuilder("[");
+
+		for (Object indexValue : indexValues)
+		{
+			if (builder.length() > 1)
+				builder.append(',');
+			builder.append(HelperFunctionChest.escapeRowIndexValue(String.valueOf(indexValue)));
+		}
+
+		return builder.append(']').toString();
+	}
+
 	private boolean isPrimitiveAttributeType(Class<?> clazz)
 	{
 		Class<?>[] clazzez = {Boolean.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, String.class};
@@ -334,31 +857,91 @@ class JMXItemChecker extends ItemChecker
         }
 	}
 	
-	private String handleArray(Object dataArray) {
-		StringBuilder builder = new StringBuilder();
-		
-		Object[] castArray;
-		if (dataArray.getClass().getComponentType().isPrimitive()) {
-			int count = Array.getLength(dataArray);
-			castArray = new Object[count];
+	static String handleArray(Object dataArray)
+	{
+		StringBuilder builder;
 
-		    for(int i = 0; i < count; i++){
-		        castArray[i] = Array.get(dataArray, i);          
-		    }   
+		// primitive arrays are rendered by their own type without boxing each element
+		if (dataArray instanceof long[])
+		{
+			long[] values = (long[])dataArray;
+			builder = newArrayBuilder(values.length, ESTIMATED_INTEGER_WIDTH);
+			for (long value : values)
+				builder.append(value).append('\n');
 		}
-		else {
-			castArray = (Object[]) dataArray;
+		else if (dataArray instanceof int[])
+		{
+			int[] values = (int[])dataArray;
+			builder = newArrayBuilder(values.length, ESTIMATED_INTEGER_WIDTH);
+			for (int value : values)
+				builder.append(value).append('\n');
+		}
+		else if (dataArray instanceof double[])
+		{
+			double[] values = (double[])dataArray;
+			builder = newArrayBuilder(values.length, ESTIMATED_DECIMAL_WIDTH);
+			for (double value : values)
+				builder.append(value).append('\n');
+		}
+		else if (dataArray instanceof float[])
+		{
+			float[] values = (float[])dataArray;
+			builder = newArrayBuilder(values.length, ESTIMATED_DECIMAL_WIDTH);
+			for (float value : values)
+				builder.append(value).append('\n');
+		}
+		else if (dataArray instanceof short[])
+		{
+			short[] values = (short[])dataArray;
+			builder = newArrayBuilder(values.length, ESTIMATED_INTEGER_WIDTH);
+			for (short value : values)
+				builder.append(value).append('\n');
+		}
+		else if (dataArray instanceof byte[])
+		{
+			byte[] values = (byte[])dataArray;
+			builder = newArrayBuilder(values.length, 4);
+			for (byte value : values)
+				builder.append(value).append('\n');
+		}
+		else if (dataArray instanceof char[])
+		{
+			char[] values = (char[])dataArray;
+			builder = newArrayBuilder(values.length, 1);
+			for (char value : values)
+				builder.append(value).append('\n');
+		}
+		else if (dataArray instanceof boolean[])
+		{
+			boolean[] values = (boolean[])dataArray;
+			builder = newArrayBuilder(values.length, 5);
+			for (boolean value : values)
+				builder.append(value).append('\n');
+		}
+		else
+		{
+			Object[] values = (Object[])dataArray;
+			builder = newArrayBuilder(values.length, ESTIMATED_DECIMAL_WIDTH);
+			for (Object value : values)
+			{
+				if (null != value)
+					builder.append(String.valueOf(value)).append('\n');
+			}
 		}
-		
-		if (castArray.length == 0) return "";
 
-        for (Object entry : castArray) {
-        	if (entry != null) {
-                builder.append(String.valueOf(entry)).append("\n");
-        	}
-        }
-        
-        // Remove the last newline
-        return builder.substring(0, builder.length() - 1);
-    }
+		if (0 == builder.length())
+			return "";
+
+		// remove the last newline
+		builder.setLength(builder.length() - 1);
+
+		return builder.toString();
+	}
+
+	private static StringBuilder newArrayBuilder(int count, int estimatedWidth)
+	{
+		// presize for the elements and their separators so that large arrays
+		// (i.e. Threading.AllThreadIds) aren't copied over and over while growing
+		return new StringBuilder((int)Math.min((long)count * (estimatedWidth + 1), MAX_PRESIZED_CAPACITY));
+	}
 }
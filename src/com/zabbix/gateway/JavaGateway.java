@@ -93,6 +93,7 @@ public class JavaGateway
 						Metrics.defaultRegistry());
 			}
 			logger.debug("created a thread pool of {} pollers", startPollers == 0 ? "unlimited" : startPollers);
+			JmxConnectionPool.configure(startPollers);
 
 			// Setup encryption using the private key if it exists
 			File privateKeyFile = KeyGenerator.getPrivateKeyFile();
@@ -111,14 +112,57 @@ public class JavaGateway
 			}
 			
 			// Setup the JmxConfigurationManager which will handle retrieving the proper JmxConfiguration
-			// to support additional properties such as specifying the JMX protocol and endpoint
+			// to support additional properties such as specifying the JMX protocol and endpoint,
+			// starting out with the configurations saved to the snapshot if there's one
 			JmxConfigurationManager jmxManager = new JmxConfigurationManager(
 					ConfigurationManager.getStringParameterValue(ConfigurationManager.ZABBIX_URL),
 	    			ConfigurationManager.getStringParameterValue(ConfigurationManager.API_USER),
-	    	        apiPassword);
+	    	        apiPassword,
+	    	        (File)ConfigurationManager.getParameter(ConfigurationManager.CONFIG_SNAPSHOT).getValue());
+			// Load the configurations of all the JMX interfaces up front and keep them fresh
+			int configRefresh = ConfigurationManager.getIntegerParameterValue(ConfigurationManager.CONFIG_REFRESH);
+			if (configRefresh > 0) {
+				jmxManager.startRefresh(configRefresh);
+			}
+			// Setup caching of the values that rarely change if any TTLs were configured
+			ItemValueCache.configure(ConfigurationManager.getStringParameterValue(ConfigurationManager.VALUE_CACHE_TTL));
+
+			// Setup the connection pool shared by the Jolokia clients and how bulk requests are split
+			JolokiaClientRegistry.configure(
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.JOLOKIA_KEEP_ALIVE),
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.JOLOKIA_MAX_CONNECTIONS_PER_ROUTE),
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.JOLOKIA_MAX_CONNECTIONS),
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.JOLOKIA_MAX_BULK_REQUESTS));
+			// Compressed responses are asked for from the agents sending large responses
+			JolokiaCompression.configure(
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.JOLOKIA_COMPRESSION_THRESHOLD));
+			// The MBean lists of the Jolokia agents are cached for the discovery of all the attributes
+			JolokiaListCache.configure(
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.JOLOKIA_LIST_CACHE_TTL));
+			// Setup how long to wait on the hosts
+			TargetTimeouts.configure(
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.TIMEOUT),
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.ADAPTIVE_TIMEOUT),
+					ConfigurationManager.getIntegerParameterValue(ConfigurationManager.ADAPTIVE_TIMEOUT_FLOOR));
+			// Jolokia requests are only handed off by the pollers when read threads were configured
+			int jolokiaReadThreads = ConfigurationManager.getIntegerParameterValue(ConfigurationManager.JOLOKIA_READ_THREADS);
+			if (jolokiaReadThreads > 0) {
+				JolokiaReadExecutor.configure(jolokiaReadThreads);
+				logger.info("Jolokia requests are handed off to {} read threads", jolokiaReadThreads);
+			}
+
+			ItemCheckerFactory checkerFactory = new ItemCheckerFactory(jmxManager, securityUtils);
+
+			// Prefetching is optional, it's only enabled when a freshness bound is configured
+			PrefetchScheduler prefetchScheduler = null;
+			int prefetchFreshness = ConfigurationManager.getIntegerParameterValue(ConfigurationManager.PREFETCH_FRESHNESS);
+			if (prefetchFreshness > 0) {
+				prefetchScheduler = new PrefetchScheduler(checkerFactory, TimeUnit.SECONDS.toMillis(prefetchFreshness));
+				logger.info("prefetching enabled with a freshness bound of {} seconds", prefetchFreshness);
+			}
 			
 			while (true)
-				threadPool.execute(new SocketProcessor(socket.accept(), jmxManager, securityUtils));
+				threadPool.execute(new SocketProcessor(socket.accept(), checkerFactory, prefetchScheduler));
 		}
 		catch (Exception e)
 		{
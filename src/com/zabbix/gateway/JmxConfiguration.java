@@ -24,7 +24,10 @@ package com.zabbix.gateway;
  * This is defined via Host level macros to specify the
  * JMX protocol and endpoint to be used. By default the protcol
  * is - service:jmx:rmi:///jndi/rmi - and the default JMX
- * endpoint is - /jmxrmi
+ * endpoint is - /jmxrmi. A timeout may also be given for
+ * the host, otherwise the gateway's default timeout applies.
+ * With a proxy+http(s) protocol the host's RMI connector is
+ * read through the Jolokia agent given as the proxy.
  * @author Ryan Rupp
  *
  */
@@ -33,11 +36,15 @@ public class JmxConfiguration {
 	public static final String DEFAULT_JMX_PROTOCOL = "service:jmx:rmi:///jndi/rmi";
     public static final String DEFAULT_JMX_ENDPOINT = "/jmxrmi";
     public static final String JMX_SHORTHAND = "jmx";
+    public static final String PROXY_PROTOCOL_PREFIX = "proxy+";
+    public static final String DEFAULT_PROXY_PATH = "/jolokia";
     
     private final String _protocol;
     private final String _ip;
     private final int _port;
     private final String _endpoint;
+    private final int _timeout;
+    private final String _proxy;
     private final long _dateCreated;
 
     protected JmxConfiguration(String ip, int port) {
@@ -46,6 +53,16 @@ public class JmxConfiguration {
 
     protected JmxConfiguration(String protocol, String ip, int port,
             String endpoint) {
+        this(protocol, ip, port, endpoint, 0);
+    }
+
+    protected JmxConfiguration(String protocol, String ip, int port,
+            String endpoint, int timeout) {
+        this(protocol, ip, port, endpoint, timeout, null);
+    }
+
+    protected JmxConfiguration(String protocol, String ip, int port,
+            String endpoint, int timeout, String proxy) {
         // Allow users to specify just "jmx" instead of the entire protocol
         if (protocol == null 
         		|| protocol.isEmpty()
@@ -65,6 +82,8 @@ public class JmxConfiguration {
         _endpoint = endpoint;
         _ip = ip;
         _port = port;
+        _timeout = timeout;
+        _proxy = proxy == null || proxy.trim().isEmpty() ? null : proxy.trim();
         _dateCreated = System.currentTimeMillis();
     }
 
@@ -102,11 +121,66 @@ public class JmxConfiguration {
         return _endpoint;
     }
 
+    /**
+     * Gets how long in seconds to wait on the host
+     * @return The timeout or 0 when the default timeout applies
+     */
+    public int getTimeout() {
+        return _timeout;
+    }
+
+    /**
+     * Gets the Jolokia proxy as given by the host i.e.
+     * proxy:8778
+     * @return The proxy or null if none was given
+     */
+    public String getProxy() {
+        return _proxy;
+    }
+
+    /**
+     * Gets whether the host is read through a Jolokia proxy
+     * @return True for the proxy+http and proxy+https protocols
+     */
+    public boolean isProxied() {
+        return _protocol.startsWith(PROXY_PROTOCOL_PREFIX);
+    }
+
+    /**
+     * Gets the URL of the Jolokia proxy agent i.e.
+     * http://proxy:8778/jolokia
+     * @return The proxy URL or null when the host isn't proxied
+     */
+    public String getProxyUrl() {
+        if (!isProxied() || _proxy == null) {
+            return null;
+        }
+
+        String proxy = _proxy;
+        // The path of the agent is optional, /jolokia is the default one
+        int start = proxy.indexOf('@') + 1;
+        if (proxy.indexOf('/', start) < 0) {
+            proxy += DEFAULT_PROXY_PATH;
+        }
+        return _protocol.substring(PROXY_PROTOCOL_PREFIX.length()) + "://" + proxy;
+    }
+
+    /**
+     * Gets the JMX URL the proxy connects to for the host
+     * @return The RMI URL of the host
+     */
+    public String getTargetUrl() {
+        return DEFAULT_JMX_PROTOCOL + "://" + _ip + ":" + _port + _endpoint;
+    }
+
     /**
      * Gets the full JMX URL for the host
      * @return
      */
     public String getUrl() {
+        if (isProxied()) {
+            return getTargetUrl() + " via " + getProxyUrl();
+        }
         return _protocol + "://" + _ip + ":" + _port + _endpoint;
     }
     
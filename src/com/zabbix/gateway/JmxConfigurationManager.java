@@ -19,10 +19,26 @@
 
 package com.zabbix.gateway;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONException;
 import org.slf4j.Logger;
@@ -37,24 +53,100 @@ public class JmxConfigurationManager {
 
     final static String MACRO_JMX_PROTOCOL = "{$JMX_PROTOCOL}";
     final static String MACRO_JMX_ENDPOINT = "{$JMX_ENDPOINT}";
+    final static String MACRO_JMX_TIMEOUT = "{$JMX_TIMEOUT}";
+    final static String MACRO_JMX_PROXY = "{$JMX_PROXY}";
+    // The macros resolved together for a host
+    final static List<String> MACROS = Collections.unmodifiableList(Arrays.asList(
+            MACRO_JMX_PROTOCOL, MACRO_JMX_ENDPOINT, MACRO_JMX_TIMEOUT, MACRO_JMX_PROXY));
 
     private static final Logger logger = LoggerFactory
         .getLogger(JmxConfigurationManager.class);
 
     private static final long STALE_THRESHOLD = 1000 * 60 * 5; // 5 minute
                                                                // threshold
+    private static final double STALE_JITTER = 0.2; // Up to 20% earlier
+    private static final int RETRIEVAL_THREADS = 2;
+    private static final long SNAPSHOT_INTERVAL = 60; // seconds
+
     private final ZabbixApi _zabbixApi;
     private final ConcurrentMap<String, JmxConfiguration> _jmxConfigs =
     		new ConcurrentHashMap<String, JmxConfiguration>();
+    // How often all the configurations are loaded in milliseconds, 0 if they aren't
+    private volatile long _refreshInterval;
+    // The retrievals in flight, at most one per interface
+    private final ConcurrentMap<String, FutureTask<JmxConfiguration>> _retrievals =
+    		new ConcurrentHashMap<String, FutureTask<JmxConfiguration>>();
+    private final ThreadPoolExecutor _retrievalExecutor;
+    // Loads all the configurations and saves the snapshot
+    private final ScheduledExecutorService _scheduler;
+    private final File _snapshot;
+    // Whether the configurations changed since the snapshot was saved
+    private final AtomicBoolean _changed = new AtomicBoolean();
     
     public JmxConfigurationManager(String zabbixUrl, String apiUser, String apiPassword) {
+    	this(zabbixUrl, apiUser, apiPassword, null);
+    }
+
+    /**
+     * Creates the manager starting out with the configurations saved to the
+     * snapshot, which is then kept up to date. Having the saved configurations
+     * the gateway no longer needs the frontend to start.
+     * @param zabbixUrl The root url of the Zabbix server
+     * @param apiUser The Zabbix API username
+     * @param apiPassword The Zabbix API password for the user
+     * @param snapshot The snapshot file or null to not keep one
+     */
+    public JmxConfigurationManager(String zabbixUrl, String apiUser, String apiPassword, File snapshot) {
+    	_snapshot = snapshot;
+    	if (snapshot != null && snapshot.exists()) {
+    		try {
+    			_jmxConfigs.putAll(JmxConfigurationSnapshot.load(snapshot));
+    			logger.info("Loaded the configurations of {} JMX interfaces from {}", _jmxConfigs.size(), snapshot);
+    		}
+    		catch (IOException e) {
+    			logger.warn("Unable to load the JMX configurations from {} - {}", snapshot, e.getMessage());
+    		}
+    	}
     	_zabbixApi = new ZabbixApi(zabbixUrl,
-    			apiUser, apiPassword);
+    			apiUser, apiPassword, _jmxConfigs.isEmpty());
+    	_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+    		@Override
+    		public Thread newThread(Runnable r) {
+    			Thread thread = new Thread(r, "jmx-config-refresh");
+    			thread.setDaemon(true);
+    			return thread;
+    		}
+    	});
+    	if (snapshot != null) {
+    		_scheduler.scheduleWithFixedDelay(new Runnable() {
+
+    			@Override
+    			public void run() {
+    				saveSnapshot();
+    			}
+    		}, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+    	}
+    	// Refreshes the stale configurations without holding up the requests
+    	_retrievalExecutor = new ThreadPoolExecutor(RETRIEVAL_THREADS, RETRIEVAL_THREADS,
+    			60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+    		private final AtomicInteger _count = new AtomicInteger();
+
+    		@Override
+    		public Thread newThread(Runnable r) {
+    			Thread thread = new Thread(r, "jmx-config-" + _count.incrementAndGet());
+    			thread.setDaemon(true);
+    			return thread;
+    		}
+    	});
+    	_retrievalExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
      * Gets the JMX Configuration for the Hosts JMX interface
-     * using the given IP and port.
+     * using the given IP and port. A stale configuration is
+     * returned right away while it's refreshed in the background.
      * @param ip The Host's IP
      * @param port The Host's JMX interface port
      * @return The Host's JMX Configuration
@@ -64,14 +156,59 @@ public class JmxConfigurationManager {
         String configKey = buildMapKey(ip, port);
         JmxConfiguration oldConfig = _jmxConfigs.get(configKey);
         if (oldConfig != null) {
-            if (!isStale(oldConfig)) {
-                return oldConfig;
+            if (isStale(configKey, oldConfig)) {
+                FutureTask<JmxConfiguration> retrieval = newRetrieval(ip, port, configKey, oldConfig);
+                if (_retrievals.putIfAbsent(configKey, retrieval) == null) {
+                    logger.debug("Configuration is stale for connection - {} - refetching the configuration",
+                            configKey);
+                    _retrievalExecutor.execute(retrieval);
+                }
             }
-            logger.debug(String.format(
-                        "Configuration is stale for connection - %s - refetching the configuration",
-                        configKey));
+            return oldConfig;
         }
 
+        // The concurrent requests for an interface that isn't known yet share one retrieval
+        FutureTask<JmxConfiguration> retrieval = newRetrieval(ip, port, configKey, null);
+        FutureTask<JmxConfiguration> existing = _retrievals.putIfAbsent(configKey, retrieval);
+        if (existing == null) {
+            retrieval.run();
+        }
+        else {
+            retrieval = existing;
+        }
+
+        try {
+            return retrieval.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            logger.error("Unable to retrieve the configuration of interface - {}:{} - {}",
+                    new Object[]{ip, port, e.getCause()});
+        }
+        return new JmxConfiguration(ip, port);
+    }
+
+    // Retrieves the configuration and no longer counts as in flight once done
+    private FutureTask<JmxConfiguration> newRetrieval(final String ip, final int port, final String configKey,
+            final JmxConfiguration oldConfig) {
+        return new FutureTask<JmxConfiguration>(new Callable<JmxConfiguration>() {
+
+            @Override
+            public JmxConfiguration call() {
+                return fetchConfig(ip, port, configKey, oldConfig);
+            }
+        }) {
+
+            @Override
+            protected void done() {
+                _retrievals.remove(configKey, this);
+            }
+        };
+    }
+
+    private JmxConfiguration fetchConfig(String ip, int port, String configKey, JmxConfiguration oldConfig) {
         // Try to retrieve the configuration. If we're just refreshing the configuration
         // and we're unable to access the frontend, use the old configuration
         JmxConfiguration config = oldConfig;
@@ -91,30 +228,164 @@ public class JmxConfigurationManager {
 			}
 		}
         _jmxConfigs.put(configKey, config);
+        _changed.set(true);
 
         return config;
     }
 
     private JmxConfiguration retrieveConfig(String ip, int port) 
             throws IOException, JSONException {
-        JmxConfiguration config = null;
-    	// Try to resolve the protocol and endpoint
-    	// macros for the host using the Zabbix API
-        List<String> hostIds = _zabbixApi.getHostIdsForConnection(ip, port);
-        String protocol = _zabbixApi.resolveHostMacro(hostIds, MACRO_JMX_PROTOCOL);
-        String endpoint = _zabbixApi.resolveHostMacro(hostIds, MACRO_JMX_ENDPOINT);
-        config = new JmxConfiguration(protocol, ip, port, endpoint);
+    	// Try to resolve the protocol, endpoint, timeout and proxy
+    	// macros for the host in a single call to the Zabbix API
+        Map<String, String> macros = _zabbixApi.resolveHostMacros(ip, port, MACROS);
+        JmxConfiguration config = createConfig(ip, port, macros);
 
         logger.debug("JMX Configuration is: " + config.getUrl());
         return config;
     }
 
+    private JmxConfiguration createConfig(String ip, int port, Map<String, String> macros) {
+        String protocol = macros.get(MACRO_JMX_PROTOCOL);
+        String endpoint = macros.get(MACRO_JMX_ENDPOINT);
+        String timeout = macros.get(MACRO_JMX_TIMEOUT);
+        String proxy = macros.get(MACRO_JMX_PROXY);
+        JmxConfiguration config = new JmxConfiguration(protocol, ip, port, endpoint,
+                parseTimeout(timeout, ip, port), proxy);
+        if (config.isProxied() && config.getProxyUrl() == null) {
+            logger.warn("No {} given for the {} protocol of interface - {}:{}",
+                    new Object[]{MACRO_JMX_PROXY, protocol, ip, port});
+        }
+        return config;
+    }
+
+    /**
+     * Loads the configurations of all the JMX interfaces at once and then
+     * keeps reloading them in the background, so the requests don't have to
+     * wait on the Zabbix API. The interfaces added in between are still
+     * retrieved one at a time when they're first requested.
+     * @param interval How many seconds between the loads
+     */
+    public void startRefresh(int interval) {
+        _refreshInterval = TimeUnit.SECONDS.toMillis(interval);
+        // With the configurations of the snapshot the requests are served while loading
+        long initialDelay = interval;
+        if (_jmxConfigs.isEmpty()) {
+            refresh();
+        }
+        else {
+            initialDelay = 0;
+        }
+
+        _scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, initialDelay, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Saves the configurations to the snapshot if they changed since the
+     * last time they were saved.
+     */
+    void saveSnapshot() {
+        if (_snapshot == null || !_changed.getAndSet(false)) {
+            return;
+        }
+
+        try {
+            JmxConfigurationSnapshot.save(_snapshot, new HashMap<String, JmxConfiguration>(_jmxConfigs));
+            logger.debug("Saved the configurations of {} JMX interfaces to {}", _jmxConfigs.size(), _snapshot);
+        }
+        catch (IOException e) {
+            _changed.set(true);
+            logger.warn("Unable to save the JMX configurations to {} - {}", _snapshot, e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the configurations of all the JMX interfaces with a few calls to
+     * the Zabbix API. The configurations of the interfaces that no longer
+     * exist are dropped, on failure the current configurations are kept.
+     * @return The number of interfaces loaded, -1 if they couldn't be loaded
+     */
+    int refresh() {
+        long start = System.currentTimeMillis();
+        List<ZabbixApi.JmxInterface> interfaces;
+        try {
+            interfaces = _zabbixApi.getJmxInterfaces(MACROS);
+        }
+        catch (IOException e) {
+            logger.error("Unable to connect to the frontend to load the JMX interfaces - {}", e.getMessage());
+            return -1;
+        }
+        catch (JSONException e) {
+            logger.error("A parsing exception occurred when loading the JMX interfaces - {}", e.getMessage());
+            return -1;
+        }
+
+        // Interfaces are looked up by IP before DNS name like retrieveConfig() does
+        Map<String, JmxConfiguration> configs = new HashMap<String, JmxConfiguration>();
+        for (ZabbixApi.JmxInterface jmxInterface : interfaces) {
+            String key = buildMapKey(jmxInterface.ip, jmxInterface.port);
+            if (!jmxInterface.ip.isEmpty() && !configs.containsKey(key)) {
+                configs.put(key, createConfig(jmxInterface.ip, jmxInterface.port, jmxInterface.macros));
+            }
+        }
+        for (ZabbixApi.JmxInterface jmxInterface : interfaces) {
+            String key = buildMapKey(jmxInterface.dns, jmxInterface.port);
+            if (!jmxInterface.dns.isEmpty() && !configs.containsKey(key)) {
+                configs.put(key, createConfig(jmxInterface.dns, jmxInterface.port, jmxInterface.macros));
+            }
+        }
+
+        _jmxConfigs.putAll(configs);
+        // Whatever wasn't loaded nor retrieved since is gone
+        for (Map.Entry<String, JmxConfiguration> entry : _jmxConfigs.entrySet()) {
+            if (entry.getValue().getDateCreated() < start) {
+                _jmxConfigs.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        _changed.set(true);
+
+        logger.info("Loaded the configurations of {} JMX interfaces in {} ms",
+                interfaces.size(), System.currentTimeMillis() - start);
+        return interfaces.size();
+    }
+
+    // The timeout macro is in seconds, an invalid value falls back to the default timeout
+    private int parseTimeout(String timeout, String ip, int port) {
+        if (timeout == null || timeout.trim().isEmpty()) {
+            return 0;
+        }
+
+        try {
+            int seconds = Integer.parseInt(timeout.trim());
+            if (seconds > 0) {
+                return seconds;
+            }
+        }
+        catch (NumberFormatException e) {
+            // Logged below
+        }
+        logger.warn("Ignoring invalid {} '{}' of interface - {}:{}",
+                new Object[]{MACRO_JMX_TIMEOUT, timeout, ip, port});
+        return 0;
+    }
+
     private String buildMapKey(String ip, int port) {
         return ip + ":" + port;
     }
 
-    private boolean isStale(JmxConfiguration config) {
-        if (config.getDateCreated() + STALE_THRESHOLD < System.currentTimeMillis()) {
+    private boolean isStale(String configKey, JmxConfiguration config) {
+        // Loaded configurations are refreshed in the background, they only
+        // go stale when the loads keep failing
+        long threshold = Math.max(STALE_THRESHOLD, 2 * _refreshInterval);
+        // Each interface goes stale a bit earlier so the ones retrieved
+        // together aren't all refreshed at the same time
+        threshold -= (long) (threshold * STALE_JITTER * ((configKey.hashCode() & 0x7fffffff) % 1000) / 1000);
+        if (config.getDateCreated() + threshold < System.currentTimeMillis()) {
             return true;
         }
 
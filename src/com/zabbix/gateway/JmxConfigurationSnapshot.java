@@ -0,0 +1,156 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.json.JSONWriter;
+
+/**
+ * Saves the JMX configurations of the interfaces to a local file and loads
+ * them back, so a restarted gateway can serve the requests right away
+ * whether or not the Zabbix frontend is up. The file is replaced
+ * atomically so it's never read half written.
+ *
+ */
+class JmxConfigurationSnapshot {
+
+    static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String VERSION_FIELD = "version";
+    private static final String CONFIGS = "configs";
+    private static final String KEY = "key";
+    private static final String PROTOCOL = "protocol";
+    private static final String IP = "ip";
+    private static final String PORT = "port";
+    private static final String ENDPOINT = "endpoint";
+    private static final String TIMEOUT = "timeout";
+    private static final String PROXY = "proxy";
+
+    private JmxConfigurationSnapshot() {
+    }
+
+    /**
+     * Writes the configurations to a temporary file next to the snapshot
+     * that then replaces it. The proxy URLs may hold the proxy's credentials
+     * so the file is only readable by its owner.
+     * @param file The snapshot
+     * @param configs The configurations by the key they're looked up with
+     * @throws IOException If the snapshot couldn't be written
+     */
+    static void save(File file, Map<String, JmxConfiguration> configs) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        temp.delete();
+        if (!temp.createNewFile() || !restrictToOwner(temp)) {
+            temp.delete();
+            throw new IOException("Unable to create " + temp + " readable by its owner only");
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF8));
+        try {
+            JSONWriter w = new JSONWriter(out);
+            w.object()
+                .key(VERSION_FIELD).value(VERSION)
+                .key(CONFIGS).array();
+            for (Map.Entry<String, JmxConfiguration> entry : configs.entrySet()) {
+                JmxConfiguration config = entry.getValue();
+                w.object()
+                    .key(KEY).value(entry.getKey())
+                    .key(PROTOCOL).value(config.getProtocol())
+                    .key(IP).value(config.getIp())
+                    .key(PORT).value(config.getPort())
+                    .key(ENDPOINT).value(config.getEndpoint());
+                if (config.getTimeout() > 0) {
+                    w.key(TIMEOUT).value(config.getTimeout());
+                }
+                if (config.getProxy() != null) {
+                    w.key(PROXY).value(config.getProxy());
+                }
+                w.endObject();
+            }
+            w.endArray().endObject();
+        }
+        catch (JSONException e) {
+            throw new IOException("Unable to write " + temp, e);
+        }
+        finally {
+            out.close();
+        }
+
+        // Renaming over an existing file fails on some platforms
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static boolean restrictToOwner(File file) {
+        return file.setReadable(false, false) && file.setReadable(true, true)
+            && file.setWritable(false, false) && file.setWritable(true, true)
+            && file.setExecutable(false, false);
+    }
+
+    /**
+     * Reads the configurations saved to the snapshot
+     * @param file The snapshot
+     * @return The configurations by the key they're looked up with
+     * @throws IOException If the snapshot couldn't be read or isn't valid
+     */
+    static Map<String, JmxConfiguration> load(File file) throws IOException {
+        Map<String, JmxConfiguration> configs = new HashMap<String, JmxConfiguration>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            JSONObject snapshot = new JSONObject(new JSONTokener(in));
+            if (snapshot.getInt(VERSION_FIELD) != VERSION) {
+                throw new IOException("Unsupported version " + snapshot.get(VERSION_FIELD) + " of " + file);
+            }
+            JSONArray saved = snapshot.getJSONArray(CONFIGS);
+            for (int i = 0; i < saved.length(); i++) {
+                JSONObject config = saved.getJSONObject(i);
+                configs.put(config.getString(KEY), new JmxConfiguration(config.getString(PROTOCOL),
+                    config.getString(IP), config.getInt(PORT), config.getString(ENDPOINT),
+                    config.optInt(TIMEOUT), config.optString(PROXY, null)));
+            }
+        }
+        catch (JSONException e) {
+            throw new IOException("Invalid snapshot " + file + ": " + e.getMessage(), e);
+        }
+        finally {
+            in.close();
+        }
+        return configs;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Keeps JMX connections open for the background tasks (i.e. sampling) that
+ * talk to a target continuously, where connecting for every read like the
+ * Zabbix requests do would cost far more than the read itself. Connections
+ * are shared by target URL and credentials and are closed once the last
+ * lease on them is released.
+ *
+ */
+class JmxConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(JmxConnectionPool.class);
+
+    private static final JmxConnectionPool _instance = new JmxConnectionPool();
+
+    private final Map<String, PooledConnection> _connections = new HashMap<String, PooledConnection>();
+
+    // Threads for the background tasks (i.e. sampling) besides those for the pollers
+    private static final int BACKGROUND_THREADS = 16;
+
+    // JMXConnectorFactory has no timeout of its own so the connections are established on these threads
+    private static volatile ExecutorService _connectors = newExecutor("jmx-connect-", Integer.MAX_VALUE);
+    // Nor have the reads over the established connections
+    private static volatile ExecutorService _readers = newExecutor("jmx-read-", Integer.MAX_VALUE);
+
+    static {
+        Metrics.newGauge(JmxConnectionPool.class, "pooled-jmx-connections", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance.size();
+            }
+
+        });
+    }
+
+    public static JmxConnectionPool getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Caps the threads that connect to and read from the targets. A poller waits
+     * on one connect or read at a time but the threads of the connects and reads
+     * it gave up on may still be blocked on an unresponsive target, so there are
+     * twice as many threads as pollers. Once they're all busy the pollers connect
+     * and read on their own threads without a timeout.
+     * @param pollers The number of pollers, 0 for an unlimited number
+     */
+    public static void configure(int pollers) {
+        int maxThreads = pollers == 0 ? Integer.MAX_VALUE : pollers * 2 + BACKGROUND_THREADS;
+        ExecutorService connectors = _connectors;
+        ExecutorService readers = _readers;
+        _connectors = newExecutor("jmx-connect-", maxThreads);
+        _readers = newExecutor("jmx-read-", maxThreads);
+        connectors.shutdown();
+        readers.shutdown();
+    }
+
+    private static ExecutorService newExecutor(final String prefix, int maxThreads) {
+        // Idle threads are let go
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger _count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, prefix + _count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Connects to the target, giving up after the timeout. A connection that's
+     * only established after the timeout is closed right away by the thread
+     * that established it.
+     * @param url The target's URL
+     * @param env The connection environment i.e. the credentials
+     * @param timeout How long in milliseconds to wait for the connection
+     * @return The connector
+     * @throws IOException When the target cannot be connected to in time
+     */
+    static JMXConnector connect(JMXServiceURL url, Map<String, ?> env, long timeout) throws IOException {
+        ConnectTask task = new ConnectTask(url, env);
+        Future<JMXConnector> future = submit(_connectors, task, url);
+
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            if (task.abandon()) {
+                // Connected just as the wait timed out, the connector is being handed over
+                return get(future, url);
+            }
+            future.cancel(true);
+            throw new SocketTimeoutException("Connection to " + url + " timed out after " + timeout + " ms");
+        }
+        catch (ExecutionException e) {
+            throw toIOException(e, url);
+        }
+        catch (InterruptedException e) {
+            if (task.abandon()) {
+                closeQuietly(get(future, url), url);
+            }
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + url);
+        }
+    }
+
+    /**
+     * Reads from the target, giving up after the timeout. The read is cancelled
+     * on timeout, the caller should then close the connection it reads over so
+     * the blocked read fails.
+     * @param read The read
+     * @param url The target's URL
+     * @param timeout How long in milliseconds to wait for the read
+     * @return The read's result
+     * @throws Exception The exception the read failed with or a SocketTimeoutException
+     * when it didn't finish in time
+     */
+    static <T> T read(Callable<T> read, JMXServiceURL url, long timeout) throws Exception {
+        Future<T> future = submit(_readers, read, url);
+
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            future.cancel(true);
+            throw new SocketTimeoutException("Reading from " + url + " timed out after " + timeout + " ms");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from " + url);
+        }
+    }
+
+    private static <T> Future<T> submit(ExecutorService executor, Callable<T> task, JMXServiceURL url) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        try {
+            executor.execute(future);
+        }
+        catch (RejectedExecutionException e) {
+            logger.debug("all the JMX threads are busy, requesting {} on the poller's own thread", url);
+            future.run();
+        }
+        return future;
+    }
+
+    private static <T> T get(Future<T> future, JMXServiceURL url) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            throw toIOException(e, url);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + url);
+        }
+    }
+
+    private static void closeQuietly(JMXConnector connector, JMXServiceURL url) {
+        try {
+            connector.close();
+        }
+        catch (IOException e) {
+            logger.trace("failed to close the late connection to {} - {}", url, e.getMessage());
+        }
+    }
+
+    private static IOException toIOException(ExecutionException e, JMXServiceURL url) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+        }
+        return new IOException("Failed to connect to " + url, e.getCause());
+    }
+
+    /**
+     * Leases the pooled connection to the target, the connection is
+     * only established when it's first used.
+     * @param url The JMX service URL of the target
+     * @param username The username or null
+     * @param password The password or null
+     * @return The lease which must be released once it's no longer needed
+     */
+    public synchronized Lease lease(JMXServiceURL url, String username, String password) {
+        String poolKey = url + "|" + username + "|" + HelperFunctionChest.hashPassword(password);
+        PooledConnection connection = _connections.get(poolKey);
+        if (connection == null) {
+            connection = new PooledConnection(poolKey, url, username, password);
+            _connections.put(poolKey, connection);
+        }
+
+        connection.leases++;
+        return new Lease(connection);
+    }
+
+    synchronized int size() {
+        return _connections.size();
+    }
+
+    private synchronized void release(PooledConnection connection) {
+        if (--connection.leases == 0) {
+            _connections.remove(connection.poolKey);
+            connection.close();
+        }
+    }
+
+    /**
+     * A lease on a pooled connection
+     */
+    class Lease {
+
+        private final PooledConnection _connection;
+        private boolean _released;
+
+        private Lease(PooledConnection connection) {
+            _connection = connection;
+        }
+
+        /**
+         * Gets the connection, connecting to the target if it isn't connected. A
+         * connection that failed is reopened so the returned connection differs
+         * from the previously returned one when the target was reconnected to.
+         * @return The MBean server connection
+         * @throws IOException When the target cannot be connected to
+         */
+        public MBeanServerConnection getConnection() throws IOException {
+            return _connection.connect();
+        }
+
+        /**
+         * Closes the connection after a failure so the next use reconnects
+         */
+        public void invalidate() {
+            _connection.close();
+        }
+
+        public synchronized void release() {
+            if (!_released) {
+                _released = true;
+                JmxConnectionPool.this.release(_connection);
+            }
+        }
+    }
+
+    private static class PooledConnection {
+        final String poolKey;
+        final JMXServiceURL url;
+        final Map<String, Object> env;
+        int leases; // guarded by the pool
+        private JMXConnector _connector;
+        private MBeanServerConnection _connection;
+        private volatile boolean _failed;
+
+        PooledConnection(String poolKey, JMXServiceURL url, String username, String password) {
+            this.poolKey = poolKey;
+            this.url = url;
+            this.env = new HashMap<String, Object>();
+            if (username != null && password != null) {
+                env.put(JMXConnector.CREDENTIALS, new String[] {username, password});
+            }
+        }
+
+        synchronized MBeanServerConnection connect() throws IOException {
+            if (_failed) {
+                close();
+            }
+
+            if (_connection == null) {
+                logger.debug("opening pooled connection to {}", url);
+                _connector = JmxConnectionPool.connect(url, env,
+                        TargetTimeouts.getInstance().getTimeout(url.toString(), null));
+                _connector.addConnectionNotificationListener(new NotificationListener() {
+
+                    @Override
+                    public void handleNotification(Notification notification, Object handback) {
+                        // Only flagged here, the connection is reopened on its next use
+                        if (JMXConnectionNotification.FAILED.equals(notification.getType())
+                                || JMXConnectionNotification.CLOSED.equals(notification.getType())) {
+                            _failed = true;
+                        }
+                    }
+
+                }, null, null);
+                _connection = _connector.getMBeanServerConnection();
+            }
+
+            return _connection;
+        }
+
+        synchronized void close() {
+            if (_connector != null) {
+                logger.debug("closing pooled connection to {}", url);
+                try {
+                    _connector.close();
+                }
+                catch (IOException e) {
+                    logger.trace("failed to close the connection to {} - {}", url, e.getMessage());
+                }
+            }
+
+            _connector = null;
+            _connection = null;
+            _failed = false;
+        }
+    }
+
+    /**
+     * Establishes a connection, or closes it once established when the caller
+     * stopped waiting for it
+     */
+    private static class ConnectTask implements Callable<JMXConnector> {
+        private final JMXServiceURL _url;
+        private final Map<String, ?> _env;
+        private boolean _abandoned; // guarded by this
+        private boolean _connected; // guarded by this
+
+        ConnectTask(JMXServiceURL url, Map<String, ?> env) {
+            _url = url;
+            _env = env;
+        }
+
+        @Override
+        public JMXConnector call() throws IOException {
+            JMXConnector connector = JMXConnectorFactory.connect(_url, _env);
+            synchronized (this) {
+                if (!_abandoned) {
+                    _connected = true;
+                    return connector;
+                }
+            }
+
+            closeQuietly(connector, _url);
+            return null;
+        }
+
+        /**
+         * @return True if the connection was already established and is handed to the caller
+         */
+        synchronized boolean abandon() {
+            _abandoned = !_connected;
+            return _connected;
+        }
+    }
+}
@@ -19,38 +19,73 @@
 
 package com.zabbix.gateway;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.InstanceNotFoundException;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.StatusLine;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
 import org.jolokia.client.J4pClient;
-import org.jolokia.client.J4pClientBuilder;
-import org.jolokia.client.exception.J4pBulkRemoteException;
+import org.jolokia.client.exception.J4pConnectException;
 import org.jolokia.client.exception.J4pException;
 import org.jolokia.client.exception.J4pRemoteException;
+import org.jolokia.client.exception.J4pTimeoutException;
 import org.jolokia.client.request.J4pExecRequest;
-import org.jolokia.client.request.J4pExecResponse;
+import org.jolokia.client.request.J4pListRequest;
 import org.jolokia.client.request.J4pReadRequest;
 import org.jolokia.client.request.J4pReadResponse;
 import org.jolokia.client.request.J4pRequest;
+import org.jolokia.client.request.J4pRequestHandler;
 import org.jolokia.client.request.J4pResponse;
 import org.jolokia.client.request.J4pSearchRequest;
 import org.jolokia.client.request.J4pSearchResponse;
+import org.jolokia.client.request.J4pTargetConfig;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.TimerContext;
 import com.zabbix.security.SecurityUtils;
@@ -59,9 +94,7 @@ class JolokiaChecker extends ItemChecker {
 
     private static final String JMX_OPERATION = "jmx.operation";
     private static final String JMX_READ = "jmx";
-    private static final int SOCKET_TIMEOUT = 10 * 1000; // wait for at most 10 seconds for a response
-    private static final int CONNECTION_TIMEOUT = 5 * 1000; // wait for at most 5 seconds for
-                                                            // the connection to be established
+    private static final String JMX_GET = "jmx.get";
 
     private static final Logger logger = LoggerFactory
         .getLogger(JolokiaChecker.class);
@@ -69,7 +102,52 @@ class JolokiaChecker extends ItemChecker {
     // Timer to track the performance when making bulk requests over the network
     private static final Timer _requestTime = Metrics.newTimer(JolokiaChecker.class, "remote-request-time", TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
 
+    // Latency in milliseconds of each bulk request sent, including the chunks of split bulk requests
+    private static final Histogram _chunkLatency = Metrics.newHistogram(JolokiaChecker.class, "bulk-chunk-latency", true);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // The attribute types listed by the agent that jmx.discovery reports, with their value classes
+    private static final Map<String, String> PRIMITIVE_TYPES = new HashMap<String, String>();
+    private static final String OBJECT_TYPE = Object.class.getName();
+    private static final String COMPOSITE_TYPE = CompositeData.class.getName();
+    private static final String TABULAR_TYPE = TabularData.class.getName();
+
+    static {
+        Class<?>[][] types = {
+            { boolean.class, Boolean.class }, { byte.class, Byte.class }, { short.class, Short.class },
+            { int.class, Integer.class }, { long.class, Long.class }, { float.class, Float.class },
+            { double.class, Double.class }, { String.class, String.class } };
+        for (Class<?>[] type : types) {
+            PRIMITIVE_TYPES.put(type[0].getName(), type[1].getName());
+            PRIMITIVE_TYPES.put(type[1].getName(), type[1].getName());
+        }
+    }
+
+    /**
+     * Receives the values read by submitValues()
+     */
+    interface ValuesCallback {
+
+        void completed(JSONArray values);
+
+        void failed(ZabbixException e);
+    }
+
     private J4pClient _j4pClient;
+    private J4pRequestHandler _requestHandler;
+    private String _authorization;
+    private String _jolokiaUrl;
+    // What the values are read from, the JMX URL of the host when read through a proxy
+    private String _target;
+    // Set when the host is read through a proxy, it's sent along with each request
+    private J4pTargetConfig _targetConfig;
+    private String _proxyKey;
+    // The credentials the target is read with
+    private String _username;
+    private String _password;
+    private JmxConfiguration _config;
+    private SecurityUtils _securityUtils;
 
     private Map<String, String> _foundKeys = new HashMap<String, String>();
     private Map<String, String> _errorKeys = new HashMap<String, String>();
@@ -82,6 +160,13 @@ class JolokiaChecker extends ItemChecker {
     		SecurityUtils securityUtils) throws ZabbixException {
     	super(request);
 
+        _config = config;
+        _securityUtils = securityUtils;
+        if (config.isProxied() && config.getProxyUrl() == null) {
+            throw new ZabbixException("no %s configured for the %s protocol",
+                JmxConfigurationManager.MACRO_JMX_PROXY, config.getProtocol());
+        }
+
         try {
             String username = defaultOrBlankToNull(request.optString(JSON_TAG_USERNAME, null), "{$JMX_USERNAME}");
             String password = defaultOrBlankToNull(request.optString(JSON_TAG_PASSWORD, null), "{$JMX_PASSWORD}");
@@ -93,19 +178,38 @@ class JolokiaChecker extends ItemChecker {
                     && null != password)
                 throw new IllegalArgumentException(
                     "invalid username and password nullness combination");
+            _username = username;
+            _password = password;
 
-            String jolokiaUrl = buildJolokiaUrl(config);
-
-            logger.debug("Jolokia URL is: " + jolokiaUrl);
-            J4pClientBuilder builder = J4pClient.url(jolokiaUrl)
-                    .socketTimeout(SOCKET_TIMEOUT)
-                    .connectionTimeout(CONNECTION_TIMEOUT);
-
-            if (null != username) {
-                builder.user(username).password(password);
+            if (config.isProxied()) {
+                // The host's credentials are the target's, the proxy's are part of its URL
+                _targetConfig = new J4pTargetConfig(config.getTargetUrl(), username, password);
+                _proxyKey = config.getProxyUrl();
+                URI proxy = new URI(_proxyKey);
+                username = null;
+                password = null;
+                if (proxy.getUserInfo() != null) {
+                    String[] userInfo = proxy.getUserInfo().split(":", 2);
+                    username = userInfo[0];
+                    password = userInfo.length > 1 ? userInfo[1] : "";
+                }
+                _jolokiaUrl = buildJolokiaUrl(new URI(proxy.getScheme(), null, proxy.getHost(),
+                    proxy.getPort(), proxy.getPath(), null, null).toString());
+                _target = config.getTargetUrl();
+            }
+            else {
+                _jolokiaUrl = buildJolokiaUrl(config.getUrl());
+                _target = _jolokiaUrl;
             }
 
-            _j4pClient = builder.build();
+            logger.debug("Jolokia URL is: " + _jolokiaUrl);
+            // The clients are shared so connections are reused between polls
+            _j4pClient = JolokiaClientRegistry.getInstance().getClient(_jolokiaUrl, username, password);
+            _requestHandler = new J4pRequestHandler(_jolokiaUrl, null);
+            if (username != null) {
+                _authorization = "Basic " + Base64.encodeBase64String(
+                    StringUtils.getBytesUtf8(username + ":" + password));
+            }
         }
         catch (Exception e) {
             throw new ZabbixException(e);
@@ -135,7 +239,7 @@ class JolokiaChecker extends ItemChecker {
     public JSONArray getValues() throws ZabbixException {
         JSONArray values = new JSONArray();
         try {
-            jolokiaRead();
+            cachedRead();
 
             for (String key : keys)
                 values.put(getJSONValue(key));
@@ -147,6 +251,70 @@ class JolokiaChecker extends ItemChecker {
         return values;
     }
 
+    /**
+     * Hands the read over to one of the JolokiaReadExecutor's threads, the callback
+     * is notified from that thread once the values are read. The values are read
+     * exactly like getValues() does.
+     * @param callback Notified with the values or the failure
+     * @return False if the read wasn't handed over (there are no read threads or
+     * their queue is full), use getValues() then
+     */
+    public boolean submitValues(final ValuesCallback callback) {
+        JolokiaReadExecutor executor = JolokiaReadExecutor.getInstance();
+        if (executor == null) {
+            return false;
+        }
+
+        return executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                JSONArray values;
+                try {
+                    values = getValues();
+                }
+                catch (ZabbixException e) {
+                    callback.failed(e);
+                    return;
+                }
+                catch (RuntimeException e) {
+                    callback.failed(new ZabbixException(e));
+                    return;
+                }
+
+                callback.completed(values);
+            }
+        });
+    }
+
+    @Override
+    protected String getCredentials() {
+        return _username == null ? "" : _username + "|" + HelperFunctionChest.hashPassword(_password);
+    }
+
+    @Override
+    protected ItemChecker createSampleChecker(String key) throws Exception {
+        return new JolokiaChecker(buildRequest(key), _config, _securityUtils);
+    }
+
+    /**
+     * Reads the key with the checker's own client, whose HTTP
+     * connection is kept alive between the samples.
+     */
+    @Override
+    protected String sampleValue(String key) throws Exception {
+        _foundKeys.clear();
+        _errorKeys.clear();
+        jolokiaRead(Collections.singletonList(key));
+
+        return getStringValue(key);
+    }
+
+    @Override
+    protected String getTarget() {
+        return _target;
+    }
+
     @Override
     protected String getStringValue(String key) throws Exception {
         String value = _foundKeys.get(key);
@@ -158,29 +326,175 @@ class JolokiaChecker extends ItemChecker {
         throw new ZabbixException("Invalid configuration: %s", key);
     }
 
-    @SuppressWarnings("unchecked")
-    private void jolokiaRead() throws J4pException {
-        List<J4pRequest> allRequests = new ArrayList<J4pRequest>();
-        List<ZabbixItem> standardRequestKeys = new ArrayList<ZabbixItem>();
-        List<J4pReadRequest> compositeRequests = new ArrayList<J4pReadRequest>();
-        Map<String, ArrayList<ZabbixItem>> compositeReads = new LinkedHashMap<String, ArrayList<ZabbixItem>>();
+    /**
+     * Reads the keys using the cached values where they're still fresh. The target's
+     * start time is read along with the other keys to detect if it was restarted, in
+     * which case the cached values that were used are read again.
+     * @throws Exception
+     */
+    private void cachedRead() throws Exception {
+        Collection<String> requestKeys = getReadKeys();
+        ItemValueCache valueCache = ItemValueCache.getInstance();
+        if (!valueCache.isAnyCacheable(requestKeys)) {
+            coalescedRead(requestKeys);
+            return;
+        }
 
-        for (String key : keys) {
+        Map<String, String> cachedValues = new LinkedHashMap<String, String>();
+        List<String> readKeys = new ArrayList<String>();
+        for (String key : requestKeys) {
+            String value = valueCache.get(_target, key);
+            if (value != null) {
+                cachedValues.put(key, value);
+            }
+            else {
+                readKeys.add(key);
+            }
+        }
+        if (!readKeys.contains(ItemValueCache.START_TIME_KEY)) {
+            readKeys.add(ItemValueCache.START_TIME_KEY);
+        }
+
+        coalescedRead(readKeys);
+
+        if (valueCache.validate(_target, _foundKeys.get(ItemValueCache.START_TIME_KEY))) {
+            _foundKeys.putAll(cachedValues);
+        }
+        else if (!cachedValues.isEmpty()) {
+            logger.debug("{} restarted, reading the cached keys again", _target);
+            coalescedRead(cachedValues.keySet());
+            cachedValues.clear();
+        }
+
+        for (String key : requestKeys) {
+            String value = _foundKeys.get(key);
+            if (value != null && !cachedValues.containsKey(key)) {
+                valueCache.put(_target, key, value);
+            }
+        }
+    }
+
+    /**
+     * Reads the keys sharing the reads with any identical requests for this
+     * target that are in flight. The keys this request leads are read in a
+     * single bulk request and their values are then handed to the followers.
+     * @param readKeys The keys to read
+     * @throws Exception
+     */
+    private void coalescedRead(Collection<String> readKeys) throws Exception {
+        ReadCoalescer coalescer = ReadCoalescer.getInstance();
+        Map<String, ReadCoalescer.Flight> ledReads = new LinkedHashMap<String, ReadCoalescer.Flight>();
+        Map<String, ReadCoalescer.Flight> followedReads = new LinkedHashMap<String, ReadCoalescer.Flight>();
+
+        for (String key : readKeys) {
+            if (ledReads.containsKey(key) || followedReads.containsKey(key)) {
+                continue;
+            }
+
+            ReadCoalescer.Flight flight = coalescer.begin(_target, _username, _password, key);
+            if (flight.isLeader()) {
+                ledReads.put(key, flight);
+            }
+            else {
+                followedReads.put(key, flight);
+            }
+        }
+
+        Exception failure = null;
+        try {
+            jolokiaRead(ledReads.keySet());
+
+            for (Map.Entry<String, ReadCoalescer.Flight> entry : ledReads.entrySet()) {
+                try {
+                    entry.getValue().complete(getStringValue(entry.getKey()));
+                }
+                catch (Exception e) {
+                    entry.getValue().fail(e);
+                }
+            }
+        }
+        catch (Exception e) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            // Never leave the followers waiting on a read that won't finish
+            for (ReadCoalescer.Flight flight : ledReads.values()) {
+                if (!flight.isDone()) {
+                    flight.fail(failure != null ? failure : new ZabbixException("read was abandoned"));
+                }
+            }
+        }
+
+        List<String> unfinishedKeys = new ArrayList<String>();
+        for (Map.Entry<String, ReadCoalescer.Flight> entry : followedReads.entrySet()) {
+            try {
+                String value = entry.getValue().await();
+                if (value != null) {
+                    _foundKeys.put(entry.getKey(), value);
+                }
+                else {
+                    unfinishedKeys.add(entry.getKey());
+                }
+            }
+            catch (Exception e) {
+                // Only the key fails whatever the leader's read failed with
+                _errorKeys.put(entry.getKey(), HelperFunctionChest.getRootCauseMessage(e));
+            }
+        }
+
+        // The leader didn't finish in time so read these ourselves
+        if (!unfinishedKeys.isEmpty()) {
+            logger.debug("timed out waiting on {} coalesced reads, reading them directly", unfinishedKeys.size());
+            jolokiaRead(unfinishedKeys);
+        }
+    }
+
+    private void jolokiaRead(Collection<String> readKeys) throws J4pException {
+        ReadBatch batch = prepareRead(readKeys);
+        completeRead(batch, batch.requests.isEmpty() ? Collections.emptyList() : execute(batch.requests, batch.modes));
+    }
+
+    /**
+     * Builds the requests for reading the keys, the keys that can't be read
+     * are given their errors right away.
+     * @param readKeys The keys to read
+     * @return The requests to send in a single bulk request
+     */
+    private ReadBatch prepareRead(Collection<String> readKeys) {
+        ReadBatch batch = new ReadBatch();
+
+        for (String key : readKeys) {
             ZabbixItem item = new ZabbixItem(key);
             try {
                 if (item.getKeyId().equals(JMX_READ)) {
 
-                    buildReadRequest(item, allRequests, standardRequestKeys,
-                        compositeRequests, compositeReads);
+                    buildReadRequest(item, batch.requests, batch.standardKeys,
+                        batch.attributeReads, batch.compositeReads);
                 }
                 else if (item.getKeyId().equals(JMX_OPERATION)) {
-                    buildOperationRequest(item, allRequests,
-                        standardRequestKeys);
+                    buildOperationRequest(item, batch.requests,
+                        batch.standardKeys);
+                }
+                else if (item.getKeyId().equals(JMX_GET)) {
+                    buildGetRequest(item, batch.getRequests, batch.getReads);
+                }
+                else if (ValueAggregator.isAggregateKey(item.getKeyId())) {
+                    buildAggregateRequest(item, batch.aggregateReads);
+                }
+                else if (NotificationSubscriptions.isNotificationKey(item.getKeyId())) {
+                    _errorKeys.put(key, "notification keys are only supported by the JMX protocol");
+                }
+                else if (item.getKeyId().equals("jmx.discovery") && item.getArgumentCount() == 0) {
+                    batch.discoveries.add(item);
                 }
                 else if (item.getKeyId().equals("jmx.discovery") && item.getArgumentCount() == 1) {
-                	J4pSearchRequest sRequest = new J4pSearchRequest(item.getArgument(1));
-                	allRequests.add(sRequest);
-                	standardRequestKeys.add(item);
+                	J4pSearchRequest sRequest = new J4pSearchRequest(_targetConfig, item.getArgument(1));
+                	batch.requests.add(sRequest);
+                	batch.standardKeys.add(item);
+                }
+                else if (item.getKeyId().equals("jmx.discovery")) {
+                    _errorKeys.put(key, "required key format: jmx.discovery or jmx.discovery[<ObjectNameWildcard>]");
                 }
                 else {
                     _errorKeys.put(
@@ -195,92 +509,683 @@ class JolokiaChecker extends ItemChecker {
 
         }
 
-        allRequests.addAll(compositeRequests);
+        // One read per MBean for all of its plain attributes
+        for (Map.Entry<ObjectName, Map<String, List<ZabbixItem>>> entry : batch.attributeReads.entrySet()) {
+            Set<String> attributes = entry.getValue().keySet();
+            batch.attributeRequests.add(new J4pReadRequest(_targetConfig, entry.getKey(),
+                attributes.toArray(new String[attributes.size()])));
+        }
+        batch.requests.addAll(batch.attributeRequests);
 
-        if (allRequests.size() > 0) {
-            List<J4pResponse<J4pRequest>> responseList = null;
-            
-            // Only include times that DO NOT timeout due
-            // to the server being down. Also, a J4pBulkRemoteException
-            // occurs when an exception happens when retrieving one of the
-            // values in the bulk request (the return results will contain
-            // a mix of successful J4pResponses and errors represented as
-            // J4pRemoteExceptions).
-            TimerContext context = _requestTime.time();
+        // One read per composite attribute for all the items drilling into it,
+        // narrowed down by the agent to the part of the value they share
+        for (ArrayList<ZabbixItem> items : batch.compositeReads.values()) {
+            List<String> prefix = getCommonPath(items);
             try {
-                responseList = _j4pClient.execute(allRequests);
+                J4pReadRequest request = new J4pReadRequest(_targetConfig, items.get(0).getArgument(1), prefix.get(0));
+                if (prefix.size() > 1) {
+                    request.setPath(buildJolokiaPath(prefix));
+                }
+                batch.requests.add(request);
+                batch.compositePrefixes.add(prefix.size());
             }
-            catch (J4pBulkRemoteException ex) {
-                // Suppressing this for now but this seems to be a limitation
-                // of the API when extracting the results from the exception
-                // as the List is not typed and in this case will contain
-                // both J4pResponses and J4pRemoteExceptions
-                responseList = ex.getResults();
+            catch (MalformedObjectNameException e) {
+                for (ZabbixItem item : items) {
+                    _errorKeys.put(item.getKey(), e.toString());
+                }
+                items.clear();
             }
-            context.stop();
+        }
 
-            int responseIndex = 0;
-            for (; responseIndex < standardRequestKeys.size(); responseIndex++) {
-                String key = standardRequestKeys.get(responseIndex).getKey();
-                Object response = responseList.get(responseIndex);
-                if (response instanceof J4pReadResponse || response instanceof J4pExecResponse) {
-                    Object value = responseList.get(responseIndex).getValue();
-                    _foundKeys.put(key, getValueToString(value));
-                }
-                else if (response instanceof J4pRemoteException){
-                    J4pRemoteException exception = (J4pRemoteException) response;
-                    _errorKeys.put(key, exception.getMessage());
+        // One pattern read per ObjectName pattern for all the aggregates over it
+        for (Map.Entry<String, ArrayList<ZabbixItem>> entry : batch.aggregateReads.entrySet()) {
+            Set<String> attributes = new LinkedHashSet<String>();
+            for (ZabbixItem item : entry.getValue()) {
+                attributes.add(HelperFunctionChest.splitAttributePath(item.getArgument(2)).get(0));
+            }
+            try {
+                batch.requests.add(new J4pReadRequest(_targetConfig, entry.getKey(), attributes.toArray(new String[attributes.size()])));
+            }
+            catch (MalformedObjectNameException e) {
+                for (ZabbixItem item : entry.getValue()) {
+                    _errorKeys.put(item.getKey(), e.toString());
                 }
-                else {
-                	J4pSearchResponse sResponse = (J4pSearchResponse) response;
+                entry.getValue().clear();
+            }
+        }
+
+        batch.requests.addAll(batch.getRequests);
+
+        // The plain values are rendered while the response is parsed, only the
+        // values that are navigated further are built as JSON objects
+        for (J4pRequest request : batch.requests) {
+            if (batch.modes.size() < batch.standardKeys.size()) {
+                batch.modes.add(request instanceof J4pSearchRequest ? JolokiaResponseParser.Mode.TREE
+                    : JolokiaResponseParser.Mode.TEXT);
+            }
+            else if (batch.modes.size() < batch.standardKeys.size() + batch.attributeRequests.size()) {
+                batch.modes.add(((J4pReadRequest) request).hasSingleAttribute() ? JolokiaResponseParser.Mode.TEXT
+                    : JolokiaResponseParser.Mode.MEMBERS);
+            }
+            else {
+                batch.modes.add(JolokiaResponseParser.Mode.TREE);
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * Hands the results of a bulk request out to the keys it was built for
+     * @param batch The requests that were sent
+     * @param responseList The results as returned by execute
+     * @throws J4pException When the attributes of a failed multi-attribute read can't be read separately
+     */
+    private void completeRead(ReadBatch batch, List<Object> responseList) throws J4pException {
+        int responseIndex = 0;
+        for (; responseIndex < batch.standardKeys.size(); responseIndex++) {
+            String key = batch.standardKeys.get(responseIndex).getKey();
+            Object response = responseList.get(responseIndex);
+            if (response instanceof String) {
+                _foundKeys.put(key, (String) response);
+            }
+            else if (response instanceof J4pException){
+                J4pException exception = (J4pException) response;
+                _errorKeys.put(key, exception.getMessage());
+            }
+            else {
+            	J4pSearchResponse sResponse = (J4pSearchResponse) response;
 					try {
 						String discoveryOutput = buildDiscoveryOutput(sResponse.getMBeanNames());
 						_foundKeys.put(key, discoveryOutput);
 					} catch (JSONException e) {
 						_errorKeys.put(key, e.getMessage());
 					}
-                	
+            	
+            }
+        }
+
+        Map<ZabbixItem, J4pReadRequest> retriedReads = new LinkedHashMap<ZabbixItem, J4pReadRequest>();
+        for (J4pReadRequest request : batch.attributeRequests) {
+            Object response = responseList.get(responseIndex++);
+            Map<String, List<ZabbixItem>> attributes = batch.attributeReads.get(request.getObjectName());
+            if (!(response instanceof J4pException)) {
+                for (Map.Entry<String, List<ZabbixItem>> entry : attributes.entrySet()) {
+                    String value = response instanceof String ? (String) response
+                        : ((Map<?, ?>) response).containsKey(entry.getKey())
+                            ? (String) ((Map<?, ?>) response).get(entry.getKey()) : "";
+                    for (ZabbixItem item : entry.getValue()) {
+                        _foundKeys.put(item.getKey(), value);
+                    }
+                }
+            }
+            else if (attributes.size() == 1 || !(response instanceof J4pRemoteException)) {
+                // Only the agent's failures are worth retrying, not those of the bulk request
+                for (List<ZabbixItem> items : attributes.values()) {
+                    for (ZabbixItem item : items) {
+                        _errorKeys.put(item.getKey(), ((J4pException) response).getMessage());
+                    }
+                }
+            }
+            else {
+                // The agent fails the whole read when one of the attributes
+                // can't be read, so they're read separately to find which
+                for (Map.Entry<String, List<ZabbixItem>> entry : attributes.entrySet()) {
+                    J4pReadRequest retry = new J4pReadRequest(_targetConfig, request.getObjectName(), entry.getKey());
+                    for (ZabbixItem item : entry.getValue()) {
+                        retriedReads.put(item, retry);
+                    }
+                }
+            }
+        }
+        if (!retriedReads.isEmpty()) {
+            readSeparately(retriedReads);
+        }
+
+        int compositeIndex = 0;
+        for (ArrayList<ZabbixItem> items : batch.compositeReads.values()) {
+            if (items.isEmpty()) {
+                continue;
+            }
+
+            Object response = responseList.get(responseIndex);
+            int prefixSize = batch.compositePrefixes.get(compositeIndex++);
+            Object compositeObj = null;
+            J4pException ex = null;
+            if (response instanceof J4pResponse) {
+                compositeObj = ((J4pResponse<?>) response).getValue();
+            }
+            else {
+                ex = (J4pException) response;
+            }
+
+            for (ZabbixItem item : items) {
+                if (ex != null) {
+                    _errorKeys.put(item.getKey(), ex.getMessage());
+                    continue;
+                }
+
+                // Only the part of the path below what the agent already resolved is left
+                List<String> path = HelperFunctionChest.splitAttributePath(item.getArgument(2));
+                List<String> remainingPath = new ArrayList<String>();
+                remainingPath.add(path.get(0));
+                remainingPath.addAll(path.subList(prefixSize, path.size()));
+                Object value = getPathValue(compositeObj, remainingPath);
+                if (value == null) {
+                    _errorKeys.put(item.getKey(), String.format(
+                        "Argument key=\"%s\" is not an existing item " +
+                        "name for this CompositeData or TabularData instance.",
+                        item.getArgument(2)));
+                }
+                else {
+                    _foundKeys.put(item.getKey(), getValueToString(value));
                 }
             }
 
-            for (Map.Entry<String, ArrayList<ZabbixItem>> entry : compositeReads.entrySet()) {
-                String firstAttribute = entry.getValue().get(0).getArgument(2);
-                int dot = firstAttribute.indexOf(".");
-                Object response = responseList.get(responseIndex);
-                org.json.simple.JSONObject compositeObj = null;
-                J4pException ex = null;
-                if (response instanceof J4pResponse) {
-                    compositeObj = responseList.get(responseIndex).getValue();
+            responseIndex++;
+        }
+
+        for (ArrayList<ZabbixItem> items : batch.aggregateReads.values()) {
+            if (items.isEmpty()) {
+                continue;
+            }
+
+            Object response = responseList.get(responseIndex++);
+            for (ZabbixItem item : items) {
+                try {
+                    _foundKeys.put(item.getKey(), aggregate(item, response));
+                }
+                catch (Exception e) {
+                    _errorKeys.put(item.getKey(), e.getMessage());
+                }
+            }
+        }
+
+        for (int i = 0; i < batch.getReads.size(); i++) {
+            ZabbixItem item = batch.getReads.get(i);
+            try {
+                _foundKeys.put(item.getKey(), buildGetOutput(batch.getRequests.get(i), responseList.get(responseIndex++)));
+            }
+            catch (Exception e) {
+                _errorKeys.put(item.getKey(), e.getMessage());
+            }
+        }
+
+        if (!batch.discoveries.isEmpty()) {
+            String discoveryOutput = null;
+            String error = null;
+            try {
+                discoveryOutput = discoverAttributes();
+            }
+            catch (Exception e) {
+                error = e.getMessage();
+            }
+            for (ZabbixItem item : batch.discoveries) {
+                if (discoveryOutput != null) {
+                    _foundKeys.put(item.getKey(), discoveryOutput);
                 }
                 else {
-                    ex = (J4pException) response;
+                    _errorKeys.put(item.getKey(), error);
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the requests, when the host is read through a proxy they're sent
+     * in the same bulk requests as the ones for the other hosts behind the proxy.
+     * @param requests The requests
+     * @param modes How the value of each request's response is parsed
+     * @return The results in the order of the requests
+     * @throws J4pException If one of the bulk requests itself failed
+     * @see #executeChunks(List, List, long, Collection)
+     */
+    private List<Object> execute(List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes)
+            throws J4pException {
+        final long timeout = TargetTimeouts.getInstance().getTimeout(_target, _config);
+        if (_targetConfig == null) {
+            return executeChunks(requests, modes, timeout, Collections.singleton(_target));
+        }
+
+        return JolokiaProxyBatcher.getInstance().execute(_proxyKey, requests, modes,
+            new JolokiaProxyBatcher.Sender() {
+
+                @Override
+                public String getTarget() {
+                    return _target;
                 }
 
-                for (ZabbixItem item : entry.getValue()) {
-                    if (compositeObj == null) {
-                        _errorKeys.put(item.getKey(), ex.getMessage());
-                        continue;
+                @Override
+                public long getTimeout() {
+                    return timeout;
+                }
+
+                @Override
+                public List<Object> send(List<J4pRequest> batchRequests, List<JolokiaResponseParser.Mode> batchModes,
+                        long batchTimeout, Collection<String> targets) throws J4pException {
+                    return executeChunks(batchRequests, batchModes, batchTimeout, targets);
+                }
+            });
+    }
+
+    /**
+     * Executes the requests in bulk requests of at most the configured number of
+     * requests, sending the chunks in parallel over the pooled connections.
+     * The results are described by JolokiaResponseParser, the failed requests are
+     * represented as J4pRemoteExceptions in the results like J4pClient does for
+     * bulk requests. The requests of a chunk whose bulk request failed are given
+     * that failure in the results while those of the other chunks keep their values.
+     * @param requests The requests
+     * @param modes How the value of each request's response is parsed
+     * @param timeout How long in milliseconds to wait on each response
+     * @param targets The hosts the latencies are recorded for
+     * @return The results in the order of the requests
+     * @throws J4pException If the bulk requests of all the chunks failed
+     */
+    private List<Object> executeChunks(List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes,
+            final long timeout, final Collection<String> targets) throws J4pException {
+        JolokiaClientRegistry registry = JolokiaClientRegistry.getInstance();
+        List<List<J4pRequest>> requestChunks = split(requests, registry.getMaxBulkRequests());
+        if (requestChunks.size() == 1) {
+            return executeChunk(requests, modes, timeout, targets);
+        }
+
+        logger.debug("splitting {} requests to {} into {} bulk requests",
+            new Object[] { requests.size(), _jolokiaUrl, requestChunks.size() });
+        List<List<JolokiaResponseParser.Mode>> modeChunks = split(modes, registry.getMaxBulkRequests());
+        ExecutorService executor = registry.getChunkExecutor();
+        List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
+        for (int i = 1; i < requestChunks.size(); i++) {
+            final List<J4pRequest> chunkRequests = requestChunks.get(i);
+            final List<JolokiaResponseParser.Mode> chunkModes = modeChunks.get(i);
+            futures.add(executor.submit(new Callable<List<Object>>() {
+
+                @Override
+                public List<Object> call() throws J4pException {
+                    return executeChunk(chunkRequests, chunkModes, timeout, targets);
+                }
+            }));
+        }
+
+        // The first chunk is sent by the calling thread while the others are in flight
+        List<Object> results = new ArrayList<Object>(requests.size());
+        J4pException failure = null;
+        int failedChunks = 0;
+        try {
+            try {
+                results.addAll(executeChunk(requestChunks.get(0), modeChunks.get(0), timeout, targets));
+            }
+            catch (J4pException e) {
+                failure = e;
+                failedChunks++;
+                addChunkFailure(results, requestChunks.get(0).size(), e);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.addAll(futures.get(i).get());
+                }
+                catch (ExecutionException e) {
+                    failure = toJ4pException(e.getCause());
+                    failedChunks++;
+                    addChunkFailure(results, requestChunks.get(i + 1).size(), failure);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new J4pException("Interrupted while waiting for " + _jolokiaUrl, e);
+        }
+        finally {
+            for (Future<List<Object>> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        if (failedChunks == requestChunks.size()) {
+            throw failure;
+        }
+        return results;
+    }
+
+    // Gives each request of the failed chunk its own failure
+    private static void addChunkFailure(List<Object> results, int size, J4pException failure) {
+        for (int i = 0; i < size; i++) {
+            results.add(new J4pException(failure.getMessage(), failure));
+        }
+    }
+
+    // Splits the list into consecutive chunks of at most the given size, 0 means no limit
+    static <T> List<List<T>> split(List<T> list, int size) {
+        if (size <= 0 || list.size() <= size) {
+            return Collections.singletonList(list);
+        }
+
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        for (int start = 0; start < list.size(); start += size) {
+            chunks.add(list.subList(start, Math.min(start + size, list.size())));
+        }
+        return chunks;
+    }
+
+    /**
+     * Executes the requests in a single bulk request, parsing the response as it's
+     * read instead of having J4pClient build the whole JSON tree.
+     * @param requests The requests
+     * @param modes How the value of each request's response is parsed
+     * @param timeout How long in milliseconds to wait on the response
+     * @param targets The hosts the latency is recorded for
+     * @return The results in the order of the requests
+     * @throws J4pException If the bulk request itself failed
+     */
+    private List<Object> executeChunk(List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes,
+            long timeout, Collection<String> targets) throws J4pException {
+        HttpResponse response = null;
+        long start = System.currentTimeMillis();
+        // Only include times that DO NOT timeout due
+        // to the server being down.
+        TimerContext context = _requestTime.time();
+        try {
+            // The request's parameters override the client's timeouts
+            HttpUriRequest httpRequest = _requestHandler.getHttpRequest(requests, null);
+            HttpConnectionParams.setSoTimeout(httpRequest.getParams(), (int) timeout);
+            HttpConnectionParams.setConnectionTimeout(httpRequest.getParams(),
+                (int) Math.min(timeout, JolokiaClientRegistry.CONNECTION_TIMEOUT));
+            if (JolokiaCompression.getInstance().isRequested(_jolokiaUrl)) {
+                httpRequest.setHeader("Accept-Encoding", JolokiaCompression.ACCEPT_ENCODING);
+            }
+
+            response = _j4pClient.getHttpClient().execute(httpRequest);
+            StatusLine status = response.getStatusLine();
+            HttpEntity entity = response.getEntity();
+            List<Object> results = parseResponse(status.getStatusCode(), status.getReasonPhrase(), entity.getContent(),
+                entity.getContentEncoding() != null ? entity.getContentEncoding().getValue() : null,
+                ContentType.getOrDefault(entity).getCharset(), requests, modes);
+            context.stop();
+            recordLatency(targets, System.currentTimeMillis() - start);
+
+            return results;
+        }
+        catch (Exception e) {
+            if (e instanceof SocketTimeoutException) {
+                recordLatency(targets, System.currentTimeMillis() - start);
+            }
+            throw toJ4pException(e);
+        }
+        finally {
+            _chunkLatency.update(System.currentTimeMillis() - start);
+            // Hands the connection back to the pool
+            if (response != null) {
+                try {
+                    EntityUtils.consume(response.getEntity());
+                }
+                catch (IOException e) {
+                    logger.debug("failed to release the connection to " + _jolokiaUrl, e);
+                }
+            }
+        }
+    }
+
+    // The bulk requests through a proxy carry the requests of all the hosts batched into them
+    private static void recordLatency(Collection<String> targets, long latency) {
+        for (String target : targets) {
+            TargetTimeouts.getInstance().record(target, latency);
+        }
+    }
+
+    private List<Object> parseResponse(int status, String reason, InputStream content, String encoding,
+            Charset charset, List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes) throws Exception {
+        if (status != HttpStatus.SC_OK) {
+            throw new J4pRemoteException(null, reason, null, status, null);
+        }
+
+        JolokiaCompression compression = JolokiaCompression.getInstance();
+        JolokiaCompression.CountingInputStream decoded = compression.decode(content, encoding);
+        Reader reader = new InputStreamReader(decoded, charset != null ? charset : UTF8);
+        JolokiaResponseParser parser = new JolokiaResponseParser(_requestHandler, requests, modes);
+        new JSONParser().parse(reader, parser);
+        // The size decides if the next response of the target is asked to be compressed
+        compression.record(_jolokiaUrl, decoded.getCount());
+
+        if (parser.getBulkError() != null) {
+            throw parser.getBulkError();
+        }
+        if (parser.getResults().size() != requests.size()) {
+            throw new J4pException(String.format("Expected %d responses but got %d",
+                requests.size(), parser.getResults().size()));
+        }
+
+        return parser.getResults();
+    }
+
+    // Maps the failures of a bulk request the same way J4pClient does
+    private J4pException toJ4pException(Throwable e) {
+        if (e instanceof J4pException) {
+            return (J4pException) e;
+        }
+        else if (e instanceof ConnectException) {
+            return new J4pConnectException("Cannot connect to " + _jolokiaUrl + ": " + e.getMessage(), (ConnectException) e);
+        }
+        else if (e instanceof ConnectTimeoutException) {
+            return new J4pTimeoutException("Read timeout while request " + _jolokiaUrl + ": " + e.getMessage(),
+                (ConnectTimeoutException) e);
+        }
+        else if (e instanceof IOException) {
+            return new J4pException("IO-Error while contacting the server: " + e, e);
+        }
+        else if (e instanceof ParseException) {
+            return new J4pException("Could not parse answer: " + e, e);
+        }
+        else if (e instanceof URISyntaxException) {
+            return new J4pException("Invalid URI " + _jolokiaUrl + ": " + e.getMessage(), e);
+        }
+        return new J4pException("Exception " + e.getMessage(), e);
+    }
+
+    // Reads the attributes of a failed multi-attribute read one by one, sharing
+    // the request between the items reading the same attribute
+    private void readSeparately(Map<ZabbixItem, J4pReadRequest> reads) throws J4pException {
+        List<J4pRequest> requests = new ArrayList<J4pRequest>(new LinkedHashSet<J4pReadRequest>(reads.values()));
+        List<Object> responseList = execute(requests,
+            Collections.nCopies(requests.size(), JolokiaResponseParser.Mode.TEXT));
+
+        for (Map.Entry<ZabbixItem, J4pReadRequest> entry : reads.entrySet()) {
+            Object response = responseList.get(requests.indexOf(entry.getValue()));
+            if (response instanceof String) {
+                _foundKeys.put(entry.getKey().getKey(), (String) response);
+            }
+            else {
+                _errorKeys.put(entry.getKey().getKey(), ((J4pException) response).getMessage());
+            }
+        }
+    }
+
+    private void buildGetRequest(ZabbixItem item, List<J4pReadRequest> getRequests, List<ZabbixItem> getReads)
+            throws MalformedObjectNameException {
+        if (item.getArgumentCount() < 1) {
+            _errorKeys.put(item.getKey(), "required key format: jmx.get[<object name or pattern>,<attribute name>,...]");
+            return;
+        }
+
+        // The attributes may be given as separate arguments or as one quoted list,
+        // all the attributes are read when none were given
+        List<String> attributes = new ArrayList<String>();
+        for (int i = 2; i <= item.getArgumentCount(); i++) {
+            for (String attribute : item.getArgument(i).split(",")) {
+                if (!attribute.trim().isEmpty()) {
+                    attributes.add(attribute.trim());
+                }
+            }
+        }
+
+        getRequests.add(new J4pReadRequest(_targetConfig, item.getArgument(1), attributes.toArray(new String[attributes.size()])));
+        getReads.add(item);
+    }
+
+    /**
+     * Builds the JSON document of a jmx.get item, the attributes of a single
+     * MBean or the attributes of each MBean matching the pattern keyed by
+     * the MBean's name.
+     */
+    private String buildGetOutput(J4pReadRequest request, Object response) throws Exception {
+        boolean pattern = request.getObjectName().isPattern();
+        if (response instanceof J4pException) {
+            if (pattern && isNoMatch(response)) {
+                return new JSONObject().toString();
+            }
+            throw (J4pException) response;
+        }
+
+        J4pReadResponse readResponse = (J4pReadResponse) response;
+        JSONObject mbeans = new JSONObject();
+        for (ObjectName name : readResponse.getObjectNames()) {
+            JSONObject values = new JSONObject();
+            for (String attribute : readResponse.getAttributes(name)) {
+                Object value = readResponse.getValue(name, attribute);
+                values.put(attribute, value == null ? JSONObject.NULL : value);
+            }
+
+            if (!pattern) {
+                return values.toString();
+            }
+            mbeans.put(name.getCanonicalName(), values);
+        }
+
+        return mbeans.toString();
+    }
+
+    // Jolokia fails pattern reads that match no MBean rather than returning nothing
+    private boolean isNoMatch(Object response) {
+        return response instanceof J4pRemoteException && InstanceNotFoundException.class.getName()
+                .equals(((J4pRemoteException) response).getErrorType());
+    }
+
+    private void buildAggregateRequest(ZabbixItem item, Map<String, ArrayList<ZabbixItem>> aggregateReads) {
+        if (item.getArgumentCount() != 2) {
+            _errorKeys.put(item.getKey(), String.format("required key format: %s[<object name pattern>,<attribute name>]", item.getKeyId()));
+            return;
+        }
+
+        ArrayList<ZabbixItem> items = aggregateReads.get(item.getArgument(1));
+        if (items == null) {
+            items = new ArrayList<ZabbixItem>();
+            aggregateReads.put(item.getArgument(1), items);
+        }
+        items.add(item);
+    }
+
+    private String aggregate(ZabbixItem item, Object response) throws Exception {
+        ValueAggregator aggregator = new ValueAggregator(item.getKeyId());
+
+        if (response instanceof J4pException) {
+            if (isNoMatch(response)) {
+                return aggregator.getResult();
+            }
+            throw (J4pException) response;
+        }
+
+        J4pReadResponse readResponse = (J4pReadResponse) response;
+        List<String> path = HelperFunctionChest.splitAttributePath(item.getArgument(2));
+        for (ObjectName name : readResponse.getObjectNames()) {
+            if (!readResponse.getAttributes(name).contains(path.get(0))) {
+                continue;
+            }
+
+            Object value = getPathValue(readResponse.getValue(name, path.get(0)), path);
+            if (value != null) {
+                aggregator.add(getValueToString(value));
+            }
+        }
+
+        return aggregator.getResult();
+    }
+    
+    /**
+     * Drills down into a composite or tabular attribute value along the path.
+     * Jolokia serializes a TabularData as maps nested by the row's index
+     * values, except for MXBean maps which become a plain map of the keys to
+     * the values so their rows don't have "key" and "value" fields of their own.
+     * @param value The attribute value
+     * @param path The attribute path as split by HelperFunctionChest.splitAttributePath
+     * @return The value at the end of the path or null if there is none
+     */
+    private Object getPathValue(Object value, List<String> path) {
+        for (int i = 1; i < path.size(); i++) {
+            String part = path.get(i);
+            if (part.startsWith("[")) {
+                String[] index = HelperFunctionChest.parseRowIndex(part);
+                for (String indexValue : index) {
+                    if (!(value instanceof Map)) {
+                        return null;
                     }
+                    value = ((Map<?, ?>) value).get(indexValue);
+                }
 
-                    String subAttr = item.getArgument(2).substring(dot + 1);
-                    // TODO: need recursive part here to find subkeys
-                    Object value = compositeObj.get(subAttr);
-                    if (value == null) {
-                        _errorKeys.put(item.getKey(), String.format(
-                            "Argument key=\"%s\" is not an existing item " +
-                            "name for this CompositeData instance.",
-                            subAttr));
+                if (i + 1 < path.size() && !(value instanceof Map && ((Map<?, ?>) value).containsKey(path.get(i + 1)))) {
+                    String field = path.get(i + 1);
+                    if (field.equals("value")) {
+                        i++;
                     }
-                    else {
-                        _foundKeys.put(item.getKey(), getValueToString(value));
+                    else if (field.equals("key") && i + 2 == path.size()) {
+                        // The row's key is the index, without the escapes
+                        return value == null ? null : joinRowIndex(index);
                     }
                 }
+            }
+            else {
+                if (!(value instanceof Map)) {
+                    return null;
+                }
+                value = ((Map<?, ?>) value).get(part);
+            }
+        }
+
+        return value;
+    }
+
+    private static String joinRowIndex(String[] index) {
+        StringBuilder builder = new StringBuilder(index[0]);
+        for (int i = 1; i < index.length; i++) {
+            builder.append(',').append(index[i]);
+        }
+        return builder.toString();
+    }
 
-                responseIndex++;
+    /**
+     * Finds the longest path the items drilling into the same attribute share
+     * so only that part of the value is sent by the agent. The path stops at
+     * the first TabularData row as the agent resolves the row fields of MXBean
+     * maps differently, these are resolved locally by getPathValue.
+     * @param items The items reading the same attribute
+     * @return The attribute followed by the common composite item names
+     */
+    private List<String> getCommonPath(List<ZabbixItem> items) {
+        List<String> common = null;
+        for (ZabbixItem item : items) {
+            List<String> path = HelperFunctionChest.splitAttributePath(item.getArgument(2));
+            int length = 1;
+            while (length < path.size() && !path.get(length).startsWith("[")
+                    && (common == null || (length < common.size() && path.get(length).equals(common.get(length))))) {
+                length++;
             }
+            common = path.subList(0, length);
         }
+
+        return common;
     }
-    
+
+    // Jolokia paths are separated by slashes, the item names are escaped in case they contain any
+    private String buildJolokiaPath(List<String> path) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i < path.size(); i++) {
+            if (i > 1) {
+                builder.append('/');
+            }
+            builder.append(J4pRequest.escape(path.get(i)));
+        }
+
+        return builder.toString();
+    }
+
     private String getValueToString(Object value) {
         String result = null;
         // Special array handling
@@ -304,7 +1209,7 @@ class JolokiaChecker extends ItemChecker {
     private void buildReadRequest(ZabbixItem item,
                                   List<J4pRequest> allRequests,
                                   List<ZabbixItem> standardRequestKeys,
-                                  List<J4pReadRequest> compositeRequests,
+                                  Map<ObjectName, Map<String, List<ZabbixItem>>> attributeReads,
                                   Map<String, ArrayList<ZabbixItem>> compositeReads)
             throws MalformedObjectNameException {
         if (item.getArgumentCount() != 2) {
@@ -312,31 +1217,38 @@ class JolokiaChecker extends ItemChecker {
             return;
         }
         
-        String attribute = item.getArgument(2);
-        int dot = attribute.indexOf(".");
-        if (dot != -1) {
-        	// Handle composite reads here
-            attribute = attribute.substring(0, dot);
-            String uniqueKey = item.getArgument(1) + "||" + attribute;
-            if (compositeReads.containsKey(uniqueKey)) {
-                List<ZabbixItem> subAttributes = compositeReads
-                    .get(uniqueKey);
-                subAttributes.add(item);
-            }
-            else {
-                ArrayList<ZabbixItem> subItems = new ArrayList<ZabbixItem>();
-                subItems.add(item);
+        List<String> path = HelperFunctionChest.splitAttributePath(item.getArgument(2));
+        if (path.size() > 1) {
+            // Handle composite and tabular reads here, the attribute is read
+            // once for every item drilling into it
+            String uniqueKey = item.getArgument(1) + "||" + path.get(0);
+            ArrayList<ZabbixItem> subItems = compositeReads.get(uniqueKey);
+            if (subItems == null) {
+                subItems = new ArrayList<ZabbixItem>();
                 compositeReads.put(uniqueKey, subItems);
-                J4pReadRequest request = new J4pReadRequest(
-                    item.getArgument(1), attribute);
-                compositeRequests.add(request);
             }
+            subItems.add(item);
         }
         else {
-        	// Standard read here
-            allRequests.add(new J4pReadRequest(item.getArgument(1), item
-                .getArgument(2)));
-            standardRequestKeys.add(item);
+            ObjectName objectName = new ObjectName(item.getArgument(1));
+            if (objectName.isPattern()) {
+                allRequests.add(new J4pReadRequest(_targetConfig, objectName, path.get(0)));
+                standardRequestKeys.add(item);
+                return;
+            }
+
+            // Standard read here, grouped with the other attributes of the MBean
+            Map<String, List<ZabbixItem>> attributes = attributeReads.get(objectName);
+            if (attributes == null) {
+                attributes = new LinkedHashMap<String, List<ZabbixItem>>();
+                attributeReads.put(objectName, attributes);
+            }
+            List<ZabbixItem> items = attributes.get(path.get(0));
+            if (items == null) {
+                items = new ArrayList<ZabbixItem>();
+                attributes.put(path.get(0), items);
+            }
+            items.add(item);
         }
     }
 
@@ -382,10 +1294,10 @@ class JolokiaChecker extends ItemChecker {
         
         J4pExecRequest exec = null;
         if (params == null) {
-            exec = new J4pExecRequest(item.getArgument(1), function);
+            exec = new J4pExecRequest(_targetConfig, item.getArgument(1), function);
         }
         else {
-            exec = new J4pExecRequest(item.getArgument(1), function,
+            exec = new J4pExecRequest(_targetConfig, item.getArgument(1), function,
                 (Object[]) params);
         }
         
@@ -414,9 +1326,7 @@ class JolokiaChecker extends ItemChecker {
         return builder.substring(0, builder.length() - 1);
     }
 
-    private String buildJolokiaUrl(JmxConfiguration config) {
-        String url = config.getUrl();
-
+    private String buildJolokiaUrl(String url) {
         // Having issues with Jolokia if the endpoint doesn't have an ending
         // slash
         if (!url.endsWith("/")) {
@@ -464,4 +1374,228 @@ class JolokiaChecker extends ItemChecker {
 
         return output;
     }
+
+    /**
+     * Finds the attributes of primitive types of all the MBeans the same way
+     * JMXItemChecker does for jmx.discovery without arguments. The MBeans and
+     * their attributes come from the agent's (cached) list, the attributes
+     * that can't hold primitive values aren't even read.
+     * @return The discovery output
+     * @throws J4pException When the MBeans can't be listed
+     * @throws JSONException
+     */
+    private String discoverAttributes() throws J4pException, JSONException {
+        JolokiaListCache listCache = JolokiaListCache.getInstance();
+        List<JolokiaListCache.ListedMBean> mbeans = listCache.get(_target);
+        if (mbeans == null) {
+            Object response = execute(Collections.<J4pRequest>singletonList(new J4pListRequest(_targetConfig, (String) null)),
+                Collections.singletonList(JolokiaResponseParser.Mode.TREE)).get(0);
+            if (response instanceof J4pException) {
+                throw (J4pException) response;
+            }
+            mbeans = JolokiaListCache.parse((Map<?, ?>) ((J4pResponse<?>) response).getValue());
+            listCache.put(_target, mbeans);
+        }
+
+        // One read per MBean for all of its attributes that may hold primitive values
+        List<J4pRequest> requests = new ArrayList<J4pRequest>();
+        List<JolokiaListCache.ListedMBean> readMBeans = new ArrayList<JolokiaListCache.ListedMBean>();
+        for (JolokiaListCache.ListedMBean mbean : mbeans) {
+            List<String> attributes = new ArrayList<String>();
+            for (JolokiaListCache.ListedAttribute attribute : mbean.attributes) {
+                if (isDiscoverableType(attribute.type)) {
+                    attributes.add(attribute.name);
+                }
+            }
+            if (attributes.isEmpty()) {
+                continue;
+            }
+
+            try {
+                requests.add(new J4pReadRequest(_targetConfig, mbean.name, attributes.toArray(new String[attributes.size()])));
+                readMBeans.add(mbean);
+            }
+            catch (MalformedObjectNameException e) {
+                logger.trace("skipping MBean '{}' - {}", mbean.name, e.getMessage());
+            }
+        }
+        List<Object> responses = execute(requests,
+            Collections.nCopies(requests.size(), JolokiaResponseParser.Mode.TREE));
+
+        // The agent fails the whole read when one of the attributes can't be
+        // read, those are read separately and the failing attributes skipped
+        List<J4pRequest> retries = new ArrayList<J4pRequest>();
+        for (int i = 0; i < requests.size(); i++) {
+            J4pReadRequest request = (J4pReadRequest) requests.get(i);
+            if (responses.get(i) instanceof J4pRemoteException && !request.hasSingleAttribute()) {
+                for (String attribute : request.getAttributes()) {
+                    retries.add(new J4pReadRequest(_targetConfig, request.getObjectName(), attribute));
+                }
+            }
+        }
+        List<Object> retryResponses = retries.isEmpty() ? Collections.emptyList() : execute(retries,
+            Collections.nCopies(retries.size(), JolokiaResponseParser.Mode.TREE));
+
+        Map<String, Map<String, Object>> values = new HashMap<String, Map<String, Object>>();
+        List<J4pRequest> allRequests = new ArrayList<J4pRequest>(requests);
+        allRequests.addAll(retries);
+        List<Object> allResponses = new ArrayList<Object>(responses);
+        allResponses.addAll(retryResponses);
+        for (int i = 0; i < allRequests.size(); i++) {
+            J4pReadRequest request = (J4pReadRequest) allRequests.get(i);
+            Object response = allResponses.get(i);
+            if (response instanceof J4pException) {
+                logger.trace("reading '{}' failed - {}", request.getObjectName(), ((J4pException) response).getMessage());
+                continue;
+            }
+
+            String name = request.getObjectName().getCanonicalName();
+            Map<String, Object> mbeanValues = values.get(name);
+            if (mbeanValues == null) {
+                mbeanValues = new HashMap<String, Object>();
+                values.put(name, mbeanValues);
+            }
+            Object value = ((J4pResponse<?>) response).getValue();
+            if (request.hasSingleAttribute()) {
+                mbeanValues.put(request.getAttribute(), value);
+            }
+            else if (value instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    mbeanValues.put(entry.getKey().toString(), entry.getValue());
+                }
+            }
+        }
+
+        JSONArray counters = new JSONArray();
+        for (int i = 0; i < readMBeans.size(); i++) {
+            JolokiaListCache.ListedMBean mbean = readMBeans.get(i);
+            Map<String, Object> mbeanValues = values.get(((J4pReadRequest) requests.get(i)).getObjectName().getCanonicalName());
+            if (mbeanValues == null) {
+                continue;
+            }
+
+            for (JolokiaListCache.ListedAttribute attribute : mbean.attributes) {
+                if (!mbeanValues.containsKey(attribute.name)) {
+                    continue;
+                }
+                String descr = attribute.name.equals(attribute.description) ? null : attribute.description;
+                findPrimitiveAttributes(counters, mbean.name, descr, attribute.name, attribute.type,
+                    mbeanValues.get(attribute.name));
+            }
+        }
+
+        JSONObject mapping = new JSONObject();
+        mapping.put(ItemChecker.JSON_TAG_DATA, counters);
+        return mapping.toString();
+    }
+
+    private boolean isDiscoverableType(String type) {
+        return type == null || PRIMITIVE_TYPES.containsKey(type) || OBJECT_TYPE.equals(type)
+            || COMPOSITE_TYPE.equals(type) || TABULAR_TYPE.equals(type);
+    }
+
+    private void findPrimitiveAttributes(JSONArray counters, String mbean, String descr, String attrPath,
+            String type, Object value) throws JSONException {
+        if (value == null) {
+            return;
+        }
+
+        if (TABULAR_TYPE.equals(type)) {
+            if (value instanceof Map) {
+                findTableRows(counters, mbean, descr, attrPath, (Map<?, ?>) value, Collections.<String>emptyList());
+            }
+        }
+        else if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                findPrimitiveAttributes(counters, mbean, descr, attrPath + "." + entry.getKey(), null, entry.getValue());
+            }
+        }
+        else if (value instanceof List) {
+            logger.trace("found attribute of a known, unsupported type: {}", attrPath);
+        }
+        else {
+            // The declared type is more precise than the type of the JSON value
+            String className = type != null ? PRIMITIVE_TYPES.get(type) : null;
+            JSONObject counter = new JSONObject();
+            counter.put("{#JMXDESC}", null == descr ? mbean + "," + attrPath : descr);
+            counter.put("{#JMXOBJ}", mbean);
+            counter.put("{#JMXATTR}", attrPath);
+            counter.put("{#JMXTYPE}", className != null ? className : value.getClass().getName());
+            counter.put("{#JMXVALUE}", value.toString());
+            counters.put(counter);
+        }
+    }
+
+    // Jolokia renders the rows of a TabularData as maps nested by the row's index
+    // values, except the maps of MXBeans which are rendered as key to value maps
+    private void findTableRows(JSONArray counters, String mbean, String descr, String attrPath,
+            Map<?, ?> table, List<String> index) throws JSONException {
+        for (Map.Entry<?, ?> entry : table.entrySet()) {
+            List<String> rowIndex = new ArrayList<String>(index);
+            rowIndex.add(String.valueOf(entry.getKey()));
+            Object value = entry.getValue();
+            if (value instanceof Map && isTableRow((Map<?, ?>) value, rowIndex)) {
+                findPrimitiveAttributes(counters, mbean, descr, attrPath + buildRowIndex(rowIndex), null, value);
+            }
+            else if (value instanceof Map && isTableLevel((Map<?, ?>) value)) {
+                findTableRows(counters, mbean, descr, attrPath, (Map<?, ?>) value, rowIndex);
+            }
+            else if (index.isEmpty()) {
+                String rowPath = attrPath + buildRowIndex(rowIndex);
+                findPrimitiveAttributes(counters, mbean, descr, rowPath + ".key", null, entry.getKey());
+                findPrimitiveAttributes(counters, mbean, descr, rowPath + ".value", null, value);
+            }
+        }
+    }
+
+    // A row holds its index values
+    private boolean isTableRow(Map<?, ?> row, List<String> index) {
+        List<String> values = new ArrayList<String>();
+        for (Object value : row.values()) {
+            values.add(String.valueOf(value));
+        }
+        return values.containsAll(index);
+    }
+
+    // A level of the index only holds the next levels or the rows
+    private boolean isTableLevel(Map<?, ?> level) {
+        if (level.isEmpty()) {
+            return false;
+        }
+        for (Object value : level.values()) {
+            if (!(value instanceof Map)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String buildRowIndex(List<String> index) {
+        StringBuilder builder = new StringBuilder("[");
+        for (String indexValue : index) {
+            if (builder.length() > 1) {
+                builder.append(',');
+            }
+            builder.append(HelperFunctionChest.escapeRowIndexValue(indexValue));
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * The requests of a bulk read along with the keys each result is for
+     */
+    private static class ReadBatch {
+
+        final List<J4pRequest> requests = new ArrayList<J4pRequest>();
+        final List<JolokiaResponseParser.Mode> modes = new ArrayList<JolokiaResponseParser.Mode>();
+        final List<ZabbixItem> standardKeys = new ArrayList<ZabbixItem>();
+        final Map<ObjectName, Map<String, List<ZabbixItem>>> attributeReads = new LinkedHashMap<ObjectName, Map<String, List<ZabbixItem>>>();
+        final List<J4pReadRequest> attributeRequests = new ArrayList<J4pReadRequest>();
+        final Map<String, ArrayList<ZabbixItem>> compositeReads = new LinkedHashMap<String, ArrayList<ZabbixItem>>();
+        final List<Integer> compositePrefixes = new ArrayList<Integer>();
+        final Map<String, ArrayList<ZabbixItem>> aggregateReads = new LinkedHashMap<String, ArrayList<ZabbixItem>>();
+        final List<J4pReadRequest> getRequests = new ArrayList<J4pReadRequest>();
+        final List<ZabbixItem> getReads = new ArrayList<ZabbixItem>();
+        final List<ZabbixItem> discoveries = new ArrayList<ZabbixItem>();
+    }
 }
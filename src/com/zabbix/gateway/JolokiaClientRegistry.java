@@ -0,0 +1,306 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.jolokia.client.J4pClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Keeps a long-lived J4pClient per Jolokia URL and credentials instead of
+ * building a new one (with its own HttpClient and connections) for every request.
+ * All the clients share one pooling connection manager so connections to a
+ * target are kept alive and reused between polls. Connections idle for longer
+ * than the keep-alive time are closed in the background, as are the clients
+ * not used for longer than CLIENT_IDLE_TIMEOUT.
+ * The registry also holds the threads sending the chunks of bulk requests
+ * that exceed the configured maximum number of requests in parallel.
+ *
+ */
+class JolokiaClientRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(JolokiaClientRegistry.class);
+
+    static final int DEFAULT_KEEP_ALIVE = 30; // seconds
+    static final int DEFAULT_MAX_PER_ROUTE = 10;
+    static final int DEFAULT_MAX_TOTAL = 200;
+    static final int DEFAULT_MAX_BULK_REQUESTS = 0; // no limit
+
+    private static final int SOCKET_TIMEOUT = 10 * 1000; // wait for at most 10 seconds for a response
+    static final int CONNECTION_TIMEOUT = 5 * 1000; // wait for at most 5 seconds for
+                                                            // the connection to be established
+    private static final int POOL_TIMEOUT = 5 * 1000; // wait for at most 5 seconds for a pooled connection
+    private static final long EVICTION_INTERVAL = 5 * 1000;
+    private static final long CHUNK_THREAD_IDLE = 60; // seconds
+    static final long CLIENT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private static volatile JolokiaClientRegistry _instance = new JolokiaClientRegistry(
+            DEFAULT_KEEP_ALIVE, DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_TOTAL, DEFAULT_MAX_BULK_REQUESTS);
+
+    private final ConcurrentMap<String, PooledClient> _clients = new ConcurrentHashMap<String, PooledClient>();
+    private final PoolingClientConnectionManager _connectionManager;
+    private final long _keepAlive;
+    private final ScheduledExecutorService _evictor;
+    private final int _maxBulkRequests;
+    private final ExecutorService _chunkExecutor;
+
+    static {
+        Metrics.newGauge(JolokiaClientRegistry.class, "jolokia-pool-leased", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._connectionManager.getTotalStats().getLeased();
+            }
+
+        });
+        Metrics.newGauge(JolokiaClientRegistry.class, "jolokia-pool-available", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._connectionManager.getTotalStats().getAvailable();
+            }
+
+        });
+        Metrics.newGauge(JolokiaClientRegistry.class, "jolokia-pool-pending", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._connectionManager.getTotalStats().getPending();
+            }
+
+        });
+        Metrics.newGauge(JolokiaClientRegistry.class, "jolokia-clients", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._clients.size();
+            }
+
+        });
+    }
+
+    /**
+     * @param keepAlive How long in seconds an idle connection is kept for
+     * @param maxPerRoute The maximum number of connections per target
+     * @param maxTotal The maximum number of connections overall
+     * @param maxBulkRequests The maximum number of requests sent in one bulk request, 0 for no limit
+     */
+    JolokiaClientRegistry(int keepAlive, int maxPerRoute, int maxTotal, int maxBulkRequests) {
+        _keepAlive = TimeUnit.SECONDS.toMillis(keepAlive);
+        _maxBulkRequests = maxBulkRequests;
+        _connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+        _connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        _connectionManager.setMaxTotal(maxTotal);
+
+        _evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jolokia-connection-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _evictor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                _connectionManager.closeExpiredConnections();
+                _connectionManager.closeIdleConnections(_keepAlive, TimeUnit.MILLISECONDS);
+                evictIdleClients(System.currentTimeMillis());
+            }
+
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+
+        // There's no point in sending more chunks at once than there are connections,
+        // the caller sends the chunk itself when all the threads are busy
+        _chunkExecutor = new ThreadPoolExecutor(0, maxTotal, CHUNK_THREAD_IDLE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger _count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "jolokia-chunk-" + _count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // Unlike CallerRunsPolicy this also runs the chunk after a shutdown
+                        r.run();
+                    }
+                });
+    }
+
+    public static JolokiaClientRegistry getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Replaces the registry with one using the given pool settings
+     * @param keepAlive How long in seconds an idle connection is kept for
+     * @param maxPerRoute The maximum number of connections per target
+     * @param maxTotal The maximum number of connections overall
+     * @param maxBulkRequests The maximum number of requests sent in one bulk request, 0 for no limit
+     */
+    public static void configure(int keepAlive, int maxPerRoute, int maxTotal, int maxBulkRequests) {
+        JolokiaClientRegistry previous = _instance;
+        _instance = new JolokiaClientRegistry(keepAlive, maxPerRoute, maxTotal, maxBulkRequests);
+        previous.shutdown();
+    }
+
+    /**
+     * Gets the client for the Jolokia URL and credentials, creating it on first use
+     * @param url The Jolokia URL
+     * @param username The username or null
+     * @param password The password or null
+     * @return The shared client
+     */
+    public J4pClient getClient(String url, String username, String password) {
+        String clientKey = url + "|" + username + "|" + HelperFunctionChest.hashPassword(password);
+        PooledClient client = _clients.get(clientKey);
+        if (client == null) {
+            PooledClient newClient = new PooledClient(url, createClient(url, username, password));
+            client = _clients.putIfAbsent(clientKey, newClient);
+            if (client == null) {
+                logger.debug("created Jolokia client for {}", url);
+                client = newClient;
+            }
+        }
+
+        client.lastUsed = System.currentTimeMillis();
+        return client.client;
+    }
+
+    /**
+     * Drops the clients that weren't used for a while, i.e. those of hosts no
+     * longer polled or of credentials that were changed. Their connections are
+     * in the shared pool and closed once idle like the others.
+     * @param now The current time
+     */
+    void evictIdleClients(long now) {
+        for (Map.Entry<String, PooledClient> entry : _clients.entrySet()) {
+            if (now - entry.getValue().lastUsed > CLIENT_IDLE_TIMEOUT
+                    && _clients.remove(entry.getKey(), entry.getValue())) {
+                logger.debug("dropped idle Jolokia client for {}", entry.getValue().url);
+            }
+        }
+    }
+
+    int getClientCount() {
+        return _clients.size();
+    }
+
+    /**
+     * @return The maximum number of requests sent in one bulk request, 0 for no limit
+     */
+    public int getMaxBulkRequests() {
+        return _maxBulkRequests;
+    }
+
+    /**
+     * @return The executor sending the chunks of a bulk request in parallel
+     */
+    public ExecutorService getChunkExecutor() {
+        return _chunkExecutor;
+    }
+
+    void shutdown() {
+        _evictor.shutdownNow();
+        _chunkExecutor.shutdown();
+        _connectionManager.shutdown();
+        _clients.clear();
+    }
+
+    private static class PooledClient {
+        final String url;
+        final J4pClient client;
+        volatile long lastUsed;
+
+        PooledClient(String url, J4pClient client) {
+            this.url = url;
+            this.client = client;
+        }
+    }
+
+    private J4pClient createClient(String url, String username, String password) {
+        // The same parameters the J4pClientBuilder would set
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "utf-8");
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+        HttpClientParams.setConnectionManagerTimeout(params, POOL_TIMEOUT);
+
+        DefaultHttpClient httpClient = new DefaultHttpClient(_connectionManager, params);
+        httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy _serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // Honor a shorter keep-alive announced by the server
+                long serverKeepAlive = _serverStrategy.getKeepAliveDuration(response, context);
+                return serverKeepAlive > 0 ? Math.min(serverKeepAlive, _keepAlive) : _keepAlive;
+            }
+        });
+
+        if (username != null) {
+            httpClient.getCredentialsProvider().setCredentials(AuthScope.ANY,
+                    new UsernamePasswordCredentials(username, password));
+        }
+
+        return new J4pClient(url, httpClient);
+    }
+}
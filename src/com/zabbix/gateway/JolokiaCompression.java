@@ -0,0 +1,174 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package com.zabbix.gateway;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Negotiates gzip/deflate compressed responses with the Jolokia agents.
+ * The response sizes aren't known up front so compression is only asked for
+ * from the targets whose previous response was at least the threshold big,
+ * small responses (most polls) don't pay for compressing and inflating.
+ * The bytes read from the connection and the bytes they decoded to are
+ * counted for all the responses.
+ *
+ */
+class JolokiaCompression {
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final Counter _compressedBytes = Metrics.newCounter(JolokiaCompression.class, "jolokia-compressed-bytes");
+    private static final Counter _uncompressedBytes = Metrics.newCounter(JolokiaCompression.class, "jolokia-uncompressed-bytes");
+
+    private static volatile JolokiaCompression _instance = new JolokiaCompression(0);
+
+    private final int _threshold;
+    private final ConcurrentMap<String, Long> _responseSizes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @param threshold The response size in bytes from which compression is asked for, 0 disables compression
+     */
+    JolokiaCompression(int threshold) {
+        _threshold = threshold;
+    }
+
+    public static JolokiaCompression getInstance() {
+        return _instance;
+    }
+
+    /**
+     * @param threshold The response size in bytes from which compression is asked for, 0 disables compression
+     */
+    public static void configure(int threshold) {
+        _instance = new JolokiaCompression(threshold);
+    }
+
+    /**
+     * Tests if a compressed response should be asked for from the target
+     * @param target The Jolokia URL
+     */
+    public boolean isRequested(String target) {
+        if (_threshold == 0) {
+            return false;
+        }
+
+        Long size = _responseSizes.get(target);
+        return size != null && size >= _threshold;
+    }
+
+    /**
+     * Decodes the response content
+     * @param content The content as read from the connection
+     * @param encoding The Content-Encoding of the response or null
+     * @return The decoded content
+     * @throws IOException When the content can't be decoded
+     */
+    public CountingInputStream decode(InputStream content, String encoding) throws IOException {
+        InputStream wire = new CountingInputStream(content, _compressedBytes);
+        if (encoding != null) {
+            encoding = encoding.trim();
+            if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+                wire = new GZIPInputStream(wire);
+            }
+            else if ("deflate".equalsIgnoreCase(encoding)) {
+                wire = new InflaterInputStream(wire);
+            }
+            else if (!encoding.isEmpty() && !"identity".equalsIgnoreCase(encoding)) {
+                throw new IOException("Unsupported Content-Encoding " + encoding);
+            }
+        }
+
+        return new CountingInputStream(wire, _uncompressedBytes);
+    }
+
+    /**
+     * Records the decoded size of the target's response
+     * @param target The Jolokia URL
+     * @param size The size in bytes
+     */
+    public void record(String target, long size) {
+        if (_threshold > 0) {
+            _responseSizes.put(target, size);
+        }
+    }
+
+    /**
+     * Counts the bytes read through it
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        private final Counter _counter;
+        private long _count;
+
+        CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            _counter = counter;
+        }
+
+        long getCount() {
+            return _count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long bytes) {
+            _count += bytes;
+            _counter.inc(bytes);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package com.zabbix.gateway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Caches the MBean metadata of the Jolokia agents as returned by a list
+ * request. Listing every MBean is the most expensive request for an agent
+ * while the MBeans and their attributes rarely change, so the unfiltered
+ * jmx.discovery only lists an agent's MBeans again once the cached list
+ * expired.
+ *
+ */
+class JolokiaListCache {
+
+    static final int DEFAULT_TTL = 600; // seconds
+
+    private static final Counter _hits = Metrics.newCounter(JolokiaListCache.class, "list-cache-hits");
+
+    private static volatile JolokiaListCache _instance = new JolokiaListCache(DEFAULT_TTL);
+
+    private final long _ttl;
+    private final ConcurrentMap<String, CachedList> _lists = new ConcurrentHashMap<String, CachedList>();
+
+    static {
+        Metrics.newGauge(JolokiaListCache.class, "list-cache-size", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._lists.size();
+            }
+
+        });
+    }
+
+    /**
+     * An MBean and its attributes
+     */
+    static class ListedMBean {
+        final String name;
+        final List<ListedAttribute> attributes = new ArrayList<ListedAttribute>();
+
+        ListedMBean(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The metadata of an attribute
+     */
+    static class ListedAttribute {
+        final String name;
+        final String type;
+        final String description;
+
+        ListedAttribute(String name, String type, String description) {
+            this.name = name;
+            this.type = type;
+            this.description = description;
+        }
+    }
+
+    private static class CachedList {
+        final List<ListedMBean> mbeans;
+        final long expires;
+
+        CachedList(List<ListedMBean> mbeans, long expires) {
+            this.mbeans = mbeans;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param ttl How long in seconds a list is cached for, 0 disables caching
+     */
+    JolokiaListCache(int ttl) {
+        _ttl = TimeUnit.SECONDS.toMillis(ttl);
+    }
+
+    public static JolokiaListCache getInstance() {
+        return _instance;
+    }
+
+    /**
+     * @param ttl How long in seconds a list is cached for, 0 disables caching
+     */
+    public static void configure(int ttl) {
+        _instance = new JolokiaListCache(ttl);
+    }
+
+    /**
+     * Gets the cached MBeans of the agent
+     * @param jolokiaUrl The agent's URL
+     * @return The MBeans or null when they have to be listed
+     */
+    public List<ListedMBean> get(String jolokiaUrl) {
+        CachedList list = _lists.get(jolokiaUrl);
+        if (list == null) {
+            return null;
+        }
+        if (list.expires < System.currentTimeMillis()) {
+            _lists.remove(jolokiaUrl, list);
+            return null;
+        }
+
+        _hits.inc();
+        return list.mbeans;
+    }
+
+    /**
+     * Caches the MBeans listed by the agent
+     * @param jolokiaUrl The agent's URL
+     * @param mbeans The MBeans
+     */
+    public void put(String jolokiaUrl, List<ListedMBean> mbeans) {
+        if (_ttl > 0) {
+            _lists.put(jolokiaUrl, new CachedList(mbeans, System.currentTimeMillis() + _ttl));
+        }
+    }
+
+    /**
+     * Reads the MBeans from the value of a list response which maps
+     * the domains to their MBeans' key properties to the MBeans' metadata
+     * @param list The list response's value
+     * @return The MBeans
+     */
+    static List<ListedMBean> parse(Map<?, ?> list) {
+        List<ListedMBean> mbeans = new ArrayList<ListedMBean>();
+        for (Map.Entry<?, ?> domain : list.entrySet()) {
+            if (!(domain.getValue() instanceof Map)) {
+                continue;
+            }
+
+            for (Map.Entry<?, ?> properties : ((Map<?, ?>) domain.getValue()).entrySet()) {
+                if (!(properties.getValue() instanceof Map)) {
+                    continue;
+                }
+
+                ListedMBean mbean = new ListedMBean(domain.getKey() + ":" + properties.getKey());
+                Object attributes = ((Map<?, ?>) properties.getValue()).get("attr");
+                if (attributes instanceof Map) {
+                    for (Map.Entry<?, ?> attribute : ((Map<?, ?>) attributes).entrySet()) {
+                        Map<?, ?> info = attribute.getValue() instanceof Map
+                            ? (Map<?, ?>) attribute.getValue() : Collections.emptyMap();
+                        mbean.attributes.add(new ListedAttribute(attribute.getKey().toString(),
+                            (String) info.get("type"), (String) info.get("desc")));
+                    }
+                }
+                mbeans.add(mbean);
+            }
+        }
+
+        return mbeans;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jolokia.client.exception.J4pException;
+import org.jolokia.client.request.J4pRequest;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+
+/**
+ * Batches the requests for the hosts read through the same Jolokia proxy
+ * into bulk requests. Up to a few bulk requests are in flight to a proxy at
+ * a time, once those are all in flight the requests for other hosts are
+ * queued and when one of them completed all the queued requests are sent
+ * together by one of the waiting threads. The proxy is thus sent a bounded
+ * number of bulk requests at a time, however many hosts are behind it.
+ *
+ */
+class JolokiaProxyBatcher {
+
+    // Bulk requests in flight to a proxy at a time
+    static final int MAX_IN_FLIGHT = 4;
+
+    private static final JolokiaProxyBatcher _instance = new JolokiaProxyBatcher(MAX_IN_FLIGHT);
+
+    // Number of requests of different pollers sent in each bulk request to a proxy
+    private static final Histogram _batchSize = Metrics.newHistogram(JolokiaProxyBatcher.class, "proxy-batch-size", true);
+
+    private final ConcurrentMap<String, ProxyQueue> _queues = new ConcurrentHashMap<String, ProxyQueue>();
+    private final int _maxInFlight;
+
+    /**
+     * Sends a bulk request to the proxy
+     */
+    interface Sender {
+
+        /**
+         * @return The host the requests are for
+         */
+        String getTarget();
+
+        /**
+         * @return How long in milliseconds the host is waited on
+         */
+        long getTimeout();
+
+        /**
+         * @param requests The requests
+         * @param modes How the value of each request's response is parsed
+         * @param timeout How long in milliseconds to wait on the response
+         * @param targets The hosts the latency of the bulk request is recorded for
+         * @return The results in the order of the requests
+         * @throws J4pException If the bulk request itself failed
+         */
+        List<Object> send(List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes, long timeout,
+                Collection<String> targets) throws J4pException;
+    }
+
+    private static class ProxyQueue {
+        final List<Submission> pending = new ArrayList<Submission>();
+        int inFlight;
+    }
+
+    private static class Submission {
+        final List<J4pRequest> requests;
+        final List<JolokiaResponseParser.Mode> modes;
+        final Sender sender;
+        List<Object> results;
+        J4pException failure;
+        // Handed the slot of a completed bulk request to send the queued requests
+        boolean leader;
+        boolean done;
+
+        Submission(List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes, Sender sender) {
+            this.requests = requests;
+            this.modes = modes;
+            this.sender = sender;
+        }
+
+        List<Object> getResults() throws J4pException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (results == null) {
+                throw new J4pException("The bulk request sending the request failed");
+            }
+            return results;
+        }
+    }
+
+    JolokiaProxyBatcher(int maxInFlight) {
+        _maxInFlight = maxInFlight;
+    }
+
+    static JolokiaProxyBatcher getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Executes the requests together with the ones queued for the same proxy,
+     * blocking until their results are in. When a bulk request carrying the
+     * requests of other hosts fails, each of the requests is given the failure
+     * in the results instead.
+     * @param proxy Identifies the proxy
+     * @param requests The requests
+     * @param modes How the value of each request's response is parsed
+     * @param sender Sends the bulk request should this thread be the one sending it
+     * @return The results in the order of the requests
+     * @throws J4pException If the bulk request of only these requests failed
+     */
+    List<Object> execute(String proxy, List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes,
+            Sender sender) throws J4pException {
+        ProxyQueue queue = getQueue(proxy);
+        Submission submission = new Submission(requests, modes, sender);
+        List<Submission> batch;
+        synchronized (queue) {
+            queue.pending.add(submission);
+            if (queue.inFlight < _maxInFlight) {
+                queue.inFlight++;
+            }
+            else {
+                try {
+                    while (!submission.done && !submission.leader) {
+                        queue.wait();
+                    }
+                }
+                catch (InterruptedException e) {
+                    queue.pending.remove(submission);
+                    if (submission.leader) {
+                        release(queue);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new J4pException("Interrupted while waiting for " + proxy, e);
+                }
+                if (submission.done) {
+                    return submission.getResults();
+                }
+            }
+
+            batch = new ArrayList<Submission>(queue.pending);
+            queue.pending.clear();
+            for (Submission queued : batch) {
+                // Another thread took the queued requests before the promoted one woke up
+                if (queued.leader && queued != submission) {
+                    queued.leader = false;
+                    queue.inFlight--;
+                }
+            }
+        }
+
+        try {
+            send(batch, sender);
+        }
+        finally {
+            synchronized (queue) {
+                for (Submission sent : batch) {
+                    sent.done = true;
+                }
+                release(queue);
+            }
+        }
+
+        return submission.getResults();
+    }
+
+    private ProxyQueue getQueue(String proxy) {
+        ProxyQueue queue = _queues.get(proxy);
+        if (queue == null) {
+            queue = new ProxyQueue();
+            ProxyQueue existing = _queues.putIfAbsent(proxy, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    // Hands the slot of a completed bulk request to the first one waiting and
+    // wakes up those whose results are in, the lock must be held
+    private void release(ProxyQueue queue) {
+        queue.notifyAll();
+        for (Submission queued : queue.pending) {
+            if (!queued.leader) {
+                queued.leader = true;
+                return;
+            }
+        }
+        queue.inFlight--;
+    }
+
+    // Sends the requests of the batch in one go and hands each its part of the results
+    private void send(List<Submission> batch, Sender sender) {
+        _batchSize.update(batch.size());
+        if (batch.size() == 1) {
+            Submission submission = batch.get(0);
+            try {
+                submission.results = sender.send(submission.requests, submission.modes, sender.getTimeout(),
+                    Collections.singleton(sender.getTarget()));
+            }
+            catch (J4pException e) {
+                submission.failure = e;
+            }
+            catch (RuntimeException e) {
+                submission.failure = new J4pException("Exception " + e.getMessage(), e);
+            }
+            return;
+        }
+
+        // The slowest host is waited on as long as it would have been on its own
+        List<J4pRequest> requests = new ArrayList<J4pRequest>();
+        List<JolokiaResponseParser.Mode> modes = new ArrayList<JolokiaResponseParser.Mode>();
+        Set<String> targets = new LinkedHashSet<String>();
+        long timeout = 0;
+        for (Submission submission : batch) {
+            requests.addAll(submission.requests);
+            modes.addAll(submission.modes);
+            targets.add(submission.sender.getTarget());
+            timeout = Math.max(timeout, submission.sender.getTimeout());
+        }
+
+        List<Object> results;
+        try {
+            results = sender.send(requests, modes, timeout, targets);
+        }
+        catch (Exception e) {
+            results = new ArrayList<Object>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                results.add(new J4pException("The bulk request to the proxy failed: " + e.getMessage(), e));
+            }
+        }
+
+        int start = 0;
+        for (Submission submission : batch) {
+            int end = start + submission.requests.size();
+            submission.results = new ArrayList<Object>(results.subList(start, end));
+            start = end;
+        }
+    }
+}
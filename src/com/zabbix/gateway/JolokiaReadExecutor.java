@@ -0,0 +1,122 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Runs the Jolokia reads the pollers hand over on a fixed number of threads,
+ * using the pooled blocking clients of the JolokiaClientRegistry. Each read
+ * still holds one of these threads until the agent answered, the pollers are
+ * just free for the next request right away. The queue is bounded, when it's
+ * full the read is rejected and the poller reads the values itself.
+ *
+ */
+class JolokiaReadExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(JolokiaReadExecutor.class);
+
+    // How many reads may wait for a thread per thread
+    private static final int QUEUED_PER_THREAD = 64;
+
+    private static final Counter _rejectedReads = Metrics.newCounter(JolokiaReadExecutor.class, "rejected-reads");
+
+    private static volatile JolokiaReadExecutor _instance;
+
+    private final ThreadPoolExecutor _executor;
+
+    static {
+        Metrics.newGauge(JolokiaReadExecutor.class, "pending-reads", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                JolokiaReadExecutor executor = _instance;
+                return executor == null ? 0 : executor._executor.getActiveCount() + executor._executor.getQueue().size();
+            }
+
+        });
+    }
+
+    JolokiaReadExecutor(int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        _executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUED_PER_THREAD), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "jolokia-read-" + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @return The executor or null when the pollers read the values themselves
+     */
+    public static JolokiaReadExecutor getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Has the pollers hand the Jolokia reads over to the given number of threads
+     * @param threads The number of threads, 0 has the pollers read the values themselves
+     */
+    public static void configure(int threads) {
+        JolokiaReadExecutor previous = _instance;
+        _instance = threads > 0 ? new JolokiaReadExecutor(threads) : null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Queues the read
+     * @param read The read, it must notify its caller of the outcome itself
+     * @return False when the queue is full and the read wasn't queued
+     */
+    public boolean execute(Runnable read) {
+        try {
+            _executor.execute(read);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            _rejectedReads.inc();
+            logger.debug("all {} Jolokia read threads are busy and their queue is full", _executor.getMaximumPoolSize());
+            return false;
+        }
+    }
+
+    void shutdown() {
+        _executor.shutdown();
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package com.zabbix.gateway;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jolokia.client.exception.J4pRemoteException;
+import org.jolokia.client.request.J4pRequest;
+import org.jolokia.client.request.J4pRequestHandler;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Parses a Jolokia bulk response as it's read from the connection rather than
+ * building the whole JSON tree first. Depending on the request's mode the value
+ * of each response is either rendered straight into the text that's returned to
+ * Zabbix, rendered per attribute for multi-attribute reads, or built as a tree
+ * for the responses that still need to be navigated. The echoed requests are
+ * skipped without being built.
+ *
+ * The results are in the order of the requests, each is a String (TEXT), a map
+ * of the attributes to their text (MEMBERS), a J4pResponse (TREE) or a
+ * J4pRemoteException when the request failed.
+ *
+ */
+class JolokiaResponseParser implements ContentHandler {
+
+    enum Mode { TEXT, MEMBERS, TREE }
+
+    private static final String VALUE = "value";
+    private static final String STATUS = "status";
+    private static final String ERROR = "error";
+    private static final String ERROR_TYPE = "error_type";
+    private static final String STACKTRACE = "stacktrace";
+
+    private final J4pRequestHandler _requestHandler;
+    private final List<J4pRequest> _requests;
+    private final List<Mode> _modes;
+    private final List<Object> _results;
+
+    private Sink _sink;
+    private boolean _inBulk;
+    private boolean _inEntry;
+    private String _field;
+
+    private Object _value;
+    private Number _status;
+    private String _error;
+    private String _errorType;
+    private String _stacktrace;
+    private JSONObject _bulkError;
+
+    JolokiaResponseParser(J4pRequestHandler requestHandler, List<J4pRequest> requests, List<Mode> modes) {
+        _requestHandler = requestHandler;
+        _requests = requests;
+        _modes = modes;
+        _results = new ArrayList<Object>(requests.size());
+    }
+
+    List<Object> getResults() {
+        return _results;
+    }
+
+    /**
+     * The response when the whole bulk request failed, the agent then answers with a single error
+     * @return The error or null if the response was a bulk response
+     */
+    J4pRemoteException getBulkError() {
+        return _bulkError == null ? null : toRemoteException(null, _bulkError.get(ERROR), _bulkError.get(ERROR_TYPE),
+            (Number) _bulkError.get(STATUS), _bulkError.get(STACKTRACE));
+    }
+
+    @Override
+    public void startJSON() {
+    }
+
+    @Override
+    public void endJSON() {
+    }
+
+    @Override
+    public boolean startObject() throws ParseException {
+        if (_sink != null) {
+            _sink.startObject();
+        }
+        else if (!_inBulk) {
+            _field = null;
+            _sink = new TreeSink();
+            _sink.startObject();
+        }
+        else if (getMode() == Mode.TREE) {
+            _field = null;
+            _sink = new TreeSink();
+            _sink.startObject();
+        }
+        else {
+            _inEntry = true;
+            _value = null;
+            _status = null;
+            _error = null;
+            _errorType = null;
+            _stacktrace = null;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObject() throws ParseException {
+        if (_sink != null) {
+            _sink.endObject();
+            collect();
+        }
+        else if (_inEntry) {
+            _inEntry = false;
+            _field = null;
+            J4pRequest request = _requests.get(_results.size());
+            if (_status == null || _status.intValue() != 200) {
+                _results.add(toRemoteException(request, _error, _errorType, _status, _stacktrace));
+            }
+            else if (_value != null) {
+                _results.add(_value);
+            }
+            else {
+                // A void operation or a response without a value
+                _results.add(getMode() == Mode.MEMBERS ? new LinkedHashMap<String, String>() : "");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) throws ParseException {
+        if (_sink != null) {
+            _sink.startEntry(key);
+        }
+        else {
+            _field = key;
+            if (key.equals(VALUE)) {
+                _sink = getMode() == Mode.MEMBERS ? new MembersSink() : new TextSink();
+            }
+            else if (!key.equals(STATUS) && !key.equals(ERROR) && !key.equals(ERROR_TYPE) && !key.equals(STACKTRACE)) {
+                // The echoed request, timestamp and history aren't used
+                _sink = new Sink();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        if (_sink != null) {
+            _sink.startArray();
+        }
+        else {
+            _inBulk = true;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endArray() throws ParseException {
+        if (_sink != null) {
+            _sink.endArray();
+            collect();
+        }
+        else {
+            _inBulk = false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) throws ParseException {
+        if (_sink != null) {
+            _sink.primitive(value);
+            collect();
+        }
+        else if (STATUS.equals(_field)) {
+            _status = (Number) value;
+        }
+        else if (ERROR.equals(_field)) {
+            _error = (String) value;
+        }
+        else if (ERROR_TYPE.equals(_field)) {
+            _errorType = (String) value;
+        }
+        else if (STACKTRACE.equals(_field)) {
+            _stacktrace = (String) value;
+        }
+        return true;
+    }
+
+    private Mode getMode() throws ParseException {
+        if (_results.size() >= _requests.size()) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, String.format(
+                "more responses than the %d requests", _requests.size()));
+        }
+        return _modes.get(_results.size());
+    }
+
+    // Hands the value over once the sink has seen all of it
+    private void collect() {
+        if (!_sink.isDone()) {
+            return;
+        }
+
+        if (_inEntry) {
+            if (VALUE.equals(_field)) {
+                _value = _sink.getResult();
+            }
+        }
+        else if (_inBulk) {
+            JSONObject entry = (JSONObject) _sink.getResult();
+            J4pRequest request = _requests.get(_results.size());
+            Number status = (Number) entry.get(STATUS);
+            if (status == null || status.intValue() != 200) {
+                _results.add(toRemoteException(request, entry.get(ERROR), entry.get(ERROR_TYPE), status, entry.get(STACKTRACE)));
+            }
+            else {
+                _results.add(_requestHandler.extractResponse(request, entry));
+            }
+        }
+        else {
+            _bulkError = (JSONObject) _sink.getResult();
+        }
+        _sink = null;
+    }
+
+    private J4pRemoteException toRemoteException(J4pRequest request, Object error, Object errorType,
+            Number status, Object stacktrace) {
+        return new J4pRemoteException(request, (String) error, (String) errorType,
+            status == null ? 500 : status.intValue(), (String) stacktrace);
+    }
+
+    /**
+     * Receives the events of a single JSON value, this one skips it.
+     */
+    static class Sink {
+
+        protected int _depth;
+        private boolean _done;
+
+        final void startObject() {
+            onStartObject();
+            _depth++;
+        }
+
+        final void endObject() {
+            _depth--;
+            onEndObject();
+            _done = _depth == 0;
+        }
+
+        final void startArray() {
+            onStartArray();
+            _depth++;
+        }
+
+        final void endArray() {
+            _depth--;
+            onEndArray();
+            _done = _depth == 0;
+        }
+
+        final void startEntry(String key) {
+            onStartEntry(key);
+        }
+
+        final void primitive(Object value) {
+            onPrimitive(value);
+            _done = _depth == 0;
+        }
+
+        boolean isDone() {
+            return _done;
+        }
+
+        Object getResult() {
+            return null;
+        }
+
+        void onStartObject() {
+        }
+
+        void onEndObject() {
+        }
+
+        void onStartArray() {
+        }
+
+        void onEndArray() {
+        }
+
+        void onStartEntry(String key) {
+        }
+
+        void onPrimitive(Object value) {
+        }
+    }
+
+    /**
+     * Builds the value as json-simple objects like J4pClient does.
+     */
+    static class TreeSink extends Sink {
+
+        private final LinkedList<Object> _containers = new LinkedList<Object>();
+        private Object _result;
+        private String _key;
+
+        @Override
+        Object getResult() {
+            return _result;
+        }
+
+        @Override
+        void onStartObject() {
+            JSONObject object = new JSONObject();
+            add(object);
+            _containers.push(object);
+        }
+
+        @Override
+        void onEndObject() {
+            _containers.pop();
+        }
+
+        @Override
+        void onStartArray() {
+            JSONArray array = new JSONArray();
+            add(array);
+            _containers.push(array);
+        }
+
+        @Override
+        void onEndArray() {
+            _containers.pop();
+        }
+
+        @Override
+        void onStartEntry(String key) {
+            _key = key;
+        }
+
+        @Override
+        void onPrimitive(Object value) {
+            add(value);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object value) {
+            if (_containers.isEmpty()) {
+                _result = value;
+            }
+            else if (_containers.peek() instanceof JSONObject) {
+                ((JSONObject) _containers.peek()).put(_key, value);
+            }
+            else {
+                ((JSONArray) _containers.peek()).add(value);
+            }
+        }
+    }
+
+    /**
+     * Renders the value as the text returned to Zabbix without building it, the
+     * same way JolokiaChecker renders the json-simple objects: arrays have their
+     * elements on separate lines and objects are written as JSON.
+     */
+    static class TextSink extends Sink {
+
+        private final StringBuilder _builder = new StringBuilder();
+        // Whether each open JSON container is an array and if anything was written to it yet
+        private final List<Boolean> _arrays = new ArrayList<Boolean>();
+        private final List<Boolean> _written = new ArrayList<Boolean>();
+        private boolean _lines;
+        private int _lineCount;
+        private String _text;
+
+        @Override
+        Object getResult() {
+            return _text != null ? _text : _builder.toString();
+        }
+
+        @Override
+        void onStartObject() {
+            beforeValue();
+            _builder.append('{');
+            push(false);
+        }
+
+        @Override
+        void onEndObject() {
+            _builder.append('}');
+            pop();
+        }
+
+        @Override
+        void onStartArray() {
+            if (_depth == 0) {
+                _lines = true;
+                return;
+            }
+            beforeValue();
+            _builder.append('[');
+            push(true);
+        }
+
+        @Override
+        void onEndArray() {
+            if (_depth == 0) {
+                return;
+            }
+            _builder.append(']');
+            pop();
+        }
+
+        @Override
+        void onStartEntry(String key) {
+            int last = _written.size() - 1;
+            if (_written.get(last)) {
+                _builder.append(',');
+            }
+            _written.set(last, Boolean.TRUE);
+            _builder.append(JSONValue.toJSONString(key)).append(':');
+        }
+
+        @Override
+        void onPrimitive(Object value) {
+            if (_depth == 0) {
+                _text = toText(value);
+            }
+            else if (_lines && _depth == 1) {
+                beforeValue();
+                _builder.append(value);
+            }
+            else {
+                beforeValue();
+                _builder.append(JSONValue.toJSONString(value));
+            }
+        }
+
+        private void beforeValue() {
+            if (_depth == 0) {
+                return;
+            }
+            if (_lines && _depth == 1) {
+                if (_lineCount++ > 0) {
+                    _builder.append('\n');
+                }
+                return;
+            }
+
+            int last = _arrays.size() - 1;
+            if (_arrays.get(last)) {
+                if (_written.get(last)) {
+                    _builder.append(',');
+                }
+                _written.set(last, Boolean.TRUE);
+            }
+        }
+
+        private void push(boolean array) {
+            _arrays.add(array);
+            _written.add(Boolean.FALSE);
+        }
+
+        private void pop() {
+            _arrays.remove(_arrays.size() - 1);
+            _written.remove(_written.size() - 1);
+        }
+
+        static String toText(Object value) {
+            String text = value != null ? value.toString() : "";
+            // Zabbix can't parse decimals in scientific notation
+            if (HelperFunctionChest.isScientificNotation(text)) {
+                text = HelperFunctionChest.scientificToPlain(text);
+            }
+            return text;
+        }
+    }
+
+    /**
+     * Renders each attribute of a multi-attribute read separately.
+     */
+    static class MembersSink extends Sink {
+
+        private final Map<String, String> _members = new LinkedHashMap<String, String>();
+        private TextSink _member;
+        private String _key;
+
+        @Override
+        Object getResult() {
+            return _members;
+        }
+
+        @Override
+        void onStartObject() {
+            if (_member != null) {
+                _member.startObject();
+            }
+        }
+
+        @Override
+        void onEndObject() {
+            if (_member != null) {
+                _member.endObject();
+                collect();
+            }
+        }
+
+        @Override
+        void onStartArray() {
+            if (_member != null) {
+                _member.startArray();
+            }
+        }
+
+        @Override
+        void onEndArray() {
+            if (_member != null) {
+                _member.endArray();
+                collect();
+            }
+        }
+
+        @Override
+        void onStartEntry(String key) {
+            if (_member != null) {
+                _member.startEntry(key);
+            }
+            else if (_depth == 1) {
+                _key = key;
+                _member = new TextSink();
+            }
+        }
+
+        @Override
+        void onPrimitive(Object value) {
+            if (_member != null) {
+                _member.primitive(value);
+                collect();
+            }
+        }
+
+        private void collect() {
+            if (_member.isDone()) {
+                _members.put(_key, (String) _member.getResult());
+                _member = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.lang.management.MemoryNotificationInfo;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Subscribes to the GC and memory threshold notifications of a target instead
+ * of polling for them, so every GC pause is seen without polling CollectionTime
+ * very often. The subscription is made over a pooled connection when a target
+ * is first polled for one of the keys:
+ * <pre>
+ * jmx.gc.pause[&lt;max|count|total&gt;(,&lt;collector name&gt;)]
+ * jmx.memory.threshold[(&lt;pool name&gt;)]
+ * </pre>
+ * The events are buffered per target in a bounded buffer and each key
+ * aggregates the events received since its previous poll: the longest GC pause,
+ * the number of pauses or their total duration in milliseconds and the number of
+ * times a memory pool's usage or collection usage threshold was exceeded.
+ * GC notifications are sent by Java 7 (update 4) and newer targets. Targets that
+ * aren't polled for these keys for a while are unsubscribed from.
+ *
+ */
+class NotificationSubscriptions {
+
+    private static final Logger logger = LoggerFactory.getLogger(NotificationSubscriptions.class);
+
+    static final String GC_PAUSE_KEY = "jmx.gc.pause";
+    static final String MEMORY_THRESHOLD_KEY = "jmx.memory.threshold";
+    static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    static final String MAX = "max";
+    static final String COUNT = "count";
+    static final String TOTAL = "total";
+
+    private static final String GC_PATTERN = "java.lang:type=GarbageCollector,*";
+    private static final String MEMORY_OBJECT = "java.lang:type=Memory";
+    private static final int BUFFER_SIZE = 1024; // events kept per target
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final byte GC_EVENT = 1;
+    private static final byte THRESHOLD_EVENT = 2;
+
+    private static final Counter _received = Metrics.newCounter(NotificationSubscriptions.class, "received-notifications");
+    private static final Counter _overwritten = Metrics.newCounter(NotificationSubscriptions.class, "overwritten-notifications");
+
+    private static final NotificationSubscriptions _instance = new NotificationSubscriptions();
+
+    private final ConcurrentMap<String, TargetSubscription> _targets = new ConcurrentHashMap<String, TargetSubscription>();
+
+    static {
+        Metrics.newGauge(NotificationSubscriptions.class, "subscribed-targets", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._targets.size();
+            }
+
+        });
+    }
+
+    NotificationSubscriptions() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "notification-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                sweep();
+            }
+
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public static NotificationSubscriptions getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Tests if the key ID is one of the notification keys
+     * @param keyId The key ID
+     * @return True for jmx.gc.pause and jmx.memory.threshold
+     */
+    public static boolean isNotificationKey(String keyId) {
+        return GC_PAUSE_KEY.equals(keyId) || MEMORY_THRESHOLD_KEY.equals(keyId);
+    }
+
+    /**
+     * Aggregates the events of the target received since the previous poll of the
+     * key, subscribing to the target's notifications if it isn't subscribed to yet.
+     * The first poll of a key gives the aggregate of no events.
+     * @param url The JMX service URL of the target
+     * @param username The username or null
+     * @param password The password or null
+     * @param item The notification item
+     * @return The aggregated value
+     * @throws Exception When the key is malformed or the target cannot be subscribed to
+     */
+    public String getValue(JMXServiceURL url, String username, String password, ZabbixItem item) throws Exception {
+        byte eventType;
+        String aggregate;
+        String source;
+        if (item.getKeyId().equals(GC_PAUSE_KEY)) {
+            if (item.getArgumentCount() < 1 || item.getArgumentCount() > 2) {
+                throw new ZabbixException("required key format: jmx.gc.pause[<max|count|total>(,<collector name>)]");
+            }
+            aggregate = item.getArgument(1);
+            if (!aggregate.equals(MAX) && !aggregate.equals(COUNT) && !aggregate.equals(TOTAL)) {
+                throw new ZabbixException("unsupported aggregate '%s', expected max, count or total", aggregate);
+            }
+            eventType = GC_EVENT;
+            source = item.getArgumentCount() == 2 ? item.getArgument(2) : "";
+        }
+        else {
+            if (item.getArgumentCount() > 1) {
+                throw new ZabbixException("required key format: jmx.memory.threshold[(<pool name>)]");
+            }
+            aggregate = COUNT;
+            eventType = THRESHOLD_EVENT;
+            source = item.getArgumentCount() == 1 ? item.getArgument(1) : "";
+        }
+
+        // A subscription made with other credentials may not see the same notifications
+        String targetKey = url + "|" + username + "|" + HelperFunctionChest.hashPassword(password);
+        while (true) {
+            TargetSubscription subscription = _targets.get(targetKey);
+            if (subscription == null) {
+                TargetSubscription newSubscription = new TargetSubscription(url, username, password);
+                subscription = _targets.putIfAbsent(targetKey, newSubscription);
+                if (subscription == null) {
+                    subscription = newSubscription;
+                }
+                else {
+                    newSubscription.unsubscribe();
+                }
+            }
+
+            // The subscription may have just been swept as idle
+            if (subscription.ensureSubscribed()) {
+                return subscription.aggregate(item.getKey(), eventType, source, aggregate);
+            }
+            _targets.remove(targetKey, subscription);
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, TargetSubscription> entry : _targets.entrySet()) {
+            if (now - entry.getValue().getLastPoll() > IDLE_TIMEOUT && _targets.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().unsubscribe();
+            }
+        }
+    }
+
+    /**
+     * The notification listeners of a target along with the events received
+     */
+    private static class TargetSubscription implements NotificationListener {
+
+        private final JMXServiceURL _url;
+        private final JmxConnectionPool.Lease _lease;
+        private MBeanServerConnection _subscribedConnection;
+        private volatile long _lastPoll = System.currentTimeMillis();
+        private boolean _closed;
+
+        // The events are kept in a ring indexed by their sequence number
+        private final byte[] _types = new byte[BUFFER_SIZE];
+        private final String[] _sources = new String[BUFFER_SIZE];
+        private final long[] _durations = new long[BUFFER_SIZE];
+        private long _nextSequence;
+        private final Map<String, Long> _cursors = new HashMap<String, Long>();
+
+        TargetSubscription(JMXServiceURL url, String username, String password) {
+            _url = url;
+            _lease = JmxConnectionPool.getInstance().lease(url, username, password);
+        }
+
+        long getLastPoll() {
+            return _lastPoll;
+        }
+
+        synchronized boolean ensureSubscribed() throws Exception {
+            if (_closed) {
+                return false;
+            }
+            _lastPoll = System.currentTimeMillis();
+
+            MBeanServerConnection connection;
+            try {
+                connection = _lease.getConnection();
+                if (connection == _subscribedConnection) {
+                    return true;
+                }
+
+                // A new connection, either the first one or the previous one failed
+                logger.debug("subscribing to the notifications of {}", _url);
+                NotificationFilterSupport gcFilter = new NotificationFilterSupport();
+                gcFilter.enableType(GC_NOTIFICATION);
+                for (ObjectName gc : connection.queryNames(new ObjectName(GC_PATTERN), null)) {
+                    connection.addNotificationListener(gc, this, gcFilter, null);
+                }
+
+                NotificationFilterSupport memoryFilter = new NotificationFilterSupport();
+                memoryFilter.enableType(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED);
+                memoryFilter.enableType(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED);
+                connection.addNotificationListener(new ObjectName(MEMORY_OBJECT), this, memoryFilter, null);
+            }
+            catch (java.io.IOException e) {
+                _lease.invalidate();
+                _subscribedConnection = null;
+                throw e;
+            }
+
+            _subscribedConnection = connection;
+            return true;
+        }
+
+        synchronized void unsubscribe() {
+            if (_subscribedConnection != null) {
+                logger.debug("unsubscribing from the notifications of {}", _url);
+                try {
+                    for (ObjectName gc : _subscribedConnection.queryNames(new ObjectName(GC_PATTERN), null)) {
+                        _subscribedConnection.removeNotificationListener(gc, this);
+                    }
+                    _subscribedConnection.removeNotificationListener(new ObjectName(MEMORY_OBJECT), this);
+                }
+                catch (Exception e) {
+                    logger.trace("failed to unsubscribe from {} - {}", _url, e.getMessage());
+                }
+            }
+
+            _subscribedConnection = null;
+            _closed = true;
+            _lease.release();
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            try {
+                if (!(notification.getUserData() instanceof CompositeData)) {
+                    return;
+                }
+
+                // The notification info is read as open data so the gateway
+                // doesn't depend on the com.sun.management classes
+                CompositeData info = (CompositeData) notification.getUserData();
+                if (GC_NOTIFICATION.equals(notification.getType())) {
+                    CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+                    record(GC_EVENT, String.valueOf(info.get("gcName")), ((Number) gcInfo.get("duration")).longValue());
+                }
+                else {
+                    record(THRESHOLD_EVENT, String.valueOf(info.get("poolName")), 0);
+                }
+            }
+            catch (RuntimeException e) {
+                logger.debug("unexpected notification from {} - {}", _url, e.toString());
+            }
+        }
+
+        private synchronized void record(byte type, String source, long duration) {
+            _received.inc();
+            int slot = (int) (_nextSequence % BUFFER_SIZE);
+            _types[slot] = type;
+            _sources[slot] = source;
+            _durations[slot] = duration;
+            _nextSequence++;
+        }
+
+        synchronized String aggregate(String key, byte type, String source, String aggregate) {
+            Long cursor = _cursors.put(key, _nextSequence);
+            if (cursor == null) {
+                cursor = _nextSequence;
+            }
+
+            long oldest = Math.max(0, _nextSequence - BUFFER_SIZE);
+            if (cursor < oldest) {
+                _overwritten.inc(oldest - cursor);
+                cursor = oldest;
+            }
+
+            long count = 0;
+            long total = 0;
+            long max = 0;
+            for (long sequence = cursor; sequence < _nextSequence; sequence++) {
+                int slot = (int) (sequence % BUFFER_SIZE);
+                if (_types[slot] == type && (source.isEmpty() || source.equals(_sources[slot]))) {
+                    count++;
+                    total += _durations[slot];
+                    max = Math.max(max, _durations[slot]);
+                }
+            }
+
+            if (aggregate.equals(MAX)) {
+                return String.valueOf(max);
+            }
+            else if (aggregate.equals(TOTAL)) {
+                return String.valueOf(total);
+            }
+
+            return String.valueOf(count);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * Learns the set of keys that Zabbix polls for each target along with the
+ * interval it polls them at. Once the interval is known the values are
+ * refreshed in the background shortly before the next poll is expected so
+ * the poll can be answered without waiting on the remote JVM. Prefetched values
+ * are only served while they are within the freshness bound, otherwise
+ * the caller falls back to a live read. The keys whose values depend on
+ * when they're read (rates, deltas, samples, notifications and operations)
+ * are never prefetched, they're read live when the poll is answered.
+ *
+ */
+class PrefetchScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchScheduler.class);
+
+    private static final long PREFETCH_LEAD = 2000; // refresh 2 seconds before the expected poll at most
+    private static final long MIN_INTERVAL = 2 * PREFETCH_LEAD; // don't prefetch very frequent polls
+    private static final String OPERATION_KEY = "jmx.operation";
+    private static final int MAX_MISSED_POLLS = 3; // forget a pattern after this many missed polls
+    private static final long MAX_IDLE = TimeUnit.MINUTES.toMillis(10); // forget unscheduled patterns after this long
+    private static final long EVICTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_PATTERNS = 10000;
+    private static final int PREFETCH_THREADS = 4;
+
+    private static final Counter _hits = Metrics.newCounter(PrefetchScheduler.class, "prefetch-hits");
+    private static final Counter _misses = Metrics.newCounter(PrefetchScheduler.class, "prefetch-misses");
+    private static final Timer _refreshTime = Metrics.newTimer(PrefetchScheduler.class, "prefetch-refresh-time", TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+
+    private final ItemCheckerFactory _checkerFactory;
+    private final long _freshness;
+    // Half the freshness at most so the refreshed values are still fresh when polled
+    private final long _lead;
+    private final ScheduledExecutorService _executor;
+    private final ConcurrentMap<String, PollPattern> _patterns = new ConcurrentHashMap<String, PollPattern>();
+
+    /**
+     * @param checkerFactory Creates the ItemCheckers used to refresh values
+     * @param freshness How long in milliseconds a prefetched value may be served for
+     */
+    public PrefetchScheduler(ItemCheckerFactory checkerFactory, long freshness) {
+        this(checkerFactory, freshness, Executors.newScheduledThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "prefetch-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    PrefetchScheduler(ItemCheckerFactory checkerFactory, long freshness, ScheduledExecutorService executor) {
+        _checkerFactory = checkerFactory;
+        _freshness = freshness;
+        _lead = Math.min(PREFETCH_LEAD, freshness / 2);
+        _executor = executor;
+        _executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                evictIdle(System.currentTimeMillis());
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+
+        Metrics.newGauge(PrefetchScheduler.class, "learned-patterns", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _patterns.size();
+            }
+
+        });
+    }
+
+    /**
+     * Records the poll and returns the prefetched values for it if they
+     * are fresh enough to be served.
+     * @param request The Zabbix request
+     * @return The values in the order of the requested keys or null when
+     * the values must be read live
+     */
+    public JSONArray poll(JSONObject request) {
+        return poll(request, System.currentTimeMillis());
+    }
+
+    JSONArray poll(JSONObject request, long now) {
+        if (!ItemCheckerFactory.isJmxRequest(request)) {
+            return null;
+        }
+
+        String patternKey;
+        List<Integer> statefulIndexes;
+        try {
+            statefulIndexes = getStatefulIndexes(request);
+            if (statefulIndexes.size() == request.getJSONArray(ItemChecker.JSON_TAG_KEYS).length()) {
+                return null;
+            }
+            patternKey = buildPatternKey(request);
+        }
+        catch (JSONException e) {
+            return null;
+        }
+
+        PollPattern pattern = _patterns.get(patternKey);
+        if (pattern == null) {
+            // Don't learn any more patterns until the idle ones were evicted
+            if (_patterns.size() >= MAX_PATTERNS) {
+                _misses.inc();
+                return null;
+            }
+            PollPattern newPattern = new PollPattern(patternKey);
+            pattern = _patterns.putIfAbsent(patternKey, newPattern);
+            if (pattern == null) {
+                pattern = newPattern;
+            }
+        }
+
+        JSONArray values = pattern.recordPoll(request, now);
+        if (values != null && !statefulIndexes.isEmpty()) {
+            values = addStatefulValues(request, statefulIndexes, values);
+        }
+        if (values != null) {
+            _hits.inc();
+        }
+        else {
+            _misses.inc();
+        }
+
+        return values;
+    }
+
+    /**
+     * Forgets the patterns Zabbix stopped polling, including those that were
+     * never scheduled because they were polled only once or too frequently
+     * @param now The current time
+     */
+    void evictIdle(long now) {
+        for (PollPattern pattern : _patterns.values()) {
+            if (pattern.isIdle(now)) {
+                logger.debug("no longer prefetching {}", pattern._patternKey);
+                pattern.cancel();
+                _patterns.remove(pattern._patternKey, pattern);
+            }
+        }
+    }
+
+    int getPatternCount() {
+        return _patterns.size();
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Tests if the value of the key depends on when it's read, reading it moves
+     * the counter baselines, samples or notification cursors forward or invokes
+     * an operation so it must only be read by the polls themselves
+     * @param key The item key
+     * @return True for the keys that are never prefetched
+     */
+    static boolean isStatefulKey(String key) {
+        if (CounterRates.getSourceKey(key) != null || AttributeSampler.isSampleKey(key)
+                || key.startsWith(OPERATION_KEY + "[")) {
+            return true;
+        }
+
+        try {
+            return NotificationSubscriptions.isNotificationKey(new ZabbixItem(key).getKeyId());
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static List<Integer> getStatefulIndexes(JSONObject request) throws JSONException {
+        List<Integer> indexes = new ArrayList<Integer>();
+        JSONArray keys = request.getJSONArray(ItemChecker.JSON_TAG_KEYS);
+        for (int i = 0; i < keys.length(); i++) {
+            if (isStatefulKey(keys.getString(i))) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    // Copies the request with only the keys at the given indexes or only the others
+    private static JSONObject selectKeys(JSONObject request, List<Integer> indexes, boolean selected)
+            throws JSONException {
+        JSONObject copy = new JSONObject(request.toString());
+        JSONArray keys = request.getJSONArray(ItemChecker.JSON_TAG_KEYS);
+        JSONArray selectedKeys = new JSONArray();
+        for (int i = 0; i < keys.length(); i++) {
+            if (indexes.contains(i) == selected) {
+                selectedKeys.put(keys.get(i));
+            }
+        }
+        copy.put(ItemChecker.JSON_TAG_KEYS, selectedKeys);
+        return copy;
+    }
+
+    // Reads the stateful keys live and puts their values in between the prefetched ones
+    private JSONArray addStatefulValues(JSONObject request, List<Integer> statefulIndexes, JSONArray prefetched) {
+        JSONArray stateful;
+        try {
+            stateful = _checkerFactory.createChecker(selectKeys(request, statefulIndexes, true)).getValues();
+        }
+        catch (Exception e) {
+            logger.debug("reading the keys that aren't prefetched failed for {}:{} - {}", new Object[]{
+                    request.optString(ItemChecker.JSON_TAG_CONN), request.optString(ItemChecker.JSON_TAG_PORT),
+                    HelperFunctionChest.getRootCauseMessage(e)});
+            return null;
+        }
+
+        JSONArray values = new JSONArray();
+        int prefetchedIndex = 0;
+        int statefulIndex = 0;
+        for (int i = 0; i < prefetched.length() + stateful.length(); i++) {
+            values.put(statefulIndexes.contains(i) ? stateful.opt(statefulIndex++) : prefetched.opt(prefetchedIndex++));
+        }
+        return values;
+    }
+
+    // The same key set for the same target and credentials is what identifies a poll
+    // pattern, Zabbix always sends the keys for a host in the same order
+    private String buildPatternKey(JSONObject request) throws JSONException {
+        StringBuilder builder = new StringBuilder();
+        builder.append(request.getString(ItemChecker.JSON_TAG_CONN)).append(':')
+               .append(request.getInt(ItemChecker.JSON_TAG_PORT)).append('|')
+               .append(request.optString(ItemChecker.JSON_TAG_USERNAME, "")).append('|')
+               .append(HelperFunctionChest.hashPassword(request.optString(ItemChecker.JSON_TAG_PASSWORD, null)));
+
+        JSONArray keys = request.getJSONArray(ItemChecker.JSON_TAG_KEYS);
+        for (int i = 0; i < keys.length(); i++) {
+            builder.append('\n').append(keys.getString(i));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * A learned (target, key set, interval) combination along with
+     * its most recently prefetched values.
+     */
+    private class PollPattern implements Runnable {
+
+        private final String _patternKey;
+        private JSONObject _request;
+        private long _lastPoll;
+        private long _interval;
+        private ScheduledFuture<?> _nextRefresh;
+        private volatile JSONArray _values;
+        private volatile long _fetchedAt;
+
+        PollPattern(String patternKey) {
+            _patternKey = patternKey;
+        }
+
+        synchronized JSONArray recordPoll(JSONObject request, long now) {
+            _request = request;
+
+            if (_lastPoll > 0) {
+                long observed = now - _lastPoll;
+                // Smooth out jitter in the poll times but start over if
+                // the interval changed i.e. the items were reconfigured
+                if (_interval > 0 && Math.abs(observed - _interval) < _interval / 4) {
+                    _interval = (_interval * 3 + observed) / 4;
+                }
+                else {
+                    _interval = observed;
+                }
+            }
+            _lastPoll = now;
+
+            JSONArray values = _values;
+            if (values != null && now - _fetchedAt <= _freshness) {
+                // Each set of prefetched values only answers one poll
+                _values = null;
+            }
+            else {
+                values = null;
+            }
+
+            scheduleRefresh();
+
+            return values;
+        }
+
+        synchronized boolean isIdle(long now) {
+            long maxIdle = _interval >= MIN_INTERVAL ? _interval * MAX_MISSED_POLLS : MAX_IDLE;
+            return now - _lastPoll > maxIdle;
+        }
+
+        synchronized void cancel() {
+            if (_nextRefresh != null) {
+                _nextRefresh.cancel(false);
+            }
+        }
+
+        private void scheduleRefresh() {
+            if (_interval < MIN_INTERVAL) {
+                return;
+            }
+
+            if (_nextRefresh != null) {
+                _nextRefresh.cancel(false);
+            }
+
+            logger.trace("prefetching {} in {} ms", _patternKey, _interval - _lead);
+            _nextRefresh = _executor.schedule(this, _interval - _lead, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            JSONObject request;
+            synchronized (this) {
+                // Zabbix stopped polling this key set so stop prefetching for it
+                if (System.currentTimeMillis() - _lastPoll > _interval * MAX_MISSED_POLLS) {
+                    logger.debug("no longer prefetching {}", _patternKey);
+                    _patterns.remove(_patternKey, this);
+                    return;
+                }
+                request = _request;
+            }
+
+            TimerContext context = _refreshTime.time();
+            try {
+                JSONObject prefetchRequest = selectKeys(request, getStatefulIndexes(request), false);
+                JSONArray values = _checkerFactory.createChecker(prefetchRequest).getValues();
+                _fetchedAt = System.currentTimeMillis();
+                _values = values;
+            }
+            catch (Exception e) {
+                logger.debug("prefetching failed for {}:{} - {}", new Object[]{request.optString(ItemChecker.JSON_TAG_CONN),
+                        request.optString(ItemChecker.JSON_TAG_PORT), HelperFunctionChest.getRootCauseMessage(e)});
+            }
+            finally {
+                context.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Coalesces identical concurrent reads of the same target. Several Zabbix
+ * servers/proxies or pollers with overlapping items often ask for the same
+ * values within milliseconds of each other, the first request for a target URL
+ * and item key does the remote read (the leader) while the requests that arrive
+ * while it's in flight wait and share its result (the followers).
+ *
+ */
+class ReadCoalescer {
+
+    private static final long MAX_WAIT = 10 * 1000; // wait for at most 10 seconds on the leader
+
+    // Counters to measure how much load coalescing saves on the monitored JVMs
+    private static final Counter _coalescedReads = Metrics.newCounter(ReadCoalescer.class, "coalesced-reads");
+    private static final Counter _leaderReads = Metrics.newCounter(ReadCoalescer.class, "leader-reads");
+
+    private static final ReadCoalescer _instance = new ReadCoalescer();
+
+    private final ConcurrentMap<String, Flight> _inFlight = new ConcurrentHashMap<String, Flight>();
+
+    public static ReadCoalescer getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Joins the in-flight read for the target, credentials and key or starts a
+     * new one. When the returned flight is the leader the caller must do the
+     * remote read and then complete or fail the flight.
+     * @param target The target URL
+     * @param username The user the target is read as, may be null
+     * @param password The user's password, may be null
+     * @param key The item key
+     * @return The flight for the read
+     */
+    public Flight begin(String target, String username, String password, String key) {
+        // Requests only share reads made with the same credentials
+        String flightKey = target + "|" + (username == null ? "" : username) + "|"
+                + HelperFunctionChest.hashPassword(password) + "||" + key;
+        Flight flight = new Flight(flightKey, true);
+        Flight existing = _inFlight.putIfAbsent(flightKey, flight);
+        if (existing != null) {
+            return new Flight(existing);
+        }
+
+        _leaderReads.inc();
+        return flight;
+    }
+
+    /**
+     * A single remote read that concurrent requests share. Each
+     * participant gets its own Flight which shares the state of the read.
+     */
+    class Flight {
+
+        private final String _flightKey;
+        private final boolean _leader;
+        private final Result _result;
+
+        private Flight(String flightKey, boolean leader) {
+            _flightKey = flightKey;
+            _leader = leader;
+            _result = new Result();
+        }
+
+        private Flight(Flight leader) {
+            _flightKey = leader._flightKey;
+            _leader = false;
+            _result = leader._result;
+        }
+
+        /**
+         * Tests if the caller must do the remote read
+         * @return True for the leader
+         */
+        public boolean isLeader() {
+            return _leader;
+        }
+
+        /**
+         * Publishes the value that was read to the followers
+         * @param value The value read
+         */
+        public void complete(String value) {
+            _result.value = value;
+            finish();
+        }
+
+        /**
+         * Publishes the read's failure to the followers
+         * @param error The reason the read failed
+         */
+        public void fail(Exception error) {
+            _result.error = error;
+            finish();
+        }
+
+        /**
+         * Tests if the read has been completed or failed
+         * @return True once the outcome is published
+         */
+        public boolean isDone() {
+            return _result.done.getCount() == 0;
+        }
+
+        /**
+         * Waits for the leader to finish the read
+         * @return The value that was read or null if the leader didn't finish in time
+         * in which case the caller should do its own read
+         * @throws Exception The exception the leader's read failed with
+         */
+        public String await() throws Exception {
+            if (!_result.done.await(MAX_WAIT, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+
+            _coalescedReads.inc();
+            if (_result.error != null) {
+                throw _result.error;
+            }
+
+            return _result.value;
+        }
+
+        private void finish() {
+            _inFlight.remove(_flightKey, this);
+            _result.done.countDown();
+        }
+    }
+
+    private static class Result {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String value;
+        volatile Exception error;
+    }
+}
@@ -31,22 +31,21 @@ import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.TimerContext;
-import com.zabbix.security.SecurityUtils;
 
 class SocketProcessor implements Runnable
 {
 	private static final Logger logger = LoggerFactory.getLogger(SocketProcessor.class);
 
 	private final Socket socket;
-	private final JmxConfigurationManager jmxManager;
-	private final SecurityUtils securityUtils;
+	private final ItemCheckerFactory checkerFactory;
+	private final PrefetchScheduler prefetchScheduler;
 
-	public SocketProcessor(Socket socket, JmxConfigurationManager jmxManager,
-			SecurityUtils securityUtils)
+	public SocketProcessor(Socket socket, ItemCheckerFactory checkerFactory,
+			PrefetchScheduler prefetchScheduler)
 	{
 		this.socket = socket;
-		this.jmxManager = jmxManager;
-		this.securityUtils = securityUtils;
+		this.checkerFactory = checkerFactory;
+		this.prefetchScheduler = prefetchScheduler;
 	}
 
 	public void run()
@@ -55,73 +54,155 @@ class SocketProcessor implements Runnable
 
 		BinaryProtocolSpeaker speaker = null;
 		JmxConfiguration jmxConfig = null;
+		boolean handedOff = false;
 		try
 		{
 			speaker = new BinaryProtocolSpeaker(socket);
 
 			JSONObject request = new JSONObject(speaker.getRequest());
 
-			ItemChecker checker;
-            
-			if (request.getString(ItemChecker.JSON_TAG_REQUEST).equals(ItemChecker.JSON_REQUEST_INTERNAL))
-				checker = new InternalItemChecker(request);
-			else if (request.getString(ItemChecker.JSON_TAG_REQUEST).equals(ItemChecker.JSON_REQUEST_JMX)) {
-				jmxConfig = jmxManager.getConfig(request.getString(ItemChecker.JSON_TAG_CONN),
-                                                   request.getInt(ItemChecker.JSON_TAG_PORT));
-				if (jmxConfig.getProtocol().startsWith("http")) {
-					checker = new JolokiaChecker(request, jmxConfig, this.securityUtils);
+			// Answer from the prefetched values if they're fresh enough
+			JSONArray values = null;
+			if (null != prefetchScheduler)
+				values = prefetchScheduler.poll(request);
+
+			if (null == values)
+			{
+				ItemChecker checker;
+
+				if (ItemCheckerFactory.isJmxRequest(request))
+				{
+					jmxConfig = checkerFactory.getConfig(request);
+					checker = checkerFactory.createChecker(request, jmxConfig);
 				}
-				else {
-					checker = new JMXItemChecker(request, jmxConfig, this.securityUtils);
+				else
+					checker = checkerFactory.createChecker(request);
+
+				logger.debug("dispatched request to class {}", checker.getClass().getName());
+
+				Metrics.newHistogram(checker.getClass(), "request-sizes").update(checker.getNumberOfItems());;
+				MetricName mName = new MetricName(checker.getClass(), "total-request-time");
+				Timer timer = Metrics.newTimer(mName, TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+				TimerContext context = timer.time();
+
+				// Jolokia requests don't hold the poller while the target answers when
+				// read threads are configured, the response is sent by the read thread
+				if (checker instanceof JolokiaChecker && ((JolokiaChecker)checker).submitValues(
+						new HandedOffResponder(speaker, jmxConfig, context)))
+				{
+					handedOff = true;
+					logger.debug("handed off request to the Jolokia read threads");
+					return;
 				}
-			}	
-			else
-				throw new ZabbixException("bad request tag value: '%s'", request.getString(ItemChecker.JSON_TAG_REQUEST));
-
-			logger.debug("dispatched request to class {}", checker.getClass().getName());
-			
-			Metrics.newHistogram(checker.getClass(), "request-sizes").update(checker.getNumberOfItems());;
-			MetricName mName = new MetricName(checker.getClass(), "total-request-time");
-			Timer timer = Metrics.newTimer(mName, TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
-			TimerContext context = timer.time();
-			JSONArray values = checker.getValues();
-			context.stop();
 
-			JSONObject response = new JSONObject();
-			response.put(ItemChecker.JSON_TAG_RESPONSE, ItemChecker.JSON_RESPONSE_SUCCESS);
-			response.put(ItemChecker.JSON_TAG_DATA, values);
+				values = checker.getValues();
+				context.stop();
+			}
+			else
+				logger.debug("answered request with prefetched values");
 
-			speaker.sendResponse(response.toString());
+			sendValues(speaker, values);
 		}
 		catch (Exception e1)
 		{
-			if (jmxConfig != null) {
-			    logger.warn("error processing request for {}:{} - {}", new Object[]{jmxConfig.getIp(),
-			    		jmxConfig.getPort(), HelperFunctionChest.getRootCauseMessage(e1)});
-			}
-			else {
-				logger.warn("error processing request: {}", HelperFunctionChest.getRootCauseMessage(e1));
-			}
+			sendFailure(speaker, jmxConfig, e1);
+		}
+		finally
+		{
+			if (!handedOff)
+				close(speaker);
+		}
 
+		logger.debug("finished processing incoming connection");
+	}
+
+	private static void sendValues(BinaryProtocolSpeaker speaker, JSONArray values) throws Exception
+	{
+		JSONObject response = new JSONObject();
+		response.put(ItemChecker.JSON_TAG_RESPONSE, ItemChecker.JSON_RESPONSE_SUCCESS);
+		response.put(ItemChecker.JSON_TAG_DATA, values);
+
+		speaker.sendResponse(response.toString());
+	}
+
+	private static void sendFailure(BinaryProtocolSpeaker speaker, JmxConfiguration jmxConfig, Exception e1)
+	{
+		if (jmxConfig != null) {
+		    logger.warn("error processing request for {}:{} - {}", new Object[]{jmxConfig.getIp(),
+		    		jmxConfig.getPort(), HelperFunctionChest.getRootCauseMessage(e1)});
+		}
+		else {
+			logger.warn("error processing request: {}", HelperFunctionChest.getRootCauseMessage(e1));
+		}
+
+		try
+		{
+			String response = new Formatter().format("{ \"%s\" : \"%s\", \"%s\" : %s }\n",
+					ItemChecker.JSON_TAG_RESPONSE, ItemChecker.JSON_RESPONSE_FAILED,
+					ItemChecker.JSON_TAG_ERROR, JSONObject.quote(e1.getMessage())).toString();
+
+			speaker.sendResponse(response);
+		}
+		catch (Exception e2)
+		{
+			logger.warn("error sending failure notification - {}", e2.getMessage());
+		}
+	}
+
+	private void close(BinaryProtocolSpeaker speaker)
+	{
+		try { if (null != speaker) speaker.close(); } catch (Exception e) { }
+		try { if (null != socket) socket.close(); } catch (Exception e) { }
+	}
+
+	/**
+	 * Sends the response of a request that was handed off to the Jolokia read threads
+	 */
+	private class HandedOffResponder implements JolokiaChecker.ValuesCallback
+	{
+		private final BinaryProtocolSpeaker speaker;
+		private final JmxConfiguration jmxConfig;
+		private final TimerContext context;
+
+		public HandedOffResponder(BinaryProtocolSpeaker speaker, JmxConfiguration jmxConfig, TimerContext context)
+		{
+			this.speaker = speaker;
+			this.jmxConfig = jmxConfig;
+			this.context = context;
+		}
+
+		public void completed(JSONArray values)
+		{
+			context.stop();
 			try
 			{
-				String response = new Formatter().format("{ \"%s\" : \"%s\", \"%s\" : %s }\n",
-						ItemChecker.JSON_TAG_RESPONSE, ItemChecker.JSON_RESPONSE_FAILED,
-						ItemChecker.JSON_TAG_ERROR, JSONObject.quote(e1.getMessage())).toString();
-
-				speaker.sendResponse(response);
+				sendValues(speaker, values);
 			}
-			catch (Exception e2)
+			catch (Exception e)
 			{
-				logger.warn("error sending failure notification - {}", e2.getMessage());
+				sendFailure(speaker, jmxConfig, e);
 			}
+			finally
+			{
+				close(speaker);
+			}
+
+			logger.debug("finished processing incoming connection");
 		}
-		finally
+
+		public void failed(ZabbixException e)
 		{
-			try { if (null != speaker) speaker.close(); } catch (Exception e) { }
-			try { if (null != socket) socket.close(); } catch (Exception e) { }
-		}
+			context.stop();
+			try
+			{
+				sendFailure(speaker, jmxConfig, e);
+			}
+			finally
+			{
+				close(speaker);
+			}
 
-		logger.debug("finished processing incoming connection");
+			logger.debug("finished processing incoming connection");
+		}
 	}
 }
@@ -0,0 +1,172 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package com.zabbix.gateway;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Decides how long to wait on a target. The timeout of a host is its
+ * {$JMX_TIMEOUT} macro when set, otherwise the configured default. In the
+ * adaptive mode the latest latencies of each target are kept and its timeout
+ * becomes a multiple of their 99th percentile, bounded by the floor below and
+ * by the host's timeout above. A fast target that stops answering is then
+ * given up on long before a slow one would be.
+ *
+ */
+class TargetTimeouts {
+
+    static final int DEFAULT_TIMEOUT = 10; // seconds
+    static final int DEFAULT_ADAPTIVE_FLOOR = 1000; // milliseconds
+
+    private static final int SAMPLES = 128; // the latest latencies kept per target
+    private static final int MIN_SAMPLES = 20; // the timeout only adapts once there are enough latencies
+    private static final double PERCENTILE = 0.99;
+
+    private static volatile TargetTimeouts _instance = new TargetTimeouts(DEFAULT_TIMEOUT, 0, DEFAULT_ADAPTIVE_FLOOR);
+
+    private final long _defaultTimeout;
+    private final int _multiplier;
+    private final long _floor;
+    private final ConcurrentMap<String, Latencies> _latencies = new ConcurrentHashMap<String, Latencies>();
+
+    static {
+        Metrics.newGauge(TargetTimeouts.class, "adaptive-timeout-targets", new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return _instance._latencies.size();
+            }
+
+        });
+    }
+
+    /**
+     * @param defaultTimeout The timeout in seconds of the hosts without a {$JMX_TIMEOUT} macro
+     * @param multiplier The multiple of the 99th percentile latency used as timeout, 0 disables the adaptive mode
+     * @param floor The lowest adaptive timeout in milliseconds
+     */
+    TargetTimeouts(int defaultTimeout, int multiplier, int floor) {
+        _defaultTimeout = TimeUnit.SECONDS.toMillis(defaultTimeout);
+        _multiplier = multiplier;
+        _floor = floor;
+    }
+
+    public static TargetTimeouts getInstance() {
+        return _instance;
+    }
+
+    /**
+     * @param defaultTimeout The timeout in seconds of the hosts without a {$JMX_TIMEOUT} macro
+     * @param multiplier The multiple of the 99th percentile latency used as timeout, 0 disables the adaptive mode
+     * @param floor The lowest adaptive timeout in milliseconds
+     */
+    public static void configure(int defaultTimeout, int multiplier, int floor) {
+        _instance = new TargetTimeouts(defaultTimeout, multiplier, floor);
+    }
+
+    /**
+     * Gets how long to wait on the target
+     * @param target The target's URL
+     * @param config The host's configuration or null to use the default timeout
+     * @return The timeout in milliseconds
+     */
+    public long getTimeout(String target, JmxConfiguration config) {
+        long timeout = getHostTimeout(config);
+
+        if (_multiplier > 0) {
+            Latencies latencies = _latencies.get(target);
+            long percentile = latencies != null ? latencies.getPercentile(PERCENTILE) : -1;
+            if (percentile >= 0) {
+                timeout = Math.min(timeout, Math.max(_floor, percentile * _multiplier));
+            }
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Gets the host's timeout, not lowered by the latencies
+     * @param config The host's configuration or null to use the default timeout
+     * @return The timeout in milliseconds
+     */
+    public long getHostTimeout(JmxConfiguration config) {
+        if (config != null && config.getTimeout() > 0) {
+            return TimeUnit.SECONDS.toMillis(config.getTimeout());
+        }
+        return _defaultTimeout;
+    }
+
+    /**
+     * Records the time a request to the target took. Requests that timed out
+     * should be recorded as well so the timeout grows when the target slows down.
+     * @param target The target's URL
+     * @param latency The time taken in milliseconds
+     */
+    public void record(String target, long latency) {
+        if (_multiplier == 0) {
+            return;
+        }
+
+        Latencies latencies = _latencies.get(target);
+        if (latencies == null) {
+            Latencies newLatencies = new Latencies();
+            latencies = _latencies.putIfAbsent(target, newLatencies);
+            if (latencies == null) {
+                latencies = newLatencies;
+            }
+        }
+        latencies.add(latency);
+    }
+
+    /**
+     * The latest latencies of a target in a ring buffer
+     */
+    private static class Latencies {
+        private final long[] _samples = new long[SAMPLES];
+        private int _count;
+        private int _next;
+
+        synchronized void add(long latency) {
+            _samples[_next] = latency;
+            _next = (_next + 1) % SAMPLES;
+            _count = Math.min(_count + 1, SAMPLES);
+        }
+
+        /**
+         * @return The percentile or -1 when there aren't enough latencies yet
+         */
+        synchronized long getPercentile(double percentile) {
+            if (_count < MIN_SAMPLES) {
+                return -1;
+            }
+
+            long[] sorted = Arrays.copyOf(_samples, _count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(percentile * _count) - 1];
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package com.zabbix.gateway;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aggregates the values of an attribute across all the MBeans matching an
+ * ObjectName pattern so a single item can replace the dozens of discovered
+ * items that would otherwise be added up by a Zabbix calculated item. The
+ * aggregate keys have the format:
+ * <pre>
+ * jmx.&lt;sum|avg|min|max|count&gt;[&lt;object name pattern&gt;,&lt;attribute name&gt;]
+ * </pre>
+ * NaN and infinite values (i.e. the ratio of an idle pool) are left out of the
+ * sum, avg, min and max but they're counted by count.
+ *
+ */
+class ValueAggregator {
+
+    static final String KEY_PREFIX = "jmx.";
+    static final String SUM = "sum";
+    static final String AVG = "avg";
+    static final String MIN = "min";
+    static final String MAX = "max";
+    static final String COUNT = "count";
+
+    private static final List<String> FUNCTIONS = Arrays.asList(SUM, AVG, MIN, MAX, COUNT);
+
+    private final String _function;
+    private BigDecimal _sum = BigDecimal.ZERO;
+    private BigDecimal _min;
+    private BigDecimal _max;
+    private int _count;
+    private int _nonFinite;
+
+    /**
+     * @param keyId The key ID of the aggregate item i.e. jmx.sum
+     */
+    ValueAggregator(String keyId) {
+        _function = keyId.substring(KEY_PREFIX.length());
+    }
+
+    /**
+     * Tests if the key ID is one of the aggregate keys
+     * @param keyId The key ID
+     * @return True for jmx.sum, jmx.avg, jmx.min, jmx.max and jmx.count
+     */
+    public static boolean isAggregateKey(String keyId) {
+        return keyId.startsWith(KEY_PREFIX) && FUNCTIONS.contains(keyId.substring(KEY_PREFIX.length()));
+    }
+
+    /**
+     * Adds the value of one of the matching MBeans
+     * @param value The attribute value
+     * @throws ZabbixException When the value is not numeric but needs to be
+     */
+    public void add(String value) throws ZabbixException {
+        _count++;
+        if (_function.equals(COUNT)) {
+            return;
+        }
+
+        BigDecimal number;
+        try {
+            number = new BigDecimal(value.trim());
+        }
+        catch (NumberFormatException e) {
+            if (isNonFinite(value.trim())) {
+                _nonFinite++;
+                return;
+            }
+            throw new ZabbixException("cannot compute the %s of a non-numeric value: '%s'", _function, value);
+        }
+
+        _sum = _sum.add(number);
+        if (_min == null || number.compareTo(_min) < 0) {
+            _min = number;
+        }
+        if (_max == null || number.compareTo(_max) > 0) {
+            _max = number;
+        }
+    }
+
+    /**
+     * Gets the aggregated value
+     * @return The value as a plain decimal string
+     * @throws ZabbixException When no MBean matched for a function
+     * that isn't defined over an empty set
+     */
+    public String getResult() throws ZabbixException {
+        if (_function.equals(COUNT)) {
+            return String.valueOf(_count);
+        }
+        else if (_function.equals(SUM)) {
+            return HelperFunctionChest.toPlainString(_sum);
+        }
+
+        int count = _count - _nonFinite;
+        if (count == 0) {
+            throw new ZabbixException("no values to compute the %s of", _function);
+        }
+
+        if (_function.equals(AVG)) {
+            return HelperFunctionChest.toPlainString(_sum.divide(BigDecimal.valueOf(count), MathContext.DECIMAL64));
+        }
+        else if (_function.equals(MIN)) {
+            return HelperFunctionChest.toPlainString(_min);
+        }
+        else {
+            return HelperFunctionChest.toPlainString(_max);
+        }
+    }
+
+    private static boolean isNonFinite(String value) {
+        try {
+            double number = Double.parseDouble(value);
+            return Double.isNaN(number) || Double.isInfinite(number);
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
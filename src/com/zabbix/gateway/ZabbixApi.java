@@ -19,20 +19,37 @@
 
 package com.zabbix.gateway;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.StringWriter;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.json.JSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +64,7 @@ public class ZabbixApi {
     final static String CALL_AUTHENTICATE = "user.login";
     final static String CALL_MACRO_GET = "usermacro.get";
     final static String CALL_HOST_GET = "host.get";
+    final static String CALL_INTERFACE_GET = "hostinterface.get";
     final static String PARAMS = "params";
     final static String USER = "user";
     final static String PASSWORD = "password";
@@ -71,14 +89,41 @@ public class ZabbixApi {
     final static String OUTPUT_EXTEND = "extend";
     final static String PARENT_TEMPLATES = "parentTemplates";
     final static String MACRO = "macro";
+    final static String MACROS = "macros";
+    final static String SELECT_MACROS = "selectMacros";
+    final static String CODE = "code";
     final static String VALUE = "value";
+    final static String ERROR = "error";
+    final static String MESSAGE = "message";
+    final static String DATA = "data";
+    final static String UTF8 = "UTF-8";
+    
+    // Parts of the errors of the calls made without being logged in (anymore)
+    final static String[] AUTH_ERRORS = { "re-login", "not authorised", "not authorized", "session terminated" };
+    
+    // How many hosts are retrieved per call when loading all the JMX interfaces
+    final static int HOSTS_PER_CALL = 500;
+    
+    // The ids of the calls in the batch resolving the macros of a host
+    final static int ID_HOST_BY_IP = 1;
+    final static int ID_HOST_BY_DNS = 2;
+    // The JSON-RPC error of the frontends that don't support batches
+    final static int INVALID_REQUEST = -32600;
     
     final static int SOCKET_TIMEOUT = 1000; // 1 second
     final static int READ_TIMEOUT = 2000; // 2 seconds
+    final static int MAX_CONNECTIONS = 4;
 
     private final URL _zabbixApiUrl;
-    private final String _authKey;
+    private final String _username;
+    private final String _password;
+    private volatile String _authKey;
+    // Held for writing while logging in again, the calls hold it for reading
+    private final ReadWriteLock _authLock = new ReentrantReadWriteLock();
+    private final DefaultHttpClient _httpClient;
     private final int _requestId;
+    // Cleared once the frontend rejected a batch, the calls are then made one by one
+    private volatile boolean _batchSupported = true;
     
     /**
      * Creates a new Zabbix API connection and logs it in.
@@ -87,6 +132,18 @@ public class ZabbixApi {
      * @param password The Zabbix API password for the user
      */
     public ZabbixApi(String zabbixUrl, String username, String password) {
+        this(zabbixUrl, username, password, true);
+    }
+
+    /**
+     * Creates a new Zabbix API connection and logs it in.
+     * @param zabbixUrl The root url of the Zabbix server e.g. http://myzabbixserver
+     * @param username The Zabbix API username (must be a valid user)
+     * @param password The Zabbix API password for the user
+     * @param loginRequired Whether to exit if the login fails, otherwise
+     * the login is tried again by the next API call
+     */
+    public ZabbixApi(String zabbixUrl, String username, String password, boolean loginRequired) {
     	final StringBuilder urlBuilder = new StringBuilder(zabbixUrl);
     	if (!zabbixUrl.endsWith("/")) {
     		urlBuilder.append('/');
@@ -101,10 +158,291 @@ public class ZabbixApi {
 		}
     	
     	logger.debug("Initializing Zabbix API with connection: " + _zabbixApiUrl);
+    	_httpClient = createHttpClient();
     	_requestId = 1;
+    	_username = username;
+    	_password = password;
     	_authKey = login(username, password, _requestId);
+    	if (_authKey == null && loginRequired) {
+    		logger.error("Exiting the Zabbix Java Gateway due to failed API authentication");
+    		System.exit(1);
+    	}
+    }
+
+    // The connections to the frontend are kept open between the calls
+    private static DefaultHttpClient createHttpClient() {
+        PoolingClientConnectionManager connectionManager =
+            new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, UTF8);
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        // Set timeouts so we don't hang for an unnecessary time
+        HttpConnectionParams.setConnectionTimeout(params, SOCKET_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+        return new DefaultHttpClient(connectionManager, params);
+    }
+
+    // Logs in again unless another thread already replaced the stale key, the calls
+    // made with the stale key finish first and the new ones wait on the login
+    private String relogin(String staleKey) throws IOException {
+        _authLock.writeLock().lock();
+        try {
+            if (_authKey == null || _authKey.equals(staleKey)) {
+                logger.info("Logging into the Zabbix API again");
+                _authKey = login(_username, _password, _requestId);
+            }
+            if (_authKey == null) {
+                throw new IOException("Not logged into the Zabbix API");
+            }
+            return _authKey;
+        }
+        finally {
+            _authLock.writeLock().unlock();
+        }
     }
     
+    /**
+     * A JMX interface with the resolved macros of its host
+     */
+    static class JmxInterface {
+        final String ip;
+        final String dns;
+        final int port;
+        final Map<String, String> macros;
+
+        JmxInterface(String ip, String dns, int port, Map<String, String> macros) {
+            this.ip = ip;
+            this.dns = dns;
+            this.port = port;
+            this.macros = macros;
+        }
+    }
+
+    /**
+     * Retrieves all the JMX interfaces with the resolved macros of their hosts.
+     * The interfaces and the macros take a call each, the hosts and their templates
+     * are retrieved in pages of HOSTS_PER_CALL hosts.
+     * @param macros The macros to resolve
+     * @return The JMX interfaces
+     * @throws JSONException If a response couldn't be parsed
+     * @throws IOException If the frontend couldn't be reached
+     */
+    protected List<JmxInterface> getJmxInterfaces(Collection<String> macros) throws JSONException, IOException {
+        StringWriter writer = new java.io.StringWriter();
+        JSONWriter w = new JSONWriter(writer);
+        w.object()
+            .key(JSON_RPC).value(JSON_RPC_VER)
+            .key(METHOD).value(CALL_INTERFACE_GET)
+            .key(PARAMS).object()
+                .key(FILTER).object()
+                    .key(INTERFACE_TYPE).value(TYPE_JMX)
+                .endObject()
+                .key(OUTPUT).value(OUTPUT_EXTEND)
+            .endObject()
+            .key(ID).value(_requestId)
+        .endObject();
+        JSONArray interfaces = authenticatedCall(writer.toString()).getJSONArray(RESULT);
+
+        // The ids of each host followed by the ids of its templates
+        Map<String, List<String>> hostIds = new HashMap<String, List<String>>();
+        List<String> pending = new ArrayList<String>();
+        for (int i = 0; i < interfaces.length(); i++) {
+            String hostId = interfaces.getJSONObject(i).getString(HOST_ID);
+            if (!hostIds.containsKey(hostId)) {
+                hostIds.put(hostId, null);
+                pending.add(hostId);
+            }
+        }
+        for (int start = 0; start < pending.size(); start += HOSTS_PER_CALL) {
+            List<String> page = pending.subList(start, Math.min(start + HOSTS_PER_CALL, pending.size()));
+            writer = new java.io.StringWriter();
+            w = new JSONWriter(writer);
+            w.object()
+                .key(JSON_RPC).value(JSON_RPC_VER)
+                .key(METHOD).value(CALL_HOST_GET)
+                .key(PARAMS).object()
+                    .key(HOST_IDS).value(new JSONArray(page))
+                    .key(OUTPUT).value(OUTPUT_SHORTEN)
+                    .key(SELECT_TEMPLATES).value(OUTPUT_REFER)
+                .endObject()
+                .key(ID).value(_requestId)
+            .endObject();
+            JSONArray hosts = authenticatedCall(writer.toString()).getJSONArray(RESULT);
+            for (int i = 0; i < hosts.length(); i++) {
+                List<String> ids = getHostIds(hosts.getJSONObject(i));
+                hostIds.put(ids.get(0), ids);
+            }
+        }
+
+        writer = new java.io.StringWriter();
+        w = new JSONWriter(writer);
+        w.object()
+            .key(JSON_RPC).value(JSON_RPC_VER)
+            .key(METHOD).value(CALL_MACRO_GET)
+            .key(PARAMS).object()
+                .key(FILTER).object()
+                    .key(MACRO).value(new JSONArray(macros))
+                .endObject()
+                .key(OUTPUT).value(OUTPUT_EXTEND)
+            .endObject()
+            .key(ID).value(_requestId)
+        .endObject();
+        JSONArray allMacros = authenticatedCall(writer.toString()).getJSONArray(RESULT);
+
+        List<JmxInterface> jmxInterfaces = new ArrayList<JmxInterface>();
+        for (int i = 0; i < interfaces.length(); i++) {
+            JSONObject jmxInterface = interfaces.getJSONObject(i);
+            List<String> ids = hostIds.get(jmxInterface.getString(HOST_ID));
+            if (ids == null) {
+                // The host is gone or not visible to the API user
+                continue;
+            }
+            jmxInterfaces.add(new JmxInterface(jmxInterface.optString(IP), jmxInterface.optString(DNS),
+                jmxInterface.getInt(PORT), resolveMacros(ids, allMacros, macros)));
+        }
+        return jmxInterfaces;
+    }
+
+    /**
+     * Resolves the macros of the host with the JMX interface, taking the macros
+     * of its templates into account. The host along with its own macros and its
+     * templates is looked up by IP and DNS name in a single JSON-RPC batch request,
+     * the macros of the templates then take one more call when the host doesn't
+     * define them all itself. Should the frontend not support batches everything
+     * is retrieved one call at a time.
+     * @param ip The IP or DNS name of the host's JMX interface
+     * @param port The port of the host's JMX interface
+     * @param macros The macros to resolve
+     * @return The values of the macros that are defined
+     * @throws JSONException If no host was found or the response couldn't be parsed
+     * @throws IOException If the frontend couldn't be reached
+     */
+    protected Map<String, String> resolveHostMacros(String ip, int port, Collection<String> macros)
+            throws JSONException, IOException {
+        if (_batchSupported) {
+            Object response = authenticatedRequest(buildHostBatch(ip, port));
+            if (response instanceof JSONArray) {
+                Map<Integer, JSONObject> responses = new HashMap<Integer, JSONObject>();
+                JSONArray results = (JSONArray) response;
+                for (int i = 0; i < results.length(); i++) {
+                    JSONObject result = results.getJSONObject(i);
+                    responses.put(result.optInt(ID), result);
+                }
+                if (responses.containsKey(ID_HOST_BY_IP) && responses.containsKey(ID_HOST_BY_DNS)) {
+                    JSONArray hosts = responses.get(ID_HOST_BY_IP).getJSONArray(RESULT);
+                    // Try DNS instead if no host has the IP
+                    if (hosts.length() == 0) {
+                        hosts = responses.get(ID_HOST_BY_DNS).getJSONArray(RESULT);
+                    }
+                    return resolveMacros(hosts.getJSONObject(0), macros);
+                }
+                logger.warn("Unexpected response from the Zabbix API, resolving the macros with separate calls: {}",
+                    response);
+            }
+            else if (isBatchRejected(response)) {
+                logger.info("The Zabbix API doesn't support batch requests, resolving the macros with separate calls");
+                _batchSupported = false;
+            }
+            else {
+                logger.warn("Unexpected response from the Zabbix API, resolving the macros with separate calls: {}",
+                    response);
+            }
+        }
+
+        List<String> hostIds = getHostIdsForConnection(ip, port);
+        Map<String, String> values = new HashMap<String, String>();
+        for (String macro : macros) {
+            String value = resolveHostMacro(hostIds, macro);
+            if (value != null) {
+                values.put(macro, value);
+            }
+        }
+        return values;
+    }
+
+    // Whether the frontend answered the batch with the error of not supporting batches
+    static boolean isBatchRejected(Object response) {
+        if (!(response instanceof JSONObject)) {
+            return false;
+        }
+        JSONObject error = ((JSONObject) response).optJSONObject(ERROR);
+        return error != null && error.optInt(CODE) == INVALID_REQUEST;
+    }
+
+    // The host's own macros come with it, the ones of its templates are only retrieved when needed
+    private Map<String, String> resolveMacros(JSONObject host, Collection<String> macros)
+            throws JSONException, IOException {
+        List<String> hostIds = getHostIds(host);
+        JSONArray results = new JSONArray();
+        JSONArray hostMacros = host.optJSONArray(MACROS);
+        if (hostMacros != null) {
+            for (int i = 0; i < hostMacros.length(); i++) {
+                JSONObject macro = hostMacros.getJSONObject(i);
+                if (!macro.has(HOST_ID)) {
+                    macro.put(HOST_ID, hostIds.get(0));
+                }
+                results.put(macro);
+            }
+        }
+
+        Map<String, String> values = resolveMacros(hostIds, results, macros);
+        if (hostIds.size() > 1 && values.size() < macros.size()) {
+            List<String> missing = new ArrayList<String>(macros);
+            missing.removeAll(values.keySet());
+            StringWriter writer = new java.io.StringWriter();
+            JSONWriter w = new JSONWriter(writer);
+            w.object()
+                .key(JSON_RPC).value(JSON_RPC_VER)
+                .key(METHOD).value(CALL_MACRO_GET)
+                .key(PARAMS).object()
+                    .key(HOST_IDS).value(new JSONArray(hostIds.subList(1, hostIds.size())))
+                    .key(FILTER).object()
+                        .key(MACRO).value(new JSONArray(missing))
+                    .endObject()
+                    .key(OUTPUT).value(OUTPUT_EXTEND)
+                .endObject()
+                .key(ID).value(_requestId)
+            .endObject();
+            JSONArray templateMacros = authenticatedCall(writer.toString()).getJSONArray(RESULT);
+            for (int i = 0; i < templateMacros.length(); i++) {
+                results.put(templateMacros.get(i));
+            }
+            values = resolveMacros(hostIds, results, macros);
+        }
+        return values;
+    }
+
+    // The batch looks up the host by IP and DNS name along with its own macros and its templates
+    private String buildHostBatch(String ip, int port) throws JSONException {
+        StringWriter writer = new java.io.StringWriter();
+        JSONWriter w = new JSONWriter(writer);
+        w.array();
+        for (String field : new String[] { IP, DNS }) {
+            w.object()
+                .key(JSON_RPC).value(JSON_RPC_VER)
+                .key(METHOD).value(CALL_HOST_GET)
+                .key(PARAMS).object()
+                    .key(FILTER).object()
+                        .key(field).value(ip)
+                        .key(PORT).value(port)
+                        .key(INTERFACE_TYPE).value(TYPE_JMX)
+                    .endObject()
+                    .key(OUTPUT).value(OUTPUT_SHORTEN)
+                    .key(SELECT_TEMPLATES).value(OUTPUT_REFER)
+                    .key(SELECT_MACROS).value(OUTPUT_EXTEND)
+                .endObject()
+                .key(ID).value(field.equals(IP) ? ID_HOST_BY_IP : ID_HOST_BY_DNS)
+            .endObject();
+        }
+        w.endArray();
+        return writer.toString();
+    }
+
     protected List<String> getHostIdsForConnection(String ip, int port) throws JSONException, IOException {
     	StringWriter writer = new java.io.StringWriter();
         JSONWriter w = new JSONWriter(writer);
@@ -120,11 +458,10 @@ public class ZabbixApi {
                 .key(OUTPUT).value(OUTPUT_SHORTEN)
                 .key(SELECT_TEMPLATES).value(OUTPUT_REFER)
             .endObject()
-            .key(AUTH).value(_authKey)
             .key(ID).value(_requestId)
         .endObject();
 
-        JSONArray results = zabbixApiCall(writer.toString()).getJSONArray(RESULT);
+        JSONArray results = authenticatedCall(writer.toString()).getJSONArray(RESULT);
         // Try DNS instead if no results were returned
         if (results.length() == 0) {
         	writer = new java.io.StringWriter();
@@ -141,14 +478,22 @@ public class ZabbixApi {
                     .key(OUTPUT).value(OUTPUT_SHORTEN)
                     .key(SELECT_TEMPLATES).value(OUTPUT_REFER)
                 .endObject()
-                .key(AUTH).value(_authKey)
                 .key(ID).value(_requestId)
             .endObject();
             
-            results = zabbixApiCall(writer.toString()).getJSONArray(RESULT);
+            results = authenticatedCall(writer.toString()).getJSONArray(RESULT);
         }
         
-        JSONObject result = results.getJSONObject(0);
+        return getHostIds(results);
+    }
+
+    // The id of the first host followed by the ids of its templates, in the order of macro precedence
+    static List<String> getHostIds(JSONArray hosts) throws JSONException {
+        return getHostIds(hosts.getJSONObject(0));
+    }
+
+    // The id of the host followed by the ids of its templates
+    static List<String> getHostIds(JSONObject result) throws JSONException {
         List<String> hostIds = new ArrayList<String>();
         hostIds.add(result.getString(HOST_ID));
         if (result.has(PARENT_TEMPLATES)) {
@@ -184,23 +529,41 @@ public class ZabbixApi {
                 .endObject()
                 .key(OUTPUT).value(OUTPUT_EXTEND)
             .endObject()
-            .key(AUTH).value(_authKey)
             .key(ID).value(_requestId)
         .endObject();
         
-        JSONArray results = zabbixApiCall(writer.toString()).getJSONArray(RESULT);
-        // Handle macro precedence
-        String resolvedMacro = null;
-        int resolvedMacroPrecedence = hostIds.size() + 1;
+        JSONArray results = authenticatedCall(writer.toString()).getJSONArray(RESULT);
+        return resolveMacros(hostIds, results, Collections.singletonList(macro)).get(macro);
+    }
+
+    /**
+     * Picks the value of each macro with the highest precedence, the host's own
+     * macros come first followed by the ones of its templates.
+     * @param hostIds The ids of the host and its templates in the order of precedence
+     * @param results The macros returned by usermacro.get
+     * @param macros The macros to resolve
+     * @return The values of the macros defined for the host or its templates
+     * @throws JSONException If the macros couldn't be parsed
+     */
+    static Map<String, String> resolveMacros(List<String> hostIds, JSONArray results, Collection<String> macros)
+            throws JSONException {
+        Map<String, String> values = new HashMap<String, String>();
+        Map<String, Integer> precedences = new HashMap<String, Integer>();
         for (int i = 0; i < results.length(); i++) {
         	JSONObject result = results.getJSONObject(i);
-        	int precedence = hostIds.indexOf(result.get(HOST_ID));
-        	if (precedence < resolvedMacroPrecedence) {
-        		resolvedMacro = result.getString(VALUE);
+        	String macro = result.getString(MACRO);
+        	int precedence = hostIds.indexOf(result.getString(HOST_ID));
+        	if (precedence < 0 || !macros.contains(macro)) {
+        		continue;
+        	}
+        	Integer resolvedPrecedence = precedences.get(macro);
+        	if (resolvedPrecedence == null || precedence < resolvedPrecedence) {
+        		values.put(macro, result.getString(VALUE));
+        		precedences.put(macro, precedence);
         	}
         }
         
-        return resolvedMacro;
+        return values;
     }
     
 	
@@ -211,9 +574,8 @@ public class ZabbixApi {
      * @param pass Password you want to log in with.
      * @param requestId An integer ID that will be present in the response to this request. Allows
      * a way to keep track of messages.
-     * @return Authentication key that must be used with all subsequent messages.
-     * @throws IOException
-     * @throws JSONException
+     * @return Authentication key that must be used with all subsequent messages,
+     * null if the login failed.
      */
     private String login(String user, String pass, int requestId) {
     	logger.debug("Logging into the Zabbix API");
@@ -232,11 +594,6 @@ public class ZabbixApi {
     		logger.error(String.format("Unable to login through the Zabbix API with username: %s and password: %s", user, pass), ex);
     	}
     	
-    	if (authKey == null) {
-    		logger.error("Exiting the Zabbix Java Gateway due to failed API authentication");
-    		System.exit(1);
-    	}
-    	
     	return authKey;
     }
 
@@ -271,41 +628,131 @@ public class ZabbixApi {
      * @throws JSONException
      */
     private JSONObject zabbixApiCall(String jrpc) throws IOException, JSONException {
-        StringBuilder builder;
-        BufferedReader rd;
-        OutputStreamWriter wr;
-        HttpURLConnection conn;
-        
-        conn = (HttpURLConnection)_zabbixApiUrl.openConnection();
-        conn.setRequestProperty(CONTENT_TYPE, APP_JRPC);
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        conn.setDoInput(true);
-        // Set timeouts so we don't hang for an unnecessary time
-        conn.setConnectTimeout(SOCKET_TIMEOUT);
-        conn.setReadTimeout(READ_TIMEOUT);
-        wr = new OutputStreamWriter(conn.getOutputStream());
+        return toObject(zabbixApiRequest(jrpc));
+    }
+
+    /**
+     * Makes a JSON-rpc call to the Zabbix server that requires being logged in.
+     * @param jrpc A JSON formatted string containing the call without the auth key.
+     * @return Zabbix server's response to the call, in JSON format.
+     * @throws IOException
+     * @throws JSONException
+     */
+    private JSONObject authenticatedCall(String jrpc) throws IOException, JSONException {
+        return toObject(authenticatedRequest(jrpc));
+    }
+
+    private JSONObject toObject(Object response) throws JSONException {
+        if (!(response instanceof JSONObject)) {
+            throw new JSONException("Unexpected response from the Zabbix API: " + response);
+        }
+        return (JSONObject) response;
+    }
+
+    /**
+     * Makes a JSON-rpc call or batch of calls that require being logged in. The
+     * auth key is added to the calls, should the session have expired the calls
+     * are made again once logged in again.
+     * @param jrpc A JSON formatted string containing the call or an array of calls.
+     * @return Zabbix server's response, a JSONObject or a JSONArray for a batch.
+     * @throws IOException
+     * @throws JSONException
+     */
+    private Object authenticatedRequest(String jrpc) throws IOException, JSONException {
+        Object calls = new JSONTokener(jrpc).nextValue();
+        String authKey = null;
+        Object response = null;
+        _authLock.readLock().lock();
+        try {
+            authKey = _authKey;
+            if (authKey != null) {
+                response = zabbixApiRequest(withAuth(calls, authKey));
+                if (!isAuthFailure(response)) {
+                    return response;
+                }
+                logger.info("The Zabbix API session expired");
+            }
+        }
+        finally {
+            _authLock.readLock().unlock();
+        }
+
+        relogin(authKey);
+        _authLock.readLock().lock();
+        try {
+            return zabbixApiRequest(withAuth(calls, _authKey));
+        }
+        finally {
+            _authLock.readLock().unlock();
+        }
+    }
+
+    private static String withAuth(Object calls, String authKey) throws JSONException {
+        if (calls instanceof JSONArray) {
+            JSONArray batch = (JSONArray) calls;
+            for (int i = 0; i < batch.length(); i++) {
+                batch.getJSONObject(i).put(AUTH, authKey);
+            }
+        }
+        else {
+            ((JSONObject) calls).put(AUTH, authKey);
+        }
+        return calls.toString();
+    }
+
+    // Whether the call, or one of the calls of a batch, failed for not being logged in
+    static boolean isAuthFailure(Object response) {
+        if (response instanceof JSONArray) {
+            JSONArray batch = (JSONArray) response;
+            for (int i = 0; i < batch.length(); i++) {
+                if (isAuthFailure(batch.opt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (!(response instanceof JSONObject)) {
+            return false;
+        }
+
+        JSONObject error = ((JSONObject) response).optJSONObject(ERROR);
+        if (error == null) {
+            return false;
+        }
+        String message = (error.optString(MESSAGE) + " " + error.optString(DATA)).toLowerCase();
+        for (String authError : AUTH_ERRORS) {
+            if (message.contains(authError)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes a JSON-rpc call or batch of calls to the Zabbix server over the
+     * pooled connections.
+     * @param jrpc A JSON formatted string containing the call or an array of calls.
+     * @return Zabbix server's response, a JSONObject or a JSONArray for a batch.
+     * @throws IOException
+     * @throws JSONException
+     */
+    private Object zabbixApiRequest(String jrpc) throws IOException, JSONException {
+        HttpPost post = new HttpPost(_zabbixApiUrl.toString());
+        post.setEntity(new StringEntity(jrpc, ContentType.create(APP_JRPC, UTF8)));
         
         /*Request*/
         logger.debug("Request=" + jrpc);
-        wr.write(jrpc);
-        wr.flush();
+        HttpResponse httpResponse = _httpClient.execute(post);
         
         /*Response*/
-        String part = "";
-        builder = new StringBuilder();
-        rd = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-        while((part = rd.readLine()) != null){
-            builder.append(part);
+        // The entity is always read fully so the connection goes back to the pool
+        HttpEntity entity = httpResponse.getEntity();
+        String response = entity == null ? "" : EntityUtils.toString(entity, UTF8);
+        int status = httpResponse.getStatusLine().getStatusCode();
+        if (status >= 300) {
+            throw new IOException("Unexpected response from the Zabbix API: " + httpResponse.getStatusLine());
         }
-        String response = builder.toString();
         logger.debug("Response=" + response);
-        JSONObject resp = new JSONObject(response);
-
-        /*Clean up*/
-        conn.disconnect();
-        wr.close();
-        rd.close();
-        return resp;
+        return new JSONTokener(response).nextValue();
     }
 }
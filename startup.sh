@@ -23,6 +23,8 @@ for jar in {lib,bin}/*.jar; do
 done
 
 ZABBIX_OPTIONS=""
+# Options whose values may contain spaces or wildcards are kept as separate arguments
+ZABBIX_ARGS=()
 if [ -n "$API_USER" ]; then
 	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.apiUser=$API_USER"
 fi
@@ -32,6 +34,12 @@ fi
 if [ -n "$ZABBIX_URL" ]; then
 ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.zabbixUrl=$ZABBIX_URL"
 fi
+if [ -n "$CONFIG_REFRESH" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.configRefresh=$CONFIG_REFRESH"
+fi
+if [ -n "$CONFIG_SNAPSHOT" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.configSnapshot=$CONFIG_SNAPSHOT"
+fi
 if [ -n "$PID_FILE" ]; then
 	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.pidFile=$PID_FILE"
 fi
@@ -44,11 +52,48 @@ fi
 if [ -n "$START_POLLERS" ]; then
 	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.startPollers=$START_POLLERS"
 fi
+if [ -n "$PREFETCH_FRESHNESS" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.prefetchFreshness=$PREFETCH_FRESHNESS"
+fi
+if [ -n "$VALUE_CACHE_TTL" ]; then
+	ZABBIX_ARGS+=("-Dzabbix.valueCacheTtl=$VALUE_CACHE_TTL")
+fi
+if [ -n "$JOLOKIA_KEEP_ALIVE" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.jolokiaKeepAlive=$JOLOKIA_KEEP_ALIVE"
+fi
+if [ -n "$JOLOKIA_MAX_CONNECTIONS_PER_ROUTE" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.jolokiaMaxConnectionsPerRoute=$JOLOKIA_MAX_CONNECTIONS_PER_ROUTE"
+fi
+if [ -n "$JOLOKIA_MAX_CONNECTIONS" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.jolokiaMaxConnections=$JOLOKIA_MAX_CONNECTIONS"
+fi
+if [ -n "$JOLOKIA_MAX_BULK_REQUESTS" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.jolokiaMaxBulkRequests=$JOLOKIA_MAX_BULK_REQUESTS"
+fi
+if [ -n "$JOLOKIA_COMPRESSION_THRESHOLD" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.jolokiaCompressionThreshold=$JOLOKIA_COMPRESSION_THRESHOLD"
+fi
+if [ -n "$JOLOKIA_LIST_CACHE_TTL" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.jolokiaListCacheTtl=$JOLOKIA_LIST_CACHE_TTL"
+fi
+if [ -n "$TIMEOUT" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.timeout=$TIMEOUT"
+fi
+if [ -n "$ADAPTIVE_TIMEOUT" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.adaptiveTimeout=$ADAPTIVE_TIMEOUT"
+fi
+if [ -n "$ADAPTIVE_TIMEOUT_FLOOR" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.adaptiveTimeoutFloor=$ADAPTIVE_TIMEOUT_FLOOR"
+fi
+if [ -n "$JOLOKIA_READ_THREADS" ]; then
+	ZABBIX_OPTIONS="$ZABBIX_OPTIONS -Dzabbix.jolokiaReadThreads=$JOLOKIA_READ_THREADS"
+fi
 
-COMMAND_LINE="$JAVA $JAVA_OPTIONS -classpath $CLASSPATH $ZABBIX_OPTIONS com.zabbix.gateway.JavaGateway"
+COMMAND_LINE=($JAVA $JAVA_OPTIONS -classpath $CLASSPATH $ZABBIX_OPTIONS "${ZABBIX_ARGS[@]}" com.zabbix.gateway.JavaGateway)
 
 if [ -n "$PID_FILE" ]; then
-	PID=$(/bin/bash -c "$COMMAND_LINE > /dev/null 2>&1 & echo \$!")
+	"${COMMAND_LINE[@]}" > /dev/null 2>&1 &
+	PID=$!
 	if ps -p $PID > /dev/null 2>&1; then
 		echo $PID > $PID_FILE
 	else
@@ -56,5 +101,5 @@ if [ -n "$PID_FILE" ]; then
 		exit 1
 	fi
 else
-	exec $COMMAND_LINE
+	exec "${COMMAND_LINE[@]}"
 fi
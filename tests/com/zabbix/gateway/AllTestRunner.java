@@ -28,7 +28,22 @@ public class AllTestRunner
 			"IntegerValidatorTest",
 			"ZabbixItemTest",
 			"JolokiaCheckerTest",
-			"JMXItemCheckerTest"
+			"JMXItemCheckerTest",
+			"ReadCoalescerTest",
+			"ItemValueCacheTest",
+			"CounterRatesTest",
+			"AttributeSamplerTest",
+			"JolokiaResponseParserTest",
+			"TargetTimeoutsTest",
+			"JolokiaCompressionTest",
+			"JolokiaListCacheTest",
+			"JolokiaProxyBatcherTest",
+			"ZabbixApiTest",
+			"JmxConfigurationSnapshotTest",
+			"PrefetchSchedulerTest",
+			"ValueAggregatorTest",
+			"HelperFunctionChestTest",
+			"JolokiaClientRegistryTest"
 		};
 
 		for (int i = 0; i < testClasses.length; i++)
@@ -0,0 +1,40 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AttributeSamplerTest {
+
+    @Test
+    public void testSampleKey() {
+        assertTrue(AttributeSampler.isSampleKey("jmx.sample[java.lang:type=Threading,ThreadCount,250ms]"));
+        assertFalse(AttributeSampler.isSampleKey("jmx[java.lang:type=Threading,ThreadCount]"));
+        assertFalse(AttributeSampler.isSampleKey("jmx.samples[java.lang:type=Threading,ThreadCount]"));
+    }
+
+    @Test
+    public void testParseInterval() throws ZabbixException {
+        assertEquals(250, AttributeSampler.parseInterval("250ms"));
+        assertEquals(250, AttributeSampler.parseInterval(" 250 "));
+        assertEquals(2000, AttributeSampler.parseInterval("2s"));
+    }
+
+    @Test
+    public void testBufferHoldsIdleTimeout() {
+        // All the samples taken before sampling stops for lack of polls fit in the buffer
+        assertEquals(12001, AttributeSampler.bufferSize(50));
+        assertEquals(2401, AttributeSampler.bufferSize(250));
+        assertEquals(11, AttributeSampler.bufferSize(60000));
+    }
+
+    @Test(expected = ZabbixException.class)
+    public void testIntervalTooShort() throws ZabbixException {
+        AttributeSampler.parseInterval("1ms");
+    }
+
+    @Test(expected = ZabbixException.class)
+    public void testIntervalTooLong() throws ZabbixException {
+        AttributeSampler.parseInterval("5m");
+    }
+}
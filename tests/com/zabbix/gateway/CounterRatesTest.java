@@ -0,0 +1,96 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CounterRatesTest {
+
+    private static final String TARGET = "service:jmx:rmi:///jndi/rmi://localhost:12345/jmxrmi";
+    private static final String RATE_KEY = "jmx.rate[java.lang:type=GarbageCollector,name=Copy,CollectionCount]";
+    private static final String DELTA_KEY = "jmx.delta[java.lang:type=GarbageCollector,name=Copy,CollectionCount]";
+
+    @Test
+    public void testSourceKey() {
+        assertEquals("jmx[java.lang:type=GarbageCollector,name=Copy,CollectionCount]", CounterRates.getSourceKey(RATE_KEY));
+        assertEquals("jmx[java.lang:type=GarbageCollector,name=Copy,CollectionCount]", CounterRates.getSourceKey(DELTA_KEY));
+        assertNull(CounterRates.getSourceKey("jmx[java.lang:type=Runtime,VmVendor]"));
+        assertNull(CounterRates.getSourceKey("jmx.rates[java.lang:type=Runtime,Uptime]"));
+    }
+
+    @Test
+    public void testRate() {
+        CounterRates rates = new CounterRates();
+        long series = CounterRates.hash(TARGET, RATE_KEY);
+
+        // The first sample has nothing to compare with
+        assertTrue(Double.isNaN(rates.update(series, 100, 10000, true)));
+        assertEquals(50, rates.update(series, 200, 12000, true), 0);
+        assertEquals(0.5, rates.update(series, 205, 22000, true), 0);
+    }
+
+    @Test
+    public void testDelta() {
+        CounterRates rates = new CounterRates();
+        long series = CounterRates.hash(TARGET, DELTA_KEY);
+
+        assertTrue(Double.isNaN(rates.update(series, 100, 10000, false)));
+        // Nor do samples close to it
+        assertTrue(Double.isNaN(rates.update(series, 110, 10500, false)));
+        assertEquals(100, rates.update(series, 200, 12000, false), 0);
+        // Samples close together repeat the last result
+        assertEquals(100, rates.update(series, 210, 12500, false), 0);
+        assertEquals(50, rates.update(series, 250, 14000, false), 0);
+    }
+
+    @Test
+    public void testFirstSampleHasNoValue() throws ZabbixException {
+        CounterRates rates = new CounterRates();
+        try {
+            rates.compute(TARGET, RATE_KEY, "100");
+            fail("ZabbixException expected as there's no previous sample");
+        }
+        catch (ZabbixException expected) {
+        }
+    }
+
+    @Test
+    public void testCounterReset() {
+        CounterRates rates = new CounterRates();
+        long series = CounterRates.hash(TARGET, DELTA_KEY);
+
+        rates.update(series, 1000, 10000, false);
+        // The JVM restarted and counted up to 30 since
+        assertEquals(30, rates.update(series, 30, 20000, false), 0);
+    }
+
+    @Test
+    public void testIdleEviction() {
+        CounterRates rates = new CounterRates();
+        long idleSeries = CounterRates.hash(TARGET, DELTA_KEY);
+        long activeSeries = CounterRates.hash(TARGET, RATE_KEY);
+
+        rates.update(idleSeries, 100, 0, false);
+        long later = TimeUnit.HOURS.toMillis(3);
+        rates.update(activeSeries, 100, later, true);
+        assertEquals(1, rates.size());
+
+        // The idle series starts over
+        assertTrue(Double.isNaN(rates.update(idleSeries, 150, later + 1000, false)));
+    }
+
+    @Test
+    public void testManySeries() {
+        CounterRates rates = new CounterRates();
+        for (int i = 0; i < 10000; i++) {
+            rates.update(CounterRates.hash(TARGET, DELTA_KEY + i), i, 10000, false);
+        }
+        assertEquals(10000, rates.size());
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(1, rates.update(CounterRates.hash(TARGET, DELTA_KEY + i), i + 1, 20000, false), 0);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HelperFunctionChestTest {
+
+    @Test
+    public void testParseRowIndex() {
+        assertArrayEquals(new String[] { "java.version" }, HelperFunctionChest.parseRowIndex("[java.version]"));
+        assertArrayEquals(new String[] { "a", "b" }, HelperFunctionChest.parseRowIndex("[a,b]"));
+        assertArrayEquals(new String[] { "" }, HelperFunctionChest.parseRowIndex("[]"));
+    }
+
+    @Test
+    public void testParseEscapedRowIndex() {
+        assertArrayEquals(new String[] { "a,b" }, HelperFunctionChest.parseRowIndex("[a\\,b]"));
+        assertArrayEquals(new String[] { "a]", "[b" }, HelperFunctionChest.parseRowIndex("[a\\],\\[b]"));
+        assertArrayEquals(new String[] { "a\\", "b" }, HelperFunctionChest.parseRowIndex("[a\\\\,b]"));
+    }
+
+    @Test
+    public void testEscapeRowIndexValue() {
+        String value = "a,b]\\[c";
+        String rowIndex = "[" + HelperFunctionChest.escapeRowIndexValue(value) + "]";
+        assertEquals("[a\\,b\\]\\\\\\[c]", rowIndex);
+        assertArrayEquals(new String[] { value }, HelperFunctionChest.parseRowIndex(rowIndex));
+    }
+
+    @Test
+    public void testEscapedRowIndexEnd() {
+        assertEquals(13, HelperFunctionChest.rowIndexEnd("[java.version].value"));
+        assertEquals(5, HelperFunctionChest.rowIndexEnd("[a\\]b].value"));
+        assertEquals(-1, HelperFunctionChest.rowIndexEnd("[a\\]"));
+    }
+
+    @Test
+    public void testSplitEscapedAttributePath() {
+        assertEquals(Arrays.asList("SystemProperties", "[a\\].b\\,c]", "value"),
+            HelperFunctionChest.splitAttributePath("SystemProperties[a\\].b\\,c].value"));
+        assertEquals(8, HelperFunctionChest.rowIndexStart("Table\\.1[a\\]]"));
+    }
+}
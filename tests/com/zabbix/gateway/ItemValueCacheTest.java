@@ -0,0 +1,70 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ItemValueCacheTest {
+
+    private static final String TARGET = "service:jmx:rmi:///jndi/rmi://localhost:12345/jmxrmi";
+    private static final String VENDOR_KEY = "jmx[java.lang:type=Runtime,VmVendor]";
+    private static final String MAX_HEAP_KEY = "jmx[java.lang:type=Memory,HeapMemoryUsage.max]";
+    private static final String USED_HEAP_KEY = "jmx[java.lang:type=Memory,HeapMemoryUsage.used]";
+
+    @Test
+    public void testRuleMatching() {
+        ItemValueCache cache = new ItemValueCache("jmx[java.lang:type=Runtime,Vm*]=forever; *HeapMemoryUsage.max]=60");
+
+        assertTrue(cache.isCacheable(VENDOR_KEY));
+        assertTrue(cache.isCacheable(MAX_HEAP_KEY));
+        assertFalse(cache.isCacheable(USED_HEAP_KEY));
+        assertTrue(cache.isAnyCacheable(Arrays.asList(USED_HEAP_KEY, VENDOR_KEY)));
+        assertFalse(cache.isAnyCacheable(Arrays.asList(USED_HEAP_KEY)));
+    }
+
+    @Test
+    public void testNoRules() {
+        ItemValueCache cache = new ItemValueCache("");
+        assertFalse(cache.isCacheable(VENDOR_KEY));
+
+        cache.validate(TARGET, "1000");
+        cache.put(TARGET, VENDOR_KEY, "Oracle Corporation");
+        assertNull(cache.get(TARGET, VENDOR_KEY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadRule() {
+        new ItemValueCache("jmx[java.lang:type=Runtime,VmVendor]");
+    }
+
+    @Test
+    public void testInvalidatedOnRestart() {
+        ItemValueCache cache = new ItemValueCache("*VmVendor]=forever;*HeapMemoryUsage.max]=0");
+
+        // Nothing is cached until the target's start time is known
+        cache.put(TARGET, VENDOR_KEY, "Oracle Corporation");
+        assertNull(cache.get(TARGET, VENDOR_KEY));
+
+        assertFalse(cache.validate(TARGET, "1000"));
+        cache.put(TARGET, VENDOR_KEY, "Oracle Corporation");
+        assertEquals("Oracle Corporation", cache.get(TARGET, VENDOR_KEY));
+
+        assertTrue(cache.validate(TARGET, "1000"));
+        assertEquals("Oracle Corporation", cache.get(TARGET, VENDOR_KEY));
+
+        // The target restarted
+        assertFalse(cache.validate(TARGET, "2000"));
+        assertNull(cache.get(TARGET, VENDOR_KEY));
+    }
+
+    @Test
+    public void testExpiredValuesNotServed() throws InterruptedException {
+        ItemValueCache cache = new ItemValueCache("*HeapMemoryUsage.max]=0");
+        cache.validate(TARGET, "1000");
+        cache.put(TARGET, MAX_HEAP_KEY, "1024");
+        Thread.sleep(5);
+        assertNull(cache.get(TARGET, MAX_HEAP_KEY));
+    }
+}
@@ -1,5 +1,7 @@
 package com.zabbix.gateway;
 
+import static org.junit.Assert.*;
+
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.rmi.registry.LocateRegistry;
@@ -12,9 +14,11 @@ import javax.management.remote.JMXConnectorServer;
 import javax.management.remote.JMXConnectorServerFactory;
 import javax.management.remote.JMXServiceURL;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.mockito.Mockito;
 
 public class JMXItemCheckerTest extends JMXItemCheckerTestsBase {
@@ -44,6 +48,78 @@ public class JMXItemCheckerTest extends JMXItemCheckerTestsBase {
 		testServer.stop();
 	}
 
+	@Test
+	public void testArrayRendering() {
+		Object[] arrays = {
+			new long[] { Long.MIN_VALUE, 0, Long.MAX_VALUE },
+			new int[] { Integer.MIN_VALUE, -1, 42 },
+			new double[] { 1.5, -0.0, 1e-7, 12345678.9, Double.NaN, Double.POSITIVE_INFINITY },
+			new float[] { 1.5f, -0.0f, 1e-7f, 3.4028235e38f, Float.NaN },
+			new short[] { Short.MIN_VALUE, 7 },
+			new byte[] { Byte.MIN_VALUE, 0, Byte.MAX_VALUE },
+			new char[] { 'a', '\n', '\u00e9' },
+			new boolean[] { true, false },
+			new String[] { "first", null, "third" },
+			new Object[] { null, null },
+			new Long[] { 1L, null, 3L },
+			new long[0],
+			new String[0],
+			new int[][] { { 1, 2 }, { 3 } },
+			new Object[] { "text", new long[] { 1 } },
+		};
+		for (Object array : arrays) {
+			assertEquals(renderLikeBaseline(array), JMXItemChecker.handleArray(array));
+		}
+
+		assertEquals("-9223372036854775808\n0\n9223372036854775807", JMXItemChecker.handleArray(arrays[0]));
+		assertEquals("true\nfalse", JMXItemChecker.handleArray(arrays[7]));
+		assertEquals("first\nthird", JMXItemChecker.handleArray(arrays[8]));
+		assertEquals("", JMXItemChecker.handleArray(arrays[9]));
+		assertEquals("", JMXItemChecker.handleArray(arrays[11]));
+	}
+
+	// How the arrays were rendered by boxing each element, the nulls skipped
+	private static String renderLikeBaseline(Object array) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < java.lang.reflect.Array.getLength(array); i++) {
+			Object entry = java.lang.reflect.Array.get(array, i);
+			if (entry != null) {
+				builder.append(String.valueOf(entry)).append("\n");
+			}
+		}
+		return builder.length() == 0 ? "" : builder.substring(0, builder.length() - 1);
+	}
+
+	@Test
+	public void testGcPauseNotifications() throws Exception {
+		JSONObject request = getNewRequestObject();
+		JSONArray keys = new JSONArray();
+		keys.put("jmx.gc.pause[count]");
+		keys.put("jmx.gc.pause[max]");
+		keys.put("jmx.memory.threshold[]");
+		// Test a bad aggregate too
+		keys.put("jmx.gc.pause[median]");
+		request.put("keys", keys);
+
+		// The first poll subscribes so there are no events yet
+		JSONArray values = getItemChecker(request).getValues();
+		assertEquals("0", values.getJSONObject(0).getString("value"));
+		assertEquals("0", values.getJSONObject(1).getString("value"));
+		assertEquals("0", values.getJSONObject(2).getString("value"));
+		assertTrue(!values.getJSONObject(3).get("error").toString().isEmpty());
+
+		// The notifications are delivered asynchronously
+		System.gc();
+		long pauses = 0;
+		for (int i = 0; i < 50 && pauses == 0; i++) {
+			Thread.sleep(100);
+			values = getItemChecker(request).getValues();
+			pauses += Long.parseLong(values.getJSONObject(0).getString("value"));
+			assertTrue(Long.parseLong(values.getJSONObject(1).getString("value")) >= 0);
+		}
+		assertTrue(pauses > 0);
+	}
+
 	@Override
 	public ItemChecker getItemChecker(JSONObject request)
 			throws ZabbixException {
@@ -3,8 +3,10 @@ package com.zabbix.gateway;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
 import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -214,6 +216,39 @@ public abstract class JMXItemCheckerTestsBase {
 
     }
 
+    @Test
+    public void testNestedCompositeDataRead() throws JSONException, ZabbixException {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put(String.format("jmx[\"%s\",CompositeObject.subComposite.subValueOne]", TEST_MBEAN_NAME));
+        keys.put(String.format("jmx[\"%s\",CompositeObject.subComposite.subValueTwo]", TEST_MBEAN_NAME));
+        // Test an invalid nested value too
+        keys.put(String.format("jmx[\"%s\",CompositeObject.subComposite.invalidvalue]", TEST_MBEAN_NAME));
+        request.put("keys", keys);
+
+        ItemChecker itemChecker = getItemChecker(request);
+        JSONArray values = itemChecker.getValues();
+        assertEquals("SubValueOne", values.getJSONObject(0).getString("value"));
+        assertEquals("SubValueTwo", values.getJSONObject(1).getString("value"));
+        assertTrue(!values.getJSONObject(2).get("error").toString().isEmpty());
+
+        // A single leaf and items that only share the attribute
+        request = getNewRequestObject();
+        keys = new JSONArray();
+        keys.put(String.format("jmx[\"%s\",CompositeObject.subComposite.subValueTwo]", TEST_MBEAN_NAME));
+        request.put("keys", keys);
+        assertEquals("SubValueTwo", getItemChecker(request).getValues().getJSONObject(0).getString("value"));
+
+        request = getNewRequestObject();
+        keys = new JSONArray();
+        keys.put(String.format("jmx[\"%s\",CompositeObject.valueOne]", TEST_MBEAN_NAME));
+        keys.put(String.format("jmx[\"%s\",CompositeObject.subComposite.subValueOne]", TEST_MBEAN_NAME));
+        request.put("keys", keys);
+        values = getItemChecker(request).getValues();
+        assertEquals("ValueOne", values.getJSONObject(0).getString("value"));
+        assertEquals("SubValueOne", values.getJSONObject(1).getString("value"));
+    }
+
     @Test
     public void testInvalidUserPassCombo() throws JSONException,
             ZabbixException {
@@ -279,6 +314,50 @@ public abstract class JMXItemCheckerTestsBase {
         }
     }
     
+    /**
+     * Discover all the attributes of primitive types, drilling down
+     * into composite and tabular attributes
+     * @throws JSONException
+     * @throws ZabbixException
+     */
+    @Test
+    public void testAttributeDiscovery() throws JSONException, ZabbixException {
+    	JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx.discovery");
+        request.put("keys", keys);
+
+        ItemChecker itemChecker = getItemChecker(request);
+        JSONArray values = itemChecker.getValues();
+        JSONArray counters = new JSONObject(values.getJSONObject(0).getString("value")).getJSONArray("data");
+
+        JSONObject counter = findCounter(counters, TEST_MBEAN_NAME, "SciNotationDouble");
+        assertEquals("java.lang.Double", counter.getString("{#JMXTYPE}"));
+        assertEquals("1.0E-10", counter.getString("{#JMXVALUE}"));
+        counter = findCounter(counters, TEST_MBEAN_NAME, "CompositeObject.subComposite.subValueTwo");
+        assertEquals("java.lang.String", counter.getString("{#JMXTYPE}"));
+        assertEquals("SubValueTwo", counter.getString("{#JMXVALUE}"));
+        assertEquals(TEST_MBEAN_NAME + ",CompositeObject.subComposite.subValueTwo", counter.getString("{#JMXDESC}"));
+        assertNotNull(findCounter(counters, TEST_MBEAN_NAME, "CompositeObject.valueOne"));
+        // Arrays aren't discovered
+        assertNull(findCounter(counters, TEST_MBEAN_NAME, "LongArray"));
+
+        counter = findCounter(counters, "java.lang:type=Runtime", "SystemProperties[java.vm.name].value");
+        assertEquals(System.getProperty("java.vm.name"), counter.getString("{#JMXVALUE}"));
+        counter = findCounter(counters, "java.lang:type=Threading", "ThreadCount");
+        assertEquals("java.lang.Integer", counter.getString("{#JMXTYPE}"));
+    }
+
+    private JSONObject findCounter(JSONArray counters, String mbean, String attribute) throws JSONException {
+        for (int i = 0; i < counters.length(); i++) {
+            JSONObject counter = counters.getJSONObject(i);
+            if (counter.getString("{#JMXOBJ}").equals(mbean) && counter.getString("{#JMXATTR}").equals(attribute)) {
+                return counter;
+            }
+        }
+        return null;
+    }
+
     @Test
     public void testDiscoveryTooManyArguments() throws JSONException, ZabbixException {
     	JSONObject request = getNewRequestObject();
@@ -305,6 +384,189 @@ public abstract class JMXItemCheckerTestsBase {
         assertFalse(values.getJSONObject(0).get("value").toString().contains("E"));
     }
     
+    @Test
+    public void testTabularDataRowRead() throws JSONException, ZabbixException {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx[java.lang:type=Runtime,\"SystemProperties[java.version]\"]");
+        keys.put("jmx[java.lang:type=Runtime,\"SystemProperties[java.version].value\"]");
+        keys.put("jmx[java.lang:type=Runtime,\"SystemProperties[os.arch].key\"]");
+        // Test a missing row too
+        keys.put("jmx[java.lang:type=Runtime,\"SystemProperties[no.such.property].value\"]");
+        request.put("keys", keys);
+
+        ItemChecker itemChecker = getItemChecker(request);
+        JSONArray values = itemChecker.getValues();
+        assertEquals(System.getProperty("java.version"), values.getJSONObject(0).getString("value"));
+        assertEquals(System.getProperty("java.version"), values.getJSONObject(1).getString("value"));
+        assertEquals("os.arch", values.getJSONObject(2).getString("value"));
+        assertTrue(!values.getJSONObject(3).get("error").toString().isEmpty());
+    }
+
+    @Test
+    public void testEscapedTabularDataRowRead() throws JSONException, ZabbixException {
+        System.setProperty("zabbix.test[a,b]", "escaped");
+        try {
+            JSONObject request = getNewRequestObject();
+            JSONArray keys = new JSONArray();
+            keys.put("jmx[java.lang:type=Runtime,\"SystemProperties[zabbix.test\\[a\\,b\\]].value\"]");
+            keys.put("jmx[java.lang:type=Runtime,\"SystemProperties[zabbix.test\\[a\\,b\\]].key\"]");
+            request.put("keys", keys);
+
+            JSONArray values = getItemChecker(request).getValues();
+            assertEquals("escaped", values.getJSONObject(0).getString("value"));
+            // The key comes back without the escapes
+            assertEquals("zabbix.test[a,b]", values.getJSONObject(1).getString("value"));
+        }
+        finally {
+            System.clearProperty("zabbix.test[a,b]");
+        }
+    }
+
+    @Test
+    public void testAggregateRead() throws JSONException, ZabbixException {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx.count[\"java.lang:type=MemoryPool,name=*\",Usage.used]");
+        keys.put("jmx.sum[\"java.lang:type=MemoryPool,name=*\",Usage.used]");
+        keys.put("jmx.max[\"java.lang:type=MemoryPool,name=*\",Usage.used]");
+        keys.put("jmx.min[\"java.lang:type=MemoryPool,name=*\",Usage.used]");
+        keys.put("jmx.avg[\"java.lang:type=MemoryPool,name=*\",Usage.used]");
+        keys.put("jmx.count[\"java.lang:type=NoSuchType,name=*\",Usage.used]");
+        keys.put("jmx.sum[\"java.lang:type=NoSuchType,name=*\",Usage.used]");
+        // Test a non-numeric attribute and a missing argument too
+        keys.put("jmx.sum[\"java.lang:type=MemoryPool,name=*\",Name]");
+        keys.put("jmx.sum[\"java.lang:type=MemoryPool,name=*\"]");
+        request.put("keys", keys);
+
+        ItemChecker itemChecker = getItemChecker(request);
+        JSONArray values = itemChecker.getValues();
+        assertEquals(String.valueOf(ManagementFactory.getMemoryPoolMXBeans().size()), values.getJSONObject(0).getString("value"));
+        BigDecimal sum = new BigDecimal(values.getJSONObject(1).getString("value"));
+        BigDecimal max = new BigDecimal(values.getJSONObject(2).getString("value"));
+        BigDecimal min = new BigDecimal(values.getJSONObject(3).getString("value"));
+        BigDecimal avg = new BigDecimal(values.getJSONObject(4).getString("value"));
+        assertTrue(sum.signum() > 0);
+        assertTrue(max.compareTo(sum) <= 0);
+        assertTrue(min.compareTo(max) <= 0);
+        assertTrue(avg.compareTo(min) >= 0 && avg.compareTo(max) <= 0);
+        assertEquals("0", values.getJSONObject(5).getString("value"));
+        assertEquals("0", values.getJSONObject(6).getString("value"));
+        assertTrue(!values.getJSONObject(7).get("error").toString().isEmpty());
+        assertTrue(!values.getJSONObject(8).get("error").toString().isEmpty());
+    }
+
+    @Test
+    public void testMultiAttributeJsonRead() throws JSONException, ZabbixException {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx.get[java.lang:type=OperatingSystem,Arch,Name]");
+        keys.put("jmx.get[java.lang:type=Runtime,\"VmVendor,VmName\"]");
+        keys.put("jmx.get[\"java.lang:type=MemoryPool,name=*\",Name,Usage]");
+        keys.put("jmx.get[\"java.lang:type=NoSuchType,name=*\",Name]");
+        keys.put("jmx.get[java.lang:type=OperatingSystem]");
+        request.put("keys", keys);
+
+        ItemChecker itemChecker = getItemChecker(request);
+        JSONArray values = itemChecker.getValues();
+
+        JSONObject os = new JSONObject(values.getJSONObject(0).getString("value"));
+        assertEquals(System.getProperty("os.arch"), os.getString("Arch"));
+        assertEquals(System.getProperty("os.name"), os.getString("Name"));
+        assertEquals(2, os.length());
+
+        JSONObject runtime = new JSONObject(values.getJSONObject(1).getString("value"));
+        assertEquals(System.getProperty("java.vm.vendor"), runtime.getString("VmVendor"));
+        assertEquals(System.getProperty("java.vm.name"), runtime.getString("VmName"));
+
+        JSONObject pools = new JSONObject(values.getJSONObject(2).getString("value"));
+        assertEquals(ManagementFactory.getMemoryPoolMXBeans().size(), pools.length());
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            JSONObject poolValues = pools.getJSONObject(pool.getObjectName().getCanonicalName());
+            assertEquals(pool.getName(), poolValues.getString("Name"));
+            assertTrue(poolValues.getJSONObject("Usage").getLong("used") >= 0);
+        }
+
+        assertEquals(0, new JSONObject(values.getJSONObject(3).getString("value")).length());
+        assertEquals(System.getProperty("os.arch"), new JSONObject(values.getJSONObject(4).getString("value")).getString("Arch"));
+    }
+
+    @Test
+    public void testCounterRates() throws Exception {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx.delta[java.lang:type=OperatingSystem,AvailableProcessors]");
+        keys.put("jmx.rate[java.lang:type=OperatingSystem,AvailableProcessors]");
+        // Test a non-numeric counter too
+        keys.put("jmx.rate[java.lang:type=OperatingSystem,Arch]");
+        request.put("keys", keys);
+
+        // The first sample has nothing to compare with
+        JSONArray values = getItemChecker(request).getValues();
+        assertTrue(values.getJSONObject(0).has("error"));
+        assertTrue(values.getJSONObject(1).has("error"));
+
+        // Samples within a second of the previous one repeat its result
+        Thread.sleep(1100);
+        values = getItemChecker(request).getValues();
+        assertEquals("0", values.getJSONObject(0).getString("value"));
+        assertEquals("0", values.getJSONObject(1).getString("value"));
+        assertTrue(!values.getJSONObject(2).get("error").toString().isEmpty());
+    }
+
+    @Test
+    public void testSampledAttribute() throws Exception {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx.sample[java.lang:type=OperatingSystem,AvailableProcessors,100ms]");
+        keys.put("jmx.sample[java.lang:type=OperatingSystem,AvailableProcessors,100ms,max]");
+        // Test a bad interval and statistic too
+        keys.put("jmx.sample[java.lang:type=OperatingSystem,AvailableProcessors,1ms]");
+        keys.put("jmx.sample[java.lang:type=OperatingSystem,AvailableProcessors,100ms,median]");
+        request.put("keys", keys);
+
+        String processors = String.valueOf(Runtime.getRuntime().availableProcessors());
+
+        // The first poll is answered from the sample taken when sampling starts
+        JSONArray values = getItemChecker(request).getValues();
+        JSONObject summary = new JSONObject(values.getJSONObject(0).getString("value"));
+        assertEquals(1, summary.getInt("count"));
+        assertEquals(processors, summary.get("min").toString());
+        assertEquals(processors, values.getJSONObject(1).getString("value"));
+        assertTrue(!values.getJSONObject(2).get("error").toString().isEmpty());
+        assertTrue(!values.getJSONObject(3).get("error").toString().isEmpty());
+
+        Thread.sleep(500);
+
+        values = getItemChecker(request).getValues();
+        summary = new JSONObject(values.getJSONObject(0).getString("value"));
+        assertTrue(summary.getInt("count") > 1);
+        assertEquals(processors, summary.get("p95").toString());
+        assertEquals(processors, values.getJSONObject(1).getString("value"));
+    }
+
+    @Test
+    public void testCachedValues() throws JSONException, ZabbixException {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx[java.lang:type=Runtime,VmVendor]");
+        keys.put("jmx[java.lang:type=OperatingSystem,Arch]");
+        request.put("keys", keys);
+
+        ItemValueCache.configure("jmx[java.lang:type=Runtime,Vm*]=forever");
+        try {
+            // The first read fills the cache, the second is served from it
+            for (int i = 0; i < 2; i++) {
+                JSONArray values = getItemChecker(request).getValues();
+                assertEquals(System.getProperty("java.vm.vendor"), values.getJSONObject(0).getString("value"));
+                assertEquals(System.getProperty("os.arch"), values.getJSONObject(1).getString("value"));
+            }
+        }
+        finally {
+            ItemValueCache.configure("");
+        }
+    }
+    
     protected static int getFreePort() throws IOException {
     	ServerSocket socket = new ServerSocket(0);
 		int freePort = socket.getLocalPort();
@@ -0,0 +1,83 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxConfigurationSnapshotTest {
+
+    private File _file;
+
+    @Before
+    public void setUp() throws IOException {
+        _file = File.createTempFile("jmx-config", ".json");
+        _file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        _file.delete();
+    }
+
+    private static Map<String, JmxConfiguration> createConfigs() {
+        Map<String, JmxConfiguration> configs = new HashMap<String, JmxConfiguration>();
+        configs.put("myhost:8080", new JmxConfiguration("http", "myhost", 8080, "/jolokia", 30));
+        configs.put("10.0.0.1:9999", new JmxConfiguration("proxy+http", "10.0.0.1", 9999, null, 0, "proxy:8778"));
+        configs.put("10.0.0.2:9999", new JmxConfiguration("10.0.0.2", 9999));
+        return configs;
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        JmxConfigurationSnapshot.save(_file, createConfigs());
+        // Saving again replaces the snapshot
+        JmxConfigurationSnapshot.save(_file, createConfigs());
+        assertFalse(new File(_file.getPath() + ".tmp").exists());
+
+        Map<String, JmxConfiguration> configs = JmxConfigurationSnapshot.load(_file);
+        assertEquals(3, configs.size());
+        JmxConfiguration config = configs.get("myhost:8080");
+        assertEquals("http://myhost:8080/jolokia", config.getUrl());
+        assertEquals(30, config.getTimeout());
+        config = configs.get("10.0.0.1:9999");
+        assertEquals("http://proxy:8778/jolokia", config.getProxyUrl());
+        assertEquals("service:jmx:rmi:///jndi/rmi://10.0.0.1:9999/jmxrmi", config.getTargetUrl());
+        config = configs.get("10.0.0.2:9999");
+        assertEquals(JmxConfiguration.DEFAULT_JMX_PROTOCOL, config.getProtocol());
+        assertEquals(0, config.getTimeout());
+        assertNull(config.getProxy());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidSnapshot() throws IOException {
+        FileWriter writer = new FileWriter(_file);
+        writer.write("{\"version\":1,\"configs\":[{\"key\":");
+        writer.close();
+        JmxConfigurationSnapshot.load(_file);
+    }
+
+    @Test
+    public void testFrontendDown() throws IOException {
+        JmxConfigurationSnapshot.save(_file, createConfigs());
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        // The gateway starts out with the snapshot instead of exiting
+        JmxConfigurationManager manager = new JmxConfigurationManager("http://localhost:" + port,
+            "user", "password", _file);
+        assertEquals("http", manager.getConfig("myhost", 8080).getProtocol());
+
+        assertEquals(-1, manager.refresh());
+        assertEquals("http", manager.getConfig("myhost", 8080).getProtocol());
+    }
+}
@@ -3,6 +3,9 @@ package com.zabbix.gateway;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.InstanceNotFoundException;
@@ -59,6 +62,133 @@ public class JolokiaCheckerTest extends JMXItemCheckerTestsBase {
 		return jolokiaPort;
 	}
 	
+    @Test
+    public void testSubmittedValues() throws Exception {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx[java.lang:type=OperatingSystem,Arch]");
+        keys.put("jmx[java.lang:type=Memory,HeapMemoryUsage.used]");
+        keys.put("jmx[java.lang:type=OperatingSystem,blahblah]");
+        request.put("keys", keys);
+
+        assertFalse(new JolokiaChecker(request, getMockConfig()).submitValues(new SubmittedValues()));
+
+        JolokiaReadExecutor.configure(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                SubmittedValues callback = new SubmittedValues();
+                assertTrue(new JolokiaChecker(request, getMockConfig()).submitValues(callback));
+                assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+
+                assertNull(callback.error);
+                assertEquals(System.getProperty("os.arch"), callback.values.getJSONObject(0).getString("value"));
+                assertTrue(Long.parseLong(callback.values.getJSONObject(1).getString("value")) > 0);
+                assertTrue(callback.values.getJSONObject(2).has("error"));
+            }
+
+            // Failures are reported to the callback
+            JmxConfiguration downConfig = Mockito.mock(JmxConfiguration.class);
+            Mockito.when(downConfig.getUrl()).thenReturn("http://localhost:" + getFreePort() + "/jolokia");
+            SubmittedValues callback = new SubmittedValues();
+            assertTrue(new JolokiaChecker(request, downConfig).submitValues(callback));
+            assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+            assertNotNull(callback.error);
+        }
+        finally {
+            JolokiaReadExecutor.configure(0);
+        }
+    }
+
+    @Test
+    public void testBulkRequestChunks() throws Exception {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx[java.lang:type=OperatingSystem,Arch]");
+        keys.put("jmx[java.lang:type=Memory,HeapMemoryUsage.used]");
+        keys.put("jmx[java.lang:type=OperatingSystem,blahblah]");
+        keys.put("jmx[java.lang:type=Runtime,VmName]");
+        keys.put("jmx[java.lang:type=Threading,ThreadCount]");
+        request.put("keys", keys);
+
+        JolokiaClientRegistry.configure(JolokiaClientRegistry.DEFAULT_KEEP_ALIVE,
+            JolokiaClientRegistry.DEFAULT_MAX_PER_ROUTE, JolokiaClientRegistry.DEFAULT_MAX_TOTAL, 2);
+        JolokiaReadExecutor.configure(1);
+        try {
+            // The values are in the order of the keys whichever chunk they were read in
+            JSONArray values = new JolokiaChecker(request, getMockConfig()).getValues();
+            SubmittedValues callback = new SubmittedValues();
+            assertTrue(new JolokiaChecker(request, getMockConfig()).submitValues(callback));
+            assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+            assertNull(callback.error);
+
+            for (JSONArray result : new JSONArray[] { values, callback.values }) {
+                assertEquals(5, result.length());
+                assertEquals(System.getProperty("os.arch"), result.getJSONObject(0).getString("value"));
+                assertTrue(Long.parseLong(result.getJSONObject(1).getString("value")) > 0);
+                assertTrue(result.getJSONObject(2).has("error"));
+                assertEquals(System.getProperty("java.vm.name"), result.getJSONObject(3).getString("value"));
+                assertTrue(Integer.parseInt(result.getJSONObject(4).getString("value")) > 0);
+            }
+        }
+        finally {
+            JolokiaReadExecutor.configure(0);
+            JolokiaClientRegistry.configure(JolokiaClientRegistry.DEFAULT_KEEP_ALIVE,
+                JolokiaClientRegistry.DEFAULT_MAX_PER_ROUTE, JolokiaClientRegistry.DEFAULT_MAX_TOTAL,
+                JolokiaClientRegistry.DEFAULT_MAX_BULK_REQUESTS);
+        }
+    }
+
+    @Test
+    public void testProxyRequests() throws Exception {
+        JSONObject request = getNewRequestObject();
+        JSONArray keys = new JSONArray();
+        keys.put("jmx[java.lang:type=OperatingSystem,Arch]");
+        request.put("keys", keys);
+
+        // The test agent has no JSR-160 proxy so it reads its own MBeans whatever the target
+        JmxConfiguration config = new JmxConfiguration("proxy+http", "localhost", 9999, null, 0,
+            "localhost:" + jolokiaPort);
+        assertEquals("http://localhost:" + jolokiaPort + "/jolokia", config.getProxyUrl());
+        JolokiaChecker checker = new JolokiaChecker(request, config);
+        assertEquals("service:jmx:rmi:///jndi/rmi://localhost:9999/jmxrmi", checker.getTarget());
+        assertEquals(System.getProperty("os.arch"), checker.getValues().getJSONObject(0).getString("value"));
+
+        try {
+            new JolokiaChecker(request, new JmxConfiguration("proxy+http", "localhost", 9999, null, 0, null));
+            fail("No proxy configured");
+        }
+        catch (ZabbixException e) {
+            assertTrue(e.getMessage().contains(JmxConfigurationManager.MACRO_JMX_PROXY));
+        }
+    }
+
+    @Test
+    public void testSplit() {
+        assertEquals(1, JolokiaChecker.split(Arrays.asList(1, 2, 3), 0).size());
+        assertEquals(1, JolokiaChecker.split(Arrays.asList(1, 2, 3), 3).size());
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)),
+            JolokiaChecker.split(Arrays.asList(1, 2, 3), 2));
+    }
+
+    private static class SubmittedValues implements JolokiaChecker.ValuesCallback {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile JSONArray values;
+        volatile ZabbixException error;
+
+        @Override
+        public void completed(JSONArray values) {
+            this.values = values;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(ZabbixException e) {
+            error = e;
+            done.countDown();
+        }
+    }
+
     @Test
     public void testOperationInline() throws JSONException, ZabbixException {
         JSONObject request = getNewRequestObject();
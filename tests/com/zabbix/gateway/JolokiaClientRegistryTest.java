@@ -0,0 +1,51 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import org.jolokia.client.J4pClient;
+import org.junit.Test;
+
+public class JolokiaClientRegistryTest {
+
+    private static final String URL = "http://localhost:8778/jolokia/";
+
+    @Test
+    public void testClientsShared() {
+        JolokiaClientRegistry registry = new JolokiaClientRegistry(JolokiaClientRegistry.DEFAULT_KEEP_ALIVE,
+            JolokiaClientRegistry.DEFAULT_MAX_PER_ROUTE, JolokiaClientRegistry.DEFAULT_MAX_TOTAL,
+            JolokiaClientRegistry.DEFAULT_MAX_BULK_REQUESTS);
+        try {
+            J4pClient client = registry.getClient(URL, "user", "secret");
+            assertSame(client, registry.getClient(URL, "user", "secret"));
+            // Other credentials get a client of their own
+            assertNotSame(client, registry.getClient(URL, "user", "other"));
+            assertNotSame(client, registry.getClient(URL, null, null));
+            assertEquals(3, registry.getClientCount());
+        }
+        finally {
+            registry.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleClientsEvicted() {
+        JolokiaClientRegistry registry = new JolokiaClientRegistry(JolokiaClientRegistry.DEFAULT_KEEP_ALIVE,
+            JolokiaClientRegistry.DEFAULT_MAX_PER_ROUTE, JolokiaClientRegistry.DEFAULT_MAX_TOTAL,
+            JolokiaClientRegistry.DEFAULT_MAX_BULK_REQUESTS);
+        try {
+            J4pClient client = registry.getClient(URL, "user", "secret");
+            long now = System.currentTimeMillis();
+
+            registry.evictIdleClients(now);
+            assertEquals(1, registry.getClientCount());
+
+            registry.evictIdleClients(now + JolokiaClientRegistry.CLIENT_IDLE_TIMEOUT + 1000);
+            assertEquals(0, registry.getClientCount());
+            // A new client is created once it's used again
+            assertNotSame(client, registry.getClient(URL, "user", "secret"));
+        }
+        finally {
+            registry.shutdown();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class JolokiaCompressionTest {
+
+    private static final String TARGET = "http://localhost:8778/jolokia";
+    private static final String CONTENT = "[{\"value\":\"x86_64\",\"status\":200},{\"value\":\"x86_64\",\"status\":200}]";
+
+    @Test
+    public void testThreshold() {
+        JolokiaCompression compression = new JolokiaCompression(1000);
+        // Nothing is known about the target yet
+        assertFalse(compression.isRequested(TARGET));
+
+        compression.record(TARGET, 999);
+        assertFalse(compression.isRequested(TARGET));
+        compression.record(TARGET, 1000);
+        assertTrue(compression.isRequested(TARGET));
+        assertFalse(compression.isRequested("http://localhost:8779/jolokia"));
+
+        JolokiaCompression disabled = new JolokiaCompression(0);
+        disabled.record(TARGET, 100000);
+        assertFalse(disabled.isRequested(TARGET));
+    }
+
+    @Test
+    public void testDecode() throws IOException {
+        JolokiaCompression compression = new JolokiaCompression(1);
+        byte[] plain = CONTENT.getBytes("UTF-8");
+
+        assertEquals(CONTENT, read(compression.decode(new ByteArrayInputStream(plain), null)));
+        assertEquals(CONTENT, read(compression.decode(new ByteArrayInputStream(plain), "identity")));
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        write(new GZIPOutputStream(gzip), plain);
+        JolokiaCompression.CountingInputStream decoded = compression.decode(
+            new ByteArrayInputStream(gzip.toByteArray()), "gzip");
+        assertEquals(CONTENT, read(decoded));
+        assertEquals(plain.length, decoded.getCount());
+
+        ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        write(new DeflaterOutputStream(deflate), plain);
+        assertEquals(CONTENT, read(compression.decode(new ByteArrayInputStream(deflate.toByteArray()), "deflate")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedEncoding() throws IOException {
+        new JolokiaCompression(1).decode(new ByteArrayInputStream(new byte[0]), "br");
+    }
+
+    private static void write(OutputStream out, byte[] content) throws IOException {
+        out.write(content);
+        out.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
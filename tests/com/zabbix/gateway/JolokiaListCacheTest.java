@@ -0,0 +1,48 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+public class JolokiaListCacheTest {
+
+    private static final String TARGET = "http://localhost:8778/jolokia";
+    private static final String LIST = "{\"java.lang\":{\"type=Threading\":{\"desc\":\"Information on the management interface of the MBean\","
+        + "\"attr\":{\"ThreadCount\":{\"desc\":\"ThreadCount\",\"type\":\"int\",\"rw\":false}},"
+        + "\"op\":{\"dumpAllThreads\":{\"args\":[],\"ret\":\"[Ljavax.management.openmbean.CompositeData;\",\"desc\":\"dumpAllThreads\"}}},"
+        + "\"type=Compilation\":{\"desc\":\"Information on the management interface of the MBean\"}}}";
+
+    @Test
+    public void testParse() {
+        List<JolokiaListCache.ListedMBean> mbeans = JolokiaListCache.parse((Map<?, ?>) JSONValue.parse(LIST));
+        assertEquals(2, mbeans.size());
+
+        JolokiaListCache.ListedMBean threading = mbeans.get(0).name.equals("java.lang:type=Threading") ? mbeans.get(0) : mbeans.get(1);
+        assertEquals("java.lang:type=Threading", threading.name);
+        assertEquals(1, threading.attributes.size());
+        assertEquals("ThreadCount", threading.attributes.get(0).name);
+        assertEquals("int", threading.attributes.get(0).type);
+        assertEquals("ThreadCount", threading.attributes.get(0).description);
+    }
+
+    @Test
+    public void testCaching() {
+        List<JolokiaListCache.ListedMBean> mbeans = Collections.emptyList();
+
+        JolokiaListCache cache = new JolokiaListCache(600);
+        assertNull(cache.get(TARGET));
+        cache.put(TARGET, mbeans);
+        assertSame(mbeans, cache.get(TARGET));
+        assertNull(cache.get("http://localhost:8779/jolokia"));
+
+        // Nothing is cached without a TTL
+        JolokiaListCache disabled = new JolokiaListCache(0);
+        disabled.put(TARGET, mbeans);
+        assertNull(disabled.get(TARGET));
+    }
+}
@@ -0,0 +1,235 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jolokia.client.exception.J4pException;
+import org.jolokia.client.request.J4pReadRequest;
+import org.jolokia.client.request.J4pRequest;
+import org.junit.Test;
+
+public class JolokiaProxyBatcherTest {
+
+    private static final String PROXY = "http://proxy:8778/jolokia/";
+
+    // Answers each request with its object name, the bulk requests wait to be released
+    private static class EchoSender implements JolokiaProxyBatcher.Sender {
+
+        final String target;
+        final long timeout;
+        final CountDownLatch started;
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Long> timeouts = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Collection<String>> targets = Collections.synchronizedList(new ArrayList<Collection<String>>());
+        volatile boolean fail;
+
+        EchoSender() {
+            this("host", 1000, 1);
+        }
+
+        EchoSender(String target, long timeout, int started) {
+            this.target = target;
+            this.timeout = timeout;
+            this.started = new CountDownLatch(started);
+        }
+
+        @Override
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public long getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public List<Object> send(List<J4pRequest> requests, List<JolokiaResponseParser.Mode> modes, long timeout,
+                Collection<String> targets) throws J4pException {
+            sizes.add(requests.size());
+            timeouts.add(timeout);
+            this.targets.add(targets);
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                throw new J4pException("Interrupted", e);
+            }
+            if (fail) {
+                throw new J4pException("Proxy down");
+            }
+
+            List<Object> results = new ArrayList<Object>();
+            for (J4pRequest request : requests) {
+                results.add(((J4pReadRequest) request).getObjectName().getKeyProperty("name"));
+            }
+            return results;
+        }
+    }
+
+    private static List<J4pRequest> requests(String... names) throws Exception {
+        List<J4pRequest> requests = new ArrayList<J4pRequest>();
+        for (String name : names) {
+            requests.add(new J4pReadRequest("test:name=" + name, "Value"));
+        }
+        return requests;
+    }
+
+    private static List<JolokiaResponseParser.Mode> modes(int count) {
+        return Collections.nCopies(count, JolokiaResponseParser.Mode.TEXT);
+    }
+
+    private static Future<List<Object>> submit(ExecutorService executor, final JolokiaProxyBatcher batcher,
+            final EchoSender sender, final List<J4pRequest> requests) {
+        return executor.submit(new Callable<List<Object>>() {
+
+            @Override
+            public List<Object> call() throws Exception {
+                return batcher.execute(PROXY, requests, modes(requests.size()), sender);
+            }
+        });
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            JolokiaProxyBatcher batcher = new JolokiaProxyBatcher(1);
+            EchoSender sender = new EchoSender();
+            Future<List<Object>> first = submit(executor, batcher, sender, requests("a"));
+            assertTrue(sender.started.await(10, TimeUnit.SECONDS));
+
+            // Queued while the first bulk request is in flight and then sent together
+            Future<List<Object>> second = submit(executor, batcher, sender, requests("b", "c"));
+            Future<List<Object>> third = submit(executor, batcher, sender, requests("d"));
+            Thread.sleep(200);
+            sender.release.countDown();
+
+            assertEquals(Arrays.<Object>asList("a"), first.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.<Object>asList("b", "c"), second.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.<Object>asList("d"), third.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(1, 3), sender.sizes);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBatchesInFlight() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            JolokiaProxyBatcher batcher = new JolokiaProxyBatcher(2);
+            EchoSender sender = new EchoSender("host", 1000, 2);
+            Future<List<Object>> first = submit(executor, batcher, sender, requests("a"));
+            Future<List<Object>> second = submit(executor, batcher, sender, requests("b"));
+            // Both are sent without waiting on the other
+            assertTrue(sender.started.await(10, TimeUnit.SECONDS));
+
+            Future<List<Object>> third = submit(executor, batcher, sender, requests("c"));
+            Future<List<Object>> fourth = submit(executor, batcher, sender, requests("d"));
+            Thread.sleep(200);
+            sender.release.countDown();
+
+            assertEquals(Arrays.<Object>asList("a"), first.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.<Object>asList("b"), second.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.<Object>asList("c"), third.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.<Object>asList("d"), fourth.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(1, 1, 2), sender.sizes);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBatchTimeoutAndTargets() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            JolokiaProxyBatcher batcher = new JolokiaProxyBatcher(1);
+            EchoSender first = new EchoSender("first", 1000, 1);
+            EchoSender slow = new EchoSender("slow", 5000, 1);
+            EchoSender fast = new EchoSender("fast", 500, 1);
+            first.release.countDown();
+            fast.release.countDown();
+            slow.release.countDown();
+
+            EchoSender blocker = new EchoSender("blocker", 1000, 1);
+            Future<List<Object>> blocked = submit(executor, batcher, blocker, requests("a"));
+            assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+            Future<List<Object>> queuedFast = submit(executor, batcher, fast, requests("b"));
+            Thread.sleep(100);
+            Future<List<Object>> queuedSlow = submit(executor, batcher, slow, requests("c"));
+            Thread.sleep(200);
+            blocker.release.countDown();
+
+            assertEquals(Arrays.<Object>asList("a"), blocked.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.<Object>asList("b"), queuedFast.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.<Object>asList("c"), queuedSlow.get(10, TimeUnit.SECONDS));
+
+            // Sent by the first one queued but waited on as long as the slowest host is
+            assertEquals(Arrays.asList(2), fast.sizes);
+            assertEquals(Arrays.asList(5000L), fast.timeouts);
+            assertEquals(Arrays.asList("fast", "slow"), new ArrayList<String>(fast.targets.get(0)));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            JolokiaProxyBatcher batcher = new JolokiaProxyBatcher(1);
+            EchoSender sender = new EchoSender();
+            Future<List<Object>> first = submit(executor, batcher, sender, requests("a"));
+            assertTrue(sender.started.await(10, TimeUnit.SECONDS));
+            Future<List<Object>> second = submit(executor, batcher, sender, requests("b", "c"));
+            Future<List<Object>> third = submit(executor, batcher, sender, requests("d"));
+            Thread.sleep(200);
+            sender.fail = true;
+            sender.release.countDown();
+
+            // The bulk request of a single host fails as a whole
+            try {
+                first.get(10, TimeUnit.SECONDS);
+                fail("The bulk request failed");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof J4pException);
+            }
+
+            // While each request batched with those of other hosts gets its own failure
+            List<Object> results = new ArrayList<Object>(second.get(10, TimeUnit.SECONDS));
+            results.addAll(third.get(10, TimeUnit.SECONDS));
+            assertEquals(3, results.size());
+            for (Object result : results) {
+                assertTrue(result instanceof J4pException);
+                assertTrue(((J4pException) result).getMessage().contains("Proxy down"));
+            }
+            assertNotSame(results.get(0), results.get(1));
+
+            // The proxy is sent to again once it's back
+            sender.fail = false;
+            assertEquals(Arrays.<Object>asList("e"), batcher.execute(PROXY, requests("e"), modes(1), sender));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jolokia.client.exception.J4pRemoteException;
+import org.jolokia.client.request.J4pReadRequest;
+import org.jolokia.client.request.J4pReadResponse;
+import org.jolokia.client.request.J4pRequest;
+import org.jolokia.client.request.J4pRequestHandler;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class JolokiaResponseParserTest {
+
+    private static final String REQUEST = "\"request\":{\"mbean\":\"java.lang:type=Runtime\",\"attribute\":\"Uptime\",\"type\":\"read\"}";
+
+    private List<Object> parse(String json, JolokiaResponseParser.Mode... modes) throws Exception {
+        J4pRequest[] requests = new J4pRequest[modes.length];
+        for (int i = 0; i < modes.length; i++) {
+            requests[i] = new J4pReadRequest("java.lang:type=Runtime", "Uptime");
+        }
+        JolokiaResponseParser parser = new JolokiaResponseParser(new J4pRequestHandler("http://localhost:8778/jolokia/", null),
+            Arrays.asList(requests), Arrays.asList(modes));
+        new JSONParser().parse(json, parser);
+        return parser.getResults();
+    }
+
+    @Test
+    public void testText() throws Exception {
+        List<Object> results = parse("[{" + REQUEST + ",\"value\":12345,\"timestamp\":1,\"status\":200},"
+            + "{" + REQUEST + ",\"value\":1.0E10,\"status\":200},"
+            + "{\"value\":null,\"status\":200},"
+            + "{\"value\":[1,\"two\",null],\"status\":200},"
+            + "{\"value\":[],\"status\":200},"
+            + "{\"value\":[{\"a\":[1,2]},[3]],\"status\":200},"
+            + "{\"value\":{\"a\":\"x\\\"y\",\"b\":{\"c\":[true,false]}},\"status\":200}]",
+            JolokiaResponseParser.Mode.TEXT, JolokiaResponseParser.Mode.TEXT, JolokiaResponseParser.Mode.TEXT,
+            JolokiaResponseParser.Mode.TEXT, JolokiaResponseParser.Mode.TEXT, JolokiaResponseParser.Mode.TEXT,
+            JolokiaResponseParser.Mode.TEXT);
+
+        assertEquals("12345", results.get(0));
+        assertEquals("10000000000", results.get(1));
+        assertEquals("", results.get(2));
+        assertEquals("1\ntwo\nnull", results.get(3));
+        assertEquals("", results.get(4));
+        assertEquals("{\"a\":[1,2]}\n[3]", results.get(5));
+        assertEquals("{\"a\":\"x\\\"y\",\"b\":{\"c\":[true,false]}}", results.get(6));
+    }
+
+    @Test
+    public void testMembers() throws Exception {
+        List<Object> results = parse("[{\"value\":{\"Uptime\":42,\"Names\":[\"a\",\"b\"],\"Usage\":{\"used\":1}},\"status\":200}]",
+            JolokiaResponseParser.Mode.MEMBERS);
+
+        Map<?, ?> members = (Map<?, ?>) results.get(0);
+        assertEquals("42", members.get("Uptime"));
+        assertEquals("a\nb", members.get("Names"));
+        assertEquals("{\"used\":1}", members.get("Usage"));
+    }
+
+    @Test
+    public void testTreeAndErrors() throws Exception {
+        List<Object> results = parse("[{" + REQUEST + ",\"value\":{\"used\":1},\"status\":200},"
+            + "{\"error_type\":\"javax.management.AttributeNotFoundException\",\"error\":\"No such attribute\",\"status\":404},"
+            + "{\"stacktrace\":\"trace\",\"error\":\"Failed\",\"status\":500}]",
+            JolokiaResponseParser.Mode.TREE, JolokiaResponseParser.Mode.TEXT, JolokiaResponseParser.Mode.TREE);
+
+        assertEquals(1L, ((Map<?, ?>) ((J4pReadResponse) results.get(0)).getValue()).get("used"));
+        J4pRemoteException error = (J4pRemoteException) results.get(1);
+        assertEquals("No such attribute", error.getMessage());
+        assertEquals("javax.management.AttributeNotFoundException", error.getErrorType());
+        assertEquals(404, error.getStatus());
+        assertEquals("trace", ((J4pRemoteException) results.get(2)).getRemoteStackTrace());
+    }
+
+    @Test
+    public void testBulkError() throws Exception {
+        J4pRequest request = new J4pReadRequest("java.lang:type=Runtime", "Uptime");
+        JolokiaResponseParser parser = new JolokiaResponseParser(new J4pRequestHandler("http://localhost:8778/jolokia/", null),
+            Arrays.asList(request), Arrays.asList(JolokiaResponseParser.Mode.TEXT));
+        new JSONParser().parse("{\"error\":\"Invalid request\",\"status\":400}", parser);
+
+        assertTrue(parser.getResults().isEmpty());
+        assertEquals(400, parser.getBulkError().getStatus());
+    }
+}
@@ -0,0 +1,187 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mockito;
+
+public class PrefetchSchedulerTest {
+
+    private static final long INTERVAL = 30000;
+    private static final long FRESHNESS = 10000;
+
+    private ScheduledExecutorService _executor;
+    private ItemCheckerFactory _checkerFactory;
+    private JSONArray _values;
+
+    @Before
+    public void setUp() throws Exception {
+        _executor = Mockito.mock(ScheduledExecutorService.class);
+        _checkerFactory = Mockito.mock(ItemCheckerFactory.class);
+        _values = new JSONArray().put(new JSONObject().put("value", "Oracle Corporation"));
+
+        ItemChecker checker = Mockito.mock(ItemChecker.class);
+        Mockito.when(checker.getValues()).thenReturn(_values);
+        Mockito.when(_checkerFactory.createChecker(any(JSONObject.class))).thenReturn(checker);
+    }
+
+    @Test
+    public void testIntervalLearned() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(_checkerFactory, FRESHNESS, _executor);
+        long now = System.currentTimeMillis();
+
+        // Nothing is scheduled until the interval is known
+        assertNull(scheduler.poll(newRequest("user", "secret"), now - INTERVAL));
+        Mockito.verify(_executor, Mockito.never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        assertNull(scheduler.poll(newRequest("user", "secret"), now));
+        Mockito.verify(_executor).schedule(any(Runnable.class), eq(INTERVAL - 2000), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPrefetchedValuesServed() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(_checkerFactory, FRESHNESS, _executor);
+        long now = System.currentTimeMillis();
+
+        scheduler.poll(newRequest("user", "secret"), now - INTERVAL);
+        scheduler.poll(newRequest("user", "secret"), now);
+        ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(_executor).schedule(refresh.capture(), anyLong(), any(TimeUnit.class));
+        refresh.getValue().run();
+
+        // The prefetched values are only served for the same credentials
+        assertNull(scheduler.poll(newRequest("user", "other"), System.currentTimeMillis()));
+        assertSame(_values, scheduler.poll(newRequest("user", "secret"), System.currentTimeMillis()));
+        // and only answer a single poll
+        assertNull(scheduler.poll(newRequest("user", "secret"), System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testStaleValuesNotServed() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(_checkerFactory, FRESHNESS, _executor);
+        long now = System.currentTimeMillis();
+
+        scheduler.poll(newRequest(null, null), now - INTERVAL);
+        scheduler.poll(newRequest(null, null), now);
+        ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(_executor).schedule(refresh.capture(), anyLong(), any(TimeUnit.class));
+        refresh.getValue().run();
+
+        assertNull(scheduler.poll(newRequest(null, null), System.currentTimeMillis() + FRESHNESS + 1));
+    }
+
+    @Test
+    public void testIdlePatternsEvicted() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(_checkerFactory, FRESHNESS, _executor);
+        long now = System.currentTimeMillis();
+
+        // A scheduled pattern, a pattern polled too frequently and one polled only once
+        scheduler.poll(newRequest(null, null), now - INTERVAL);
+        scheduler.poll(newRequest(null, null), now);
+        scheduler.poll(newRequest("user", "secret"), now - 1000);
+        scheduler.poll(newRequest("user", "secret"), now);
+        scheduler.poll(newRequest("other", "secret"), now);
+        assertEquals(3, scheduler.getPatternCount());
+
+        scheduler.evictIdle(now + INTERVAL);
+        assertEquals(3, scheduler.getPatternCount());
+
+        // The scheduled pattern missed its polls
+        scheduler.evictIdle(now + INTERVAL * 3 + 1);
+        assertEquals(2, scheduler.getPatternCount());
+
+        scheduler.evictIdle(now + TimeUnit.MINUTES.toMillis(10) + 1);
+        assertEquals(0, scheduler.getPatternCount());
+    }
+
+    @Test
+    public void testLeadWithinFreshness() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(_checkerFactory, 1000, _executor);
+        long now = System.currentTimeMillis();
+
+        scheduler.poll(newRequest(null, null), now - INTERVAL);
+        scheduler.poll(newRequest(null, null), now);
+        Mockito.verify(_executor).schedule(any(Runnable.class), eq(INTERVAL - 500), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testStatefulKeysReadLive() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(_checkerFactory, FRESHNESS, _executor);
+        long now = System.currentTimeMillis();
+
+        JSONObject request = newRequest(null, null);
+        request.put(ItemChecker.JSON_TAG_KEYS, new JSONArray()
+            .put("jmx.rate[java.lang:type=ClassLoading,TotalLoadedClassCount]")
+            .put("jmx[java.lang:type=Runtime,VmVendor]")
+            .put("jmx.gc.pause[max]"));
+        ItemChecker statefulChecker = Mockito.mock(ItemChecker.class);
+        Mockito.when(statefulChecker.getValues()).thenReturn(new JSONArray()
+            .put(new JSONObject().put("value", "1.5"))
+            .put(new JSONObject().put("value", "20")));
+        Mockito.when(_checkerFactory.createChecker(Mockito.argThat(new HasKeys(2)))).thenReturn(statefulChecker);
+
+        scheduler.poll(request, now - INTERVAL);
+        scheduler.poll(request, now);
+        ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(_executor).schedule(refresh.capture(), anyLong(), any(TimeUnit.class));
+        refresh.getValue().run();
+
+        // Only the stateless key is prefetched
+        ArgumentCaptor<JSONObject> prefetched = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.verify(_checkerFactory).createChecker(prefetched.capture());
+        assertEquals("[\"jmx[java.lang:type=Runtime,VmVendor]\"]",
+            prefetched.getValue().getJSONArray(ItemChecker.JSON_TAG_KEYS).toString());
+
+        // The others are read live and put back in the order of the keys
+        JSONArray values = scheduler.poll(request, System.currentTimeMillis());
+        assertEquals(3, values.length());
+        assertEquals("1.5", values.getJSONObject(0).getString("value"));
+        assertEquals("Oracle Corporation", values.getJSONObject(1).getString("value"));
+        assertEquals("20", values.getJSONObject(2).getString("value"));
+
+        // A key set of only stateful keys isn't learned
+        request.put(ItemChecker.JSON_TAG_KEYS, new JSONArray().put("jmx.sample[java.lang:type=Memory,HeapMemoryUsage.used]"));
+        int patterns = scheduler.getPatternCount();
+        assertNull(scheduler.poll(request, now));
+        assertEquals(patterns, scheduler.getPatternCount());
+    }
+
+    private static class HasKeys extends ArgumentMatcher<JSONObject> {
+
+        private final int _count;
+
+        HasKeys(int count) {
+            _count = count;
+        }
+
+        @Override
+        public boolean matches(Object argument) {
+            JSONArray keys = argument != null ? ((JSONObject) argument).optJSONArray(ItemChecker.JSON_TAG_KEYS) : null;
+            return keys != null && keys.length() == _count;
+        }
+    }
+
+    private static JSONObject newRequest(String username, String password) throws Exception {
+        JSONObject request = new JSONObject();
+        request.put(ItemChecker.JSON_TAG_REQUEST, ItemChecker.JSON_REQUEST_JMX);
+        request.put(ItemChecker.JSON_TAG_CONN, "localhost");
+        request.put(ItemChecker.JSON_TAG_PORT, 12345);
+        if (username != null) {
+            request.put(ItemChecker.JSON_TAG_USERNAME, username);
+            request.put(ItemChecker.JSON_TAG_PASSWORD, password);
+        }
+        request.put(ItemChecker.JSON_TAG_KEYS, new JSONArray().put("jmx[java.lang:type=Runtime,VmVendor]"));
+        return request;
+    }
+}
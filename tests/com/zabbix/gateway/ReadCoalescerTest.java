@@ -0,0 +1,63 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ReadCoalescerTest {
+
+    private static final String TARGET = "http://localhost:8778/jolokia/";
+    private static final String KEY = "jmx[java.lang:type=Runtime,VmVendor]";
+
+    @Test
+    public void testFollowerSharesLeaderValue() throws Exception {
+        ReadCoalescer coalescer = new ReadCoalescer();
+        ReadCoalescer.Flight leader = coalescer.begin(TARGET, null, null, KEY);
+        ReadCoalescer.Flight follower = coalescer.begin(TARGET, null, null, KEY);
+
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+
+        leader.complete("Oracle Corporation");
+        assertEquals("Oracle Corporation", follower.await());
+    }
+
+    @Test
+    public void testFollowerSharesLeaderFailure() throws Exception {
+        ReadCoalescer coalescer = new ReadCoalescer();
+        ReadCoalescer.Flight leader = coalescer.begin(TARGET, null, null, KEY);
+        ReadCoalescer.Flight follower = coalescer.begin(TARGET, null, null, KEY);
+
+        leader.fail(new ZabbixException("attribute not found"));
+        try {
+            follower.await();
+            fail("ZabbixException expected because the leader's read failed");
+        }
+        catch (ZabbixException expected) {
+            assertEquals("attribute not found", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testFinishedReadIsNotShared() {
+        ReadCoalescer coalescer = new ReadCoalescer();
+        coalescer.begin(TARGET, null, null, KEY).complete("1");
+
+        // Only reads that are in flight are shared
+        assertTrue(coalescer.begin(TARGET, null, null, KEY).isLeader());
+        // Different targets and keys are never shared
+        assertTrue(coalescer.begin("http://otherhost:8778/jolokia/", null, null, KEY).isLeader());
+        assertTrue(coalescer.begin(TARGET, null, null, "jmx[java.lang:type=Runtime,Uptime]").isLeader());
+    }
+
+    @Test
+    public void testReadsNotSharedAcrossCredentials() {
+        ReadCoalescer coalescer = new ReadCoalescer();
+        assertTrue(coalescer.begin(TARGET, "monitor", "secret", KEY).isLeader());
+
+        assertFalse(coalescer.begin(TARGET, "monitor", "secret", KEY).isLeader());
+        assertTrue(coalescer.begin(TARGET, "monitor", "guess", KEY).isLeader());
+        assertTrue(coalescer.begin(TARGET, "admin", "secret", KEY).isLeader());
+        assertTrue(coalescer.begin(TARGET, null, null, KEY).isLeader());
+    }
+}
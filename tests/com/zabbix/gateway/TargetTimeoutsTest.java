@@ -0,0 +1,52 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TargetTimeoutsTest {
+
+    private static final String TARGET = "http://localhost:8778/jolokia";
+
+    @Test
+    public void testDefaultTimeout() {
+        TargetTimeouts timeouts = new TargetTimeouts(10, 0, 1000);
+        for (int i = 0; i < 100; i++) {
+            timeouts.record(TARGET, 5);
+        }
+
+        // Without the adaptive mode only the macro overrides the default
+        assertEquals(10000, timeouts.getTimeout(TARGET, null));
+        assertEquals(10000, timeouts.getTimeout(TARGET, new JmxConfiguration("http", "localhost", 8778, "/jolokia")));
+        assertEquals(30000, timeouts.getTimeout(TARGET, new JmxConfiguration("http", "localhost", 8778, "/jolokia", 30)));
+    }
+
+    @Test
+    public void testAdaptiveTimeout() {
+        TargetTimeouts timeouts = new TargetTimeouts(10, 3, 100);
+        for (int i = 0; i < 19; i++) {
+            timeouts.record(TARGET, 50);
+        }
+        // Not enough latencies yet
+        assertEquals(10000, timeouts.getTimeout(TARGET, null));
+
+        timeouts.record(TARGET, 200);
+        assertEquals(600, timeouts.getTimeout(TARGET, null));
+
+        // Bounded by the floor
+        for (int i = 0; i < 128; i++) {
+            timeouts.record(TARGET, 10);
+        }
+        assertEquals(100, timeouts.getTimeout(TARGET, null));
+
+        // Bounded by the host's timeout
+        for (int i = 0; i < 128; i++) {
+            timeouts.record(TARGET, 5000);
+        }
+        assertEquals(10000, timeouts.getTimeout(TARGET, null));
+        assertEquals(2000, timeouts.getTimeout(TARGET, new JmxConfiguration("http", "localhost", 8778, "/jolokia", 2)));
+
+        // Other targets keep the default
+        assertEquals(10000, timeouts.getTimeout("http://localhost:8779/jolokia", null));
+    }
+}
@@ -0,0 +1,45 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ValueAggregatorTest {
+
+    @Test
+    public void testAggregates() throws ZabbixException {
+        assertEquals("6", aggregate("jmx.sum", "1", "2", "3"));
+        assertEquals("2", aggregate("jmx.avg", "1", "2", "3"));
+        assertEquals("1", aggregate("jmx.min", "1", "2", "3"));
+        assertEquals("3", aggregate("jmx.max", "1", "2", "3"));
+        assertEquals("3", aggregate("jmx.count", "1", "2", "3"));
+    }
+
+    @Test
+    public void testNonFiniteValuesLeftOut() throws ZabbixException {
+        assertEquals("3", aggregate("jmx.sum", "1", "NaN", "2", "Infinity"));
+        assertEquals("1.5", aggregate("jmx.avg", "1", "NaN", "2", "-Infinity"));
+        assertEquals("1", aggregate("jmx.min", "NaN", "1", "2"));
+        assertEquals("2", aggregate("jmx.max", "1", "2", "Infinity"));
+        assertEquals("4", aggregate("jmx.count", "1", "NaN", "2", "Infinity"));
+        assertEquals("0", aggregate("jmx.sum", "NaN"));
+    }
+
+    @Test(expected = ZabbixException.class)
+    public void testOnlyNonFiniteValues() throws ZabbixException {
+        aggregate("jmx.avg", "NaN", "Infinity");
+    }
+
+    @Test(expected = ZabbixException.class)
+    public void testNonNumericValue() throws ZabbixException {
+        aggregate("jmx.sum", "1", "abc");
+    }
+
+    private static String aggregate(String keyId, String... values) throws ZabbixException {
+        ValueAggregator aggregator = new ValueAggregator(keyId);
+        for (String value : values) {
+            aggregator.add(value);
+        }
+        return aggregator.getResult();
+    }
+}
@@ -0,0 +1,349 @@
+package com.zabbix.gateway;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ZabbixApiTest {
+
+    private static final String HOSTS = "[{\"hostid\":\"10\",\"parentTemplates\":[{\"templateid\":\"20\"},{\"templateid\":\"21\"}]}]";
+    private static final String INTERFACES = "["
+        + "{\"hostid\":\"10\",\"ip\":\"10.0.0.1\",\"dns\":\"myhost\",\"port\":\"9999\",\"type\":\"4\"},"
+        + "{\"hostid\":\"11\",\"ip\":\"\",\"dns\":\"otherhost\",\"port\":\"8080\",\"type\":\"4\"}]";
+    private static final String MACROS = "["
+        + "{\"hostid\":\"21\",\"macro\":\"{$JMX_PROTOCOL}\",\"value\":\"https\"},"
+        + "{\"hostid\":\"20\",\"macro\":\"{$JMX_PROTOCOL}\",\"value\":\"http\"},"
+        + "{\"hostid\":\"21\",\"macro\":\"{$JMX_ENDPOINT}\",\"value\":\"/jolokia\"},"
+        + "{\"hostid\":\"10\",\"macro\":\"{$JMX_TIMEOUT}\",\"value\":\"30\"},"
+        + "{\"hostid\":\"99\",\"macro\":\"{$JMX_ENDPOINT}\",\"value\":\"/other\"}]";
+
+    private HttpServer _server;
+    private final List<String> _calls = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean _batches = true;
+    private volatile boolean _batchFailure;
+    private volatile long _delay;
+    private volatile String _session;
+    private final AtomicInteger _logins = new AtomicInteger();
+
+    // Answers like the frontend, batches are rejected unless supported
+    private class Frontend implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int read; (read = in.read(buffer)) > 0;) {
+                body.write(buffer, 0, read);
+            }
+            String request = body.toString("UTF-8");
+            _calls.add(request);
+            try {
+                Thread.sleep(_delay);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            String response;
+            try {
+                if (request.startsWith("[")) {
+                    if (!_batches) {
+                        response = "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":-32600,\"message\":\"Invalid Request.\"},\"id\":null}";
+                    }
+                    else if (_batchFailure) {
+                        _batchFailure = false;
+                        response = "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":-32500,\"message\":\"Application error.\"},\"id\":null}";
+                    }
+                    else {
+                        JSONArray batch = new JSONArray(request);
+                        StringBuilder responses = new StringBuilder("[");
+                        // Answered out of order, the ids tell them apart
+                        for (int i = batch.length() - 1; i >= 0; i--) {
+                            responses.append(respond(batch.getJSONObject(i))).append(i > 0 ? "," : "]");
+                        }
+                        response = responses.toString();
+                    }
+                }
+                else {
+                    response = respond(new JSONObject(request));
+                }
+            }
+            catch (Exception e) {
+                throw new IOException(e);
+            }
+
+            byte[] bytes = response.getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+
+        private String respond(JSONObject call) throws Exception {
+            String method = call.getString(ZabbixApi.METHOD);
+            String result;
+            if (method.equals(ZabbixApi.CALL_AUTHENTICATE)) {
+                _session = "authkey" + _logins.incrementAndGet();
+                result = "\"" + _session + "\"";
+            }
+            else if (!call.optString(ZabbixApi.AUTH).equals(_session)) {
+                return "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":-32602,\"message\":\"Invalid params.\","
+                    + "\"data\":\"Session terminated, re-login, please.\"},\"id\":" + call.get(ZabbixApi.ID) + "}";
+            }
+            else if (method.equals(ZabbixApi.CALL_INTERFACE_GET)) {
+                result = INTERFACES;
+            }
+            else if (method.equals(ZabbixApi.CALL_HOST_GET)
+                    && call.getJSONObject(ZabbixApi.PARAMS).has(ZabbixApi.HOST_IDS)) {
+                result = "[" + new JSONArray(HOSTS).getJSONObject(0)
+                    + ",{\"hostid\":\"11\",\"parentTemplates\":[]}]";
+            }
+            else if (method.equals(ZabbixApi.CALL_HOST_GET)) {
+                JSONObject params = call.getJSONObject(ZabbixApi.PARAMS);
+                boolean byIp = params.getJSONObject(ZabbixApi.FILTER).has(ZabbixApi.IP);
+                JSONArray hosts = new JSONArray(byIp ? "[]" : HOSTS);
+                if (params.has(ZabbixApi.SELECT_MACROS)) {
+                    for (int i = 0; i < hosts.length(); i++) {
+                        JSONObject host = hosts.getJSONObject(i);
+                        host.put(ZabbixApi.MACROS, getMacros(new JSONArray().put(host.getString(ZabbixApi.HOST_ID)), null));
+                    }
+                }
+                result = hosts.toString();
+            }
+            else {
+                JSONObject params = call.getJSONObject(ZabbixApi.PARAMS);
+                result = getMacros(params.optJSONArray(ZabbixApi.HOST_IDS),
+                    params.getJSONObject(ZabbixApi.FILTER).get(ZabbixApi.MACRO)).toString();
+            }
+            return "{\"jsonrpc\":\"2.0\",\"result\":" + result + ",\"id\":" + call.get(ZabbixApi.ID) + "}";
+        }
+    }
+
+    // The macros of the hosts or of all of them matching the filter, if any
+    private static JSONArray getMacros(JSONArray hostIds, Object filter) throws Exception {
+        JSONArray macros = new JSONArray(MACROS);
+        JSONArray matching = new JSONArray();
+        for (int i = 0; i < macros.length(); i++) {
+            String macro = macros.getJSONObject(i).getString(ZabbixApi.MACRO);
+            String hostId = macros.getJSONObject(i).getString(ZabbixApi.HOST_ID);
+            if ((filter == null || filter.equals(macro) || filter.toString().contains("\"" + macro + "\""))
+                    && (hostIds == null || hostIds.toString().contains("\"" + hostId + "\""))) {
+                matching.put(macros.getJSONObject(i));
+            }
+        }
+        return matching;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        _server.createContext("/", new Frontend());
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop(0);
+    }
+
+    private ZabbixApi createApi() {
+        ZabbixApi api = new ZabbixApi("http://localhost:" + _server.getAddress().getPort(), "user", "password");
+        _calls.clear();
+        return api;
+    }
+
+    private void assertMacros(Map<String, String> macros) {
+        // The host's own macros come first, then the ones of its templates in order
+        assertEquals("http", macros.get(JmxConfigurationManager.MACRO_JMX_PROTOCOL));
+        assertEquals("/jolokia", macros.get(JmxConfigurationManager.MACRO_JMX_ENDPOINT));
+        assertEquals("30", macros.get(JmxConfigurationManager.MACRO_JMX_TIMEOUT));
+        assertFalse(macros.containsKey(JmxConfigurationManager.MACRO_JMX_PROXY));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        ZabbixApi api = createApi();
+        assertMacros(api.resolveHostMacros("myhost", 9999, JmxConfigurationManager.MACROS));
+        // The host with its own macros by IP and DNS, then the macros it doesn't define of its templates only
+        assertEquals(2, _calls.size());
+        assertTrue(_calls.get(0).startsWith("["));
+        JSONObject params = new JSONObject(_calls.get(1)).getJSONObject(ZabbixApi.PARAMS);
+        assertEquals("[\"20\",\"21\"]", params.getJSONArray(ZabbixApi.HOST_IDS).toString());
+        assertFalse(params.getJSONObject(ZabbixApi.FILTER).toString().contains(JmxConfigurationManager.MACRO_JMX_TIMEOUT));
+    }
+
+    @Test
+    public void testBatchFailure() throws Exception {
+        _batchFailure = true;
+        ZabbixApi api = createApi();
+        assertMacros(api.resolveHostMacros("myhost", 9999, JmxConfigurationManager.MACROS));
+
+        // Only the frontends rejecting batches as invalid requests aren't sent them again
+        _calls.clear();
+        assertMacros(api.resolveHostMacros("myhost", 9999, JmxConfigurationManager.MACROS));
+        assertTrue(_calls.get(0).startsWith("["));
+        assertTrue(ZabbixApi.isBatchRejected(new JSONObject(
+            "{\"error\":{\"code\":-32600,\"message\":\"Invalid Request.\"}}")));
+        assertFalse(ZabbixApi.isBatchRejected(new JSONObject(
+            "{\"error\":{\"code\":-32500,\"message\":\"Application error.\"}}")));
+    }
+
+    @Test
+    public void testSerialFallback() throws Exception {
+        _batches = false;
+        ZabbixApi api = createApi();
+        assertMacros(api.resolveHostMacros("myhost", 9999, JmxConfigurationManager.MACROS));
+        // The rejected batch, host by IP and DNS and one call per macro
+        assertEquals(1 + 2 + JmxConfigurationManager.MACROS.size(), _calls.size());
+
+        // Batches aren't tried again
+        _calls.clear();
+        api.resolveHostMacros("myhost", 9999, JmxConfigurationManager.MACROS);
+        assertFalse(_calls.get(0).startsWith("["));
+    }
+
+    @Test
+    public void testJmxInterfaces() throws Exception {
+        ZabbixApi api = createApi();
+        List<ZabbixApi.JmxInterface> interfaces = api.getJmxInterfaces(JmxConfigurationManager.MACROS);
+        // The interfaces, one page of hosts and the macros
+        assertEquals(3, _calls.size());
+        assertEquals(2, interfaces.size());
+        assertEquals("10.0.0.1", interfaces.get(0).ip);
+        assertEquals(9999, interfaces.get(0).port);
+        assertMacros(interfaces.get(0).macros);
+        assertEquals("otherhost", interfaces.get(1).dns);
+        assertTrue(interfaces.get(1).macros.isEmpty());
+    }
+
+    @Test
+    public void testConfigRefresh() throws Exception {
+        JmxConfigurationManager manager = new JmxConfigurationManager(
+            "http://localhost:" + _server.getAddress().getPort(), "user", "password");
+        assertEquals(2, manager.refresh());
+
+        // Found by IP and DNS name without calling the API
+        _calls.clear();
+        assertEquals("http", manager.getConfig("10.0.0.1", 9999).getProtocol());
+        assertEquals("http", manager.getConfig("myhost", 9999).getProtocol());
+        assertEquals(JmxConfiguration.DEFAULT_JMX_PROTOCOL, manager.getConfig("otherhost", 8080).getProtocol());
+        assertTrue(_calls.isEmpty());
+
+        // Unknown interfaces are still retrieved on request
+        manager.getConfig("newhost", 9999);
+        assertEquals(2, _calls.size());
+    }
+
+    @Test
+    public void testSingleRetrieval() throws Exception {
+        final JmxConfigurationManager manager = new JmxConfigurationManager(
+            "http://localhost:" + _server.getAddress().getPort(), "user", "password");
+        _calls.clear();
+        _delay = 300;
+
+        // The concurrent requests for the same interface wait on one retrieval
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<JmxConfiguration>> configs = new ArrayList<Future<JmxConfiguration>>();
+            for (int i = 0; i < 8; i++) {
+                configs.add(executor.submit(new Callable<JmxConfiguration>() {
+
+                    @Override
+                    public JmxConfiguration call() {
+                        return manager.getConfig("myhost", 9999);
+                    }
+                }));
+            }
+            for (Future<JmxConfiguration> config : configs) {
+                assertEquals("http", config.get(10, TimeUnit.SECONDS).getProtocol());
+            }
+            assertEquals(2, _calls.size());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRelogin() throws Exception {
+        final ZabbixApi api = createApi();
+        assertEquals(1, _logins.get());
+
+        // The calls made while the session expired all wait on a single login
+        _session = "expired";
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<Map<String, String>>> results = new ArrayList<Future<Map<String, String>>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<Map<String, String>>() {
+
+                    @Override
+                    public Map<String, String> call() throws Exception {
+                        return api.resolveHostMacros("myhost", 9999, JmxConfigurationManager.MACROS);
+                    }
+                }));
+            }
+            for (Future<Map<String, String>> result : results) {
+                assertMacros(result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(2, _logins.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // Single calls log in again too
+        _session = "expired";
+        assertEquals(2, api.getJmxInterfaces(JmxConfigurationManager.MACROS).size());
+        assertEquals(3, _logins.get());
+    }
+
+    @Test
+    public void testAuthFailure() throws Exception {
+        assertTrue(ZabbixApi.isAuthFailure(new JSONObject(
+            "{\"error\":{\"code\":-32602,\"message\":\"Invalid params.\",\"data\":\"Not authorised.\"}}")));
+        assertTrue(ZabbixApi.isAuthFailure(new JSONArray(
+            "[{\"result\":[]},{\"error\":{\"message\":\"Session terminated, re-login, please.\"}}]")));
+        assertFalse(ZabbixApi.isAuthFailure(new JSONObject(
+            "{\"error\":{\"code\":-32600,\"message\":\"Invalid Request.\"}}")));
+        assertFalse(ZabbixApi.isAuthFailure(new JSONObject("{\"result\":[]}")));
+    }
+
+    @Test
+    public void testResolveMacros() throws Exception {
+        List<String> hostIds = ZabbixApi.getHostIds(new JSONArray(HOSTS));
+        assertEquals(Arrays.asList("10", "20", "21"), hostIds);
+
+        Map<String, String> macros = ZabbixApi.resolveMacros(hostIds, new JSONArray(MACROS),
+            Arrays.asList(JmxConfigurationManager.MACRO_JMX_PROTOCOL, JmxConfigurationManager.MACRO_JMX_ENDPOINT));
+        assertEquals(2, macros.size());
+        assertEquals("http", macros.get(JmxConfigurationManager.MACRO_JMX_PROTOCOL));
+        assertEquals("/jolokia", macros.get(JmxConfigurationManager.MACRO_JMX_ENDPOINT));
+    }
+}